@@ -0,0 +1,280 @@
+package elements;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Contraction hierarchy of a RoadGraph, for fast shortest path queries.
+ * Every node has a rank, its place in the order the nodes were
+ * contracted in, from the least important to the most; contracting a
+ * node adds shortcut edges between its neighbors where the way through
+ * it is the only shortest path, see HierarchyBuilder. What is kept is
+ * the upward graph: the edges from each node to its neighbors of higher
+ * rank when it was contracted, both original edges and shortcuts.
+ *
+ * A shortest path between two nodes goes up the ranks and then down,
+ * so a query searches up from both ends and meets at the top. As every
+ * edge of the road graph goes both ways with the same length, the
+ * downward graph is the upward graph reversed, and the search from the
+ * end walks the same upward edges; only one is stored. Each edge has
+ * its target, its length and, for a shortcut, the middle node it was
+ * made for (-1 for an edge of the road graph), in primitive arrays in
+ * compressed sparse row form, like RoadGraph.
+ *
+ * The hierarchy is kept in a file next to the OSM file, see
+ * hierarchyFile(). The file holds a fingerprint of the road graph it
+ * was built for, so a hierarchy is only loaded for the same graph.
+ */
+public class ContractionHierarchy {
+
+    /** "OSMH" */
+    private static final int MAGIC = 0x4F534D48;
+
+    /** Version of the format; files of other versions are not loaded. */
+    public static final int VERSION = 1;
+
+    /** Size of the header */
+    private static final int HEADER_SIZE = 40;
+
+    /** Number of nodes */
+    private int nodeCount;
+
+    /** Rank of each node, by node index; 0 is the least important */
+    private int[] rank;
+
+    /** First upward edge of each node, by node index; nodeCount + 1 long */
+    private int[] offsets;
+
+    /** Target node of each edge, of higher rank than its source */
+    private int[] targets;
+
+    /** Length of each edge; of a shortcut, the length of the path it stands for */
+    private float[] lengths;
+
+    /** Middle node of each shortcut; -1 for an edge of the road graph */
+    private int[] middles;
+
+
+    // --- end of fields --- //
+
+    /** The constructor, for HierarchyBuilder and load(). */
+    ContractionHierarchy(int[] rank, int[] offsets, int[] targets, float[] lengths, int[] middles){
+	this.rank = rank;
+	this.offsets = offsets;
+	this.targets = targets;
+	this.lengths = lengths;
+	this.middles = middles;
+	nodeCount = offsets.length - 1;
+    }
+
+    /**
+     * Build the hierarchy of a road graph, contracting nodes in parallel.
+     * @param graph The road graph.
+     * @param threads The number of threads to build with.
+     */
+    public static ContractionHierarchy build(RoadGraph graph, int threads){
+	return new HierarchyBuilder(graph, threads).build();
+    }
+
+    /** Get the number of nodes. */
+    public int getNodeCount(){ return nodeCount; }
+
+    /** Get the number of upward edges, shortcuts included. */
+    public int getEdgeCount(){ return offsets[nodeCount]; }
+
+    /** Get the number of shortcuts. */
+    public int getShortcutCount(){
+	int n = 0;
+	for( int e = 0; e < getEdgeCount(); e++ ){
+	    if( middles[e] != -1 ) n++;
+	}
+	return n;
+    }
+
+    /** Get the rank of a node; the higher, the more important. */
+    public int getRank(int node){ return rank[node]; }
+
+    /** Get the first upward edge of a node. */
+    public int firstEdge(int node){ return offsets[node]; }
+
+    /** Get the end of the upward edges of a node: the first edge of the next node. */
+    public int endEdge(int node){ return offsets[node + 1]; }
+
+    /** Get the node an edge leads up to. */
+    public int getTarget(int edge){ return targets[edge]; }
+
+    /** Get the length of an edge. */
+    public float getLength(int edge){ return lengths[edge]; }
+
+    /** Get the middle node of a shortcut; -1 if the edge is one of the road graph. */
+    public int getMiddle(int edge){ return middles[edge]; }
+
+    /**
+     * Find the edge between two adjacent nodes of the hierarchy, in
+     * the upward edges of the one of lower rank.
+     * @return the edge, or -1 if the nodes are not adjacent.
+     */
+    public int findEdge(int a, int b){
+	int from = rank[a] < rank[b] ? a : b;
+	int to = from == a ? b : a;
+	for( int e = offsets[from]; e < offsets[from + 1]; e++ ){
+	    if( targets[e] == to ) return e;
+	}
+	return -1;
+    }
+
+    /**
+     * Get the hierarchy file kept next to an OSM file.
+     * @param source The OSM file.
+     */
+    public static File hierarchyFile(File source){
+	return new File(source.getPath() + ".ch");
+    }
+
+    /**
+     * Get the hierarchy file kept next to an OSM file for a variant of
+     * its map data; see MapSnapshot.snapshotFile(File, String).
+     * @param source The OSM file.
+     * @param variant The name of the variant.
+     */
+    public static File hierarchyFile(File source, String variant){
+	return new File(source.getPath() + "." + variant + ".ch");
+    }
+
+    /**
+     * Get the fingerprint of a road graph: the CRC32 of its nodes, edges
+     * and lengths. A hierarchy is only valid for a graph with the same
+     * fingerprint.
+     */
+    public static long fingerprint(RoadGraph graph){
+	CRC32 crc = new CRC32();
+	ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	buffer.putInt(graph.getNodeCount());
+	for( int v = 0; v < graph.getNodeCount(); v++ ){
+	    if( buffer.remaining() < 4 ){ flush(crc, buffer); }
+	    buffer.putInt(graph.endEdge(v));
+	}
+	for( int e = 0; e < graph.getEdgeCount(); e++ ){
+	    if( buffer.remaining() < 8 ){ flush(crc, buffer); }
+	    buffer.putInt(graph.getTarget(e));
+	    buffer.putFloat(graph.getLength(e));
+	}
+	flush(crc, buffer);
+	return crc.getValue();
+    }
+
+    private static void flush(CRC32 crc, ByteBuffer buffer){
+	buffer.flip();
+	crc.update(buffer);
+	buffer.clear();
+    }
+
+    /**
+     * Write the hierarchy to a file. It is written to a temporary file
+     * first, and moved in place once complete.
+     * @param graph The road graph the hierarchy was built for.
+     * @param file The file to write.
+     */
+    public void write(RoadGraph graph, File file) throws IOException {
+	File tmp = new File(file.getPath() + ".tmp");
+	FileOutputStream out = new FileOutputStream(tmp);
+	try {
+	    out.write(new byte[HEADER_SIZE]);
+	    MapSnapshot.Writer w = new MapSnapshot.Writer(out);
+	    int edges = getEdgeCount();
+	    w.writeInt(nodeCount);
+	    w.writeInt(edges);
+	    w.writeInts(rank, nodeCount);
+	    w.writeInts(offsets, nodeCount + 1);
+	    w.writeInts(targets, edges);
+	    w.writeFloats(lengths, edges);
+	    w.writeInts(middles, edges);
+	    w.flush();
+
+	    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	    header.putInt(MAGIC);
+	    header.putInt(VERSION);
+	    header.putLong(fingerprint(graph));
+	    header.putLong(graph.getEdgeCount());
+	    header.putLong(w.size());
+	    header.putLong(w.checksum());
+	    header.flip();
+	    out.getChannel().write(header, 0);
+	} finally {
+	    out.close();
+	}
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Check if a hierarchy file exists, is of this version, and was
+     * built for a road graph. The payload is not checked here.
+     */
+    public static boolean isFresh(File file, RoadGraph graph){
+	if( !file.isFile() || file.length() < HEADER_SIZE ) return false;
+	try {
+	    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	    try {
+		ByteBuffer header = readHeader(channel);
+		return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+			&& header.getLong(16) == graph.getEdgeCount()
+			&& header.getLong(8) == fingerprint(graph);
+	    } finally {
+		channel.close();
+	    }
+	} catch (IOException x) {
+	    return false;
+	}
+    }
+
+    /**
+     * Load a hierarchy file. The payload is checked against its CRC first.
+     * @throws IOException if the file is not a hierarchy of this version,
+     * or is damaged.
+     */
+    public static ContractionHierarchy load(File file) throws IOException {
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    ByteBuffer header = readHeader(channel);
+	    if( header.getInt(0) != MAGIC ) throw new IOException("Not a contraction hierarchy: " + file);
+	    int version = header.getInt(4);
+	    if( version != VERSION ){
+		throw new IOException("Contraction hierarchy version " + version + ", expected " + VERSION);
+	    }
+	    long size = header.getLong(24);
+	    long checksum = header.getLong(32);
+	    if( size != channel.size() - HEADER_SIZE ) throw new IOException("Contraction hierarchy truncated");
+
+	    MapSnapshot.Reader in = new MapSnapshot.Reader(channel, HEADER_SIZE, HEADER_SIZE + size, null);
+	    if( in.checksum() != checksum ) throw new IOException("Contraction hierarchy CRC error");
+	    int nodes = in.readInt();
+	    int edges = in.readInt();
+	    if( nodes < 0 || edges < 0 ) throw new IOException("Contraction hierarchy corrupt");
+	    int[] rank = in.readInts(nodes, nodes);
+	    int[] offsets = in.readInts(nodes + 1, nodes + 1);
+	    if( offsets[nodes] != edges ) throw new IOException("Contraction hierarchy corrupt");
+	    int[] targets = in.readInts(edges, edges);
+	    float[] lengths = in.readFloats(edges, edges);
+	    int[] middles = in.readInts(edges, edges);
+	    return new ContractionHierarchy(rank, offsets, targets, lengths, middles);
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	while( header.hasRemaining() ){
+	    if( channel.read(header, header.position()) < 0 ) throw new IOException("Contraction hierarchy truncated");
+	}
+	return header;
+    }
+
+}
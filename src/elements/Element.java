@@ -1,6 +1,4 @@
 package elements;
-import java.util.HashMap;
-
 import org.xml.sax.Attributes;
 
 /**
@@ -10,8 +8,18 @@ import org.xml.sax.Attributes;
  */
 public abstract class Element {
 
-    /** The associated tags (k, v) of the Element object */
-    private HashMap<String, String> tagMap; 
+    /** 
+     * The associated tags (k, v) of the Element object, as pairs of
+     * TagDictionary ids. Null until the first tag is added; most 
+     * elements have none.
+     */
+    private int[] tags; 
+
+    /** Where the tags that were not kept can be read, or null if all are here */
+    private TagSource tagSource;
+
+    /** Offset of this Element in tagSource */
+    private long tagOffset;
 
 
     // -- end of fields -- //
@@ -20,7 +28,6 @@ public abstract class Element {
      * The Constructor for this Element object
      */
     public Element(){
-	tagMap = new HashMap<String, String>();
     }
 
     /** 
@@ -28,9 +35,16 @@ public abstract class Element {
      * @param atts The attributes of the elementName = tag.
      */
     public void addTagValues( Attributes atts ){
-	String key = atts.getValue("k");
-	String value = atts.getValue("v");
-	tagMap.put(key, value);
+	addTag(atts.getValue("k"), atts.getValue("v"));
+    }
+
+    /** 
+     * Add a tag (k, v) to this Element.
+     * @param key The key of the tag.
+     * @param value The value of the tag.
+     */
+    public void addTag( String key, String value ){
+	tags = TagDictionary.put(tags, key, value);
     }
 
     /**
@@ -42,8 +56,53 @@ public abstract class Element {
      * @return null If the key does not exist for this Element.
      */
     public String getTag( String key ){ 
-	String value = tagMap.get(key);
-	return value;
+	if( tagSource != null && !tagSource.isKept(key) ) loadTags();
+	return TagDictionary.get(tags, key);
+    }
+
+    /** Get the number of tags of this Element, reading them all if some were not kept. */
+    public int getTagCount(){ 
+	loadTags();
+	return tags == null ? 0 : tags.length / 2; 
+    }
+
+    /** Get the key of the i-th tag of this Element. */
+    public String getTagKey( int i ){ return TagDictionary.string(tags[2*i]); }
+
+    /** Get the value of the i-th tag of this Element. */
+    public String getTagValue( int i ){ return TagDictionary.string(tags[2*i+1]); }
+
+    /** Get the packed tags of this Element; null if it has none. */
+    int[] getTagArray(){ return tags; }
+
+    /** Set the packed tags of this Element. */
+    void setTagArray( int[] tags ){ this.tags = tags; }
+
+    /**
+     * Set where the tags of this Element that were not kept can be read.
+     * @param source The source, see TagSource.
+     * @param offset The offset of this Element in the source.
+     */
+    public void setTagSource( TagSource source, long offset ){
+	tagSource = source;
+	tagOffset = offset;
+    }
+
+    /** Remove all the tags of this Element, and forget its TagSource. */
+    void clearTags(){
+	tags = null;
+	tagSource = null;
+    }
+
+    /** Get the offset of this Element in its TagSource; -1 if all tags are here. */
+    long getTagOffset(){ return tagSource == null ? -1 : tagOffset; }
+
+    /** Read all the tags from the TagSource, if some were not kept. */
+    private void loadTags(){
+	TagSource source = tagSource;
+	if( source == null ) return;
+	tagSource = null;
+	source.readTags(tagOffset, this);
     }
 
 
@@ -0,0 +1,471 @@
+package elements;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Builds the ContractionHierarchy of a RoadGraph, by contracting the
+ * nodes one round at a time, from the least important to the most.
+ *
+ * Contracting a node removes it from the remaining graph, and adds a
+ * shortcut between two of its neighbors when the way through it may be
+ * the only shortest path between them: when a witness search, a
+ * Dijkstra search from one neighbor that avoids the node, does not
+ * reach the other at least as short. The search settles at most
+ * WITNESS_LIMIT nodes; past that, the shortcut is added anyway, which
+ * is never wrong, only more edges.
+ *
+ * The importance of a node, its priority, is the number of shortcuts
+ * contracting it would add less the edges it would remove, plus the
+ * number of its neighbors already contracted and its depth in the
+ * hierarchy, so that contraction spreads evenly over the map. Each
+ * round contracts the nodes whose priority is lower than that of all
+ * their remaining neighbors: no two of them are adjacent, so their
+ * witness searches, which avoid them all, run in parallel, and the
+ * shortcuts found hold whichever of them is removed first. Then the
+ * priorities of their neighbors are computed again, in parallel too.
+ */
+class HierarchyBuilder {
+
+    /** Most nodes a witness search settles when contracting a node */
+    private static final int WITNESS_LIMIT = 400;
+
+    /** Most nodes a witness search settles when computing a priority, an estimate */
+    private static final int PRIORITY_LIMIT = 60;
+
+    /** Nodes per task of the parallel passes; witness searches are slow. */
+    private static final int GRAIN = 32;
+
+    private RoadGraph graph;
+    private int threads;
+    private int nodes;
+
+    /**
+     * The remaining graph: the edges of each node not contracted yet to
+     * the others, by node index, with the first degree[v] in use.
+     */
+    private int[][] edgeTargets;
+    private float[][] edgeLengths;
+    private int[][] edgeMiddles;
+    private int[] degree;
+
+    /** The contracted nodes, and those contracted in this round */
+    private boolean[] contracted;
+    private boolean[] contracting;
+
+    /** Priority of each node not contracted yet; the lowest are contracted first */
+    private int[] priority;
+
+    /** Number of contracted neighbors of each node, and its depth in the hierarchy */
+    private int[] deleted;
+    private int[] level;
+
+    /** Rank of each node, and its upward edges, set when it is contracted */
+    private int[] rank;
+    private int[][] upTargets;
+    private float[][] upLengths;
+    private int[][] upMiddles;
+
+    /** The witness search of each thread */
+    private ThreadLocal<Witness> witness;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param graph The road graph.
+     * @param threads The number of threads to build with.
+     */
+    HierarchyBuilder(RoadGraph graph, int threads){
+	this.graph = graph;
+	this.threads = Math.max(1, threads);
+	nodes = graph.getNodeCount();
+	witness = new ThreadLocal<Witness>(){
+	    @Override
+	    protected Witness initialValue(){
+		return new Witness();
+	    }
+	};
+    }
+
+    /** Build the hierarchy. */
+    ContractionHierarchy build(){
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    return build(pool);
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    private ContractionHierarchy build(ForkJoinPool pool){
+	edgeTargets = new int[nodes][];
+	edgeLengths = new float[nodes][];
+	edgeMiddles = new int[nodes][];
+	degree = new int[nodes];
+	contracted = new boolean[nodes];
+	contracting = new boolean[nodes];
+	priority = new int[nodes];
+	deleted = new int[nodes];
+	level = new int[nodes];
+	rank = new int[nodes];
+	upTargets = new int[nodes][];
+	upLengths = new float[nodes][];
+	upMiddles = new int[nodes][];
+
+	// the remaining graph starts as the road graph, with the shortest
+	// of parallel edges, and no loops
+	ParallelRange.run(pool, nodes, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int v = lo; v < hi; v++ ){
+		    int n = graph.getDegree(v);
+		    edgeTargets[v] = new int[n];
+		    edgeLengths[v] = new float[n];
+		    edgeMiddles[v] = new int[n];
+		    for( int e = graph.firstEdge(v); e < graph.endEdge(v); e++ ){
+			if( graph.getTarget(e) != v ) addEdge(v, graph.getTarget(e), graph.getLength(e), -1);
+		    }
+		}
+	    }
+	});
+
+	// nodes without edges are at the bottom, and out of the rounds
+	int nextRank = 0;
+	int[] remaining = new int[nodes];
+	int remainingCount = 0;
+	for( int v = 0; v < nodes; v++ ){
+	    if( degree[v] == 0 ){
+		contract(v, nextRank++, null);
+	    } else {
+		remaining[remainingCount++] = v;
+	    }
+	}
+	updatePriorities(pool, remaining, remainingCount);
+
+	final int[] round = new int[remainingCount];
+	final Shortcuts[] found = new Shortcuts[remainingCount];
+	int[] dirty = new int[remainingCount];
+	boolean[] isDirty = new boolean[nodes];
+	while( remainingCount > 0 ){
+	    int roundSize = 0;
+	    for( int i = 0; i < remainingCount; i++ ){
+		int v = remaining[i];
+		if( isLocalMinimum(v) ){
+		    round[roundSize++] = v;
+		    contracting[v] = true;
+		}
+	    }
+
+	    // the shortcuts of the round, found in parallel
+	    ParallelRange.run(pool, roundSize, GRAIN, new ParallelRange.Body(){
+		public void run(int lo, int hi){
+		    Witness w = witness.get();
+		    for( int i = lo; i < hi; i++ ){
+			found[i] = new Shortcuts();
+			w.shortcuts(round[i], WITNESS_LIMIT, found[i]);
+		    }
+		}
+	    });
+
+	    // contract, and note the neighbors, whose priorities change
+	    int dirtyCount = 0;
+	    for( int i = 0; i < roundSize; i++ ){
+		int v = round[i];
+		for( int k = 0; k < degree[v]; k++ ){
+		    int u = edgeTargets[v][k];
+		    if( !isDirty[u] ){
+			isDirty[u] = true;
+			dirty[dirtyCount++] = u;
+		    }
+		}
+		contract(v, nextRank++, found[i]);
+		found[i] = null;
+	    }
+	    for( int i = 0; i < dirtyCount; i++ ){ isDirty[dirty[i]] = false; }
+	    updatePriorities(pool, dirty, dirtyCount);
+
+	    int kept = 0;
+	    for( int i = 0; i < remainingCount; i++ ){
+		if( !contracted[remaining[i]] ) remaining[kept++] = remaining[i];
+	    }
+	    remainingCount = kept;
+	}
+	return pack();
+    }
+
+    /** Compute the priorities of some nodes, in parallel. */
+    private void updatePriorities(ForkJoinPool pool, final int[] which, int count){
+	ParallelRange.run(pool, count, GRAIN, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		Witness w = witness.get();
+		for( int i = lo; i < hi; i++ ){
+		    int v = which[i];
+		    int shortcuts = w.shortcuts(v, PRIORITY_LIMIT, null);
+		    priority[v] = 2 * (shortcuts - degree[v]) + deleted[v] + level[v];
+		}
+	    }
+	});
+    }
+
+    /**
+     * Check if a node comes before all its remaining neighbors: by
+     * priority, then by a hash of the index, so that ties are broken
+     * evenly over the map.
+     */
+    private boolean isLocalMinimum(int v){
+	for( int k = 0; k < degree[v]; k++ ){
+	    int u = edgeTargets[v][k];
+	    if( priority[u] < priority[v] || (priority[u] == priority[v] && hash(u) < hash(v)) ) return false;
+	}
+	return true;
+    }
+
+    private static int hash(int v){
+	int h = v * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+    /**
+     * Contract a node: its remaining edges become its upward edges, it
+     * is removed from the remaining graph, and its shortcuts are added.
+     * @param shortcuts The shortcuts; null for none.
+     */
+    private void contract(int v, int r, Shortcuts shortcuts){
+	int n = degree[v];
+	rank[v] = r;
+	upTargets[v] = Arrays.copyOf(edgeTargets[v], n);
+	upLengths[v] = Arrays.copyOf(edgeLengths[v], n);
+	upMiddles[v] = Arrays.copyOf(edgeMiddles[v], n);
+	for( int k = 0; k < n; k++ ){
+	    int u = edgeTargets[v][k];
+	    removeEdge(u, v);
+	    deleted[u]++;
+	    level[u] = Math.max(level[u], level[v] + 1);
+	}
+	if( shortcuts != null ){
+	    for( int i = 0; i < shortcuts.size; i++ ){
+		addEdge(shortcuts.from[i], shortcuts.to[i], shortcuts.length[i], v);
+		addEdge(shortcuts.to[i], shortcuts.from[i], shortcuts.length[i], v);
+	    }
+	}
+	edgeTargets[v] = null;
+	edgeLengths[v] = null;
+	edgeMiddles[v] = null;
+	degree[v] = 0;
+	contracted[v] = true;
+	contracting[v] = false;
+    }
+
+    /** Add an edge to the remaining graph, or shorten the edge there is. */
+    private void addEdge(int from, int to, float length, int middle){
+	int[] targets = edgeTargets[from];
+	for( int k = 0; k < degree[from]; k++ ){
+	    if( targets[k] == to ){
+		if( length < edgeLengths[from][k] ){
+		    edgeLengths[from][k] = length;
+		    edgeMiddles[from][k] = middle;
+		}
+		return;
+	    }
+	}
+	int n = degree[from];
+	if( n == targets.length ){
+	    int size = Math.max(4, 2 * n);
+	    edgeTargets[from] = Arrays.copyOf(targets, size);
+	    edgeLengths[from] = Arrays.copyOf(edgeLengths[from], size);
+	    edgeMiddles[from] = Arrays.copyOf(edgeMiddles[from], size);
+	}
+	edgeTargets[from][n] = to;
+	edgeLengths[from][n] = length;
+	edgeMiddles[from][n] = middle;
+	degree[from]++;
+    }
+
+    /** Remove an edge from the remaining graph. */
+    private void removeEdge(int from, int to){
+	int last = degree[from] - 1;
+	for( int k = 0; k <= last; k++ ){
+	    if( edgeTargets[from][k] == to ){
+		edgeTargets[from][k] = edgeTargets[from][last];
+		edgeLengths[from][k] = edgeLengths[from][last];
+		edgeMiddles[from][k] = edgeMiddles[from][last];
+		degree[from] = last;
+		return;
+	    }
+	}
+    }
+
+    /** Put the upward edges in compressed sparse row form. */
+    private ContractionHierarchy pack(){
+	int[] offsets = new int[nodes + 1];
+	for( int v = 0; v < nodes; v++ ){ offsets[v+1] = offsets[v] + upTargets[v].length; }
+	int edges = offsets[nodes];
+	int[] targets = new int[edges];
+	float[] lengths = new float[edges];
+	int[] middles = new int[edges];
+	for( int v = 0; v < nodes; v++ ){
+	    int n = upTargets[v].length;
+	    System.arraycopy(upTargets[v], 0, targets, offsets[v], n);
+	    System.arraycopy(upLengths[v], 0, lengths, offsets[v], n);
+	    System.arraycopy(upMiddles[v], 0, middles, offsets[v], n);
+	    upTargets[v] = null;
+	    upLengths[v] = null;
+	    upMiddles[v] = null;
+	}
+	return new ContractionHierarchy(rank, offsets, targets, lengths, middles);
+    }
+
+    /** The shortcuts found for a node: between from[i] and to[i], of length[i] */
+    private static class Shortcuts {
+	int size;
+	int[] from = new int[4];
+	int[] to = new int[4];
+	float[] length = new float[4];
+
+	void add(int a, int b, float l){
+	    if( size == from.length ){
+		from = Arrays.copyOf(from, 2 * size);
+		to = Arrays.copyOf(to, 2 * size);
+		length = Arrays.copyOf(length, 2 * size);
+	    }
+	    from[size] = a;
+	    to[size] = b;
+	    length[size] = l;
+	    size++;
+	}
+    }
+
+    /**
+     * Witness searches of one thread, over the remaining graph, which
+     * they only read. The state is per node, and reset after each
+     * search for the nodes it reached; the heap may hold a node more
+     * than once, the entries that are not its distance are skipped.
+     */
+    private class Witness {
+
+	/** The distance of each node from the source; NaN if not reached */
+	private double[] distance;
+
+	/** The nodes reached, to reset */
+	private int[] reached;
+	private int reachedSize;
+
+	/** The heap: a node and its key in each slot */
+	private int[] heapNodes;
+	private double[] heapKeys;
+	private int heapSize;
+
+	Witness(){
+	    distance = new double[nodes];
+	    Arrays.fill(distance, Double.NaN);
+	    reached = new int[64];
+	    heapNodes = new int[64];
+	    heapKeys = new double[64];
+	}
+
+	/**
+	 * Find the shortcuts contracting a node needs: between each pair
+	 * of its neighbors with no witness path as short as through it.
+	 * @param v The node.
+	 * @param limit The most nodes each witness search settles.
+	 * @param out Where to add the shortcuts; null to only count them.
+	 * @return the number of shortcuts.
+	 */
+	int shortcuts(int v, int limit, Shortcuts out){
+	    int n = degree[v];
+	    int[] targets = edgeTargets[v];
+	    float[] lengths = edgeLengths[v];
+	    int count = 0;
+	    for( int i = 0; i + 1 < n; i++ ){
+		float longest = 0;
+		for( int j = i + 1; j < n; j++ ){ longest = Math.max(longest, lengths[j]); }
+		search(targets[i], v, (double) lengths[i] + longest, limit);
+		for( int j = i + 1; j < n; j++ ){
+		    double via = (double) lengths[i] + lengths[j];
+		    if( !(distance[targets[j]] <= via) ){
+			count++;
+			if( out != null ) out.add(targets[i], targets[j], (float) via);
+		    }
+		}
+		reset();
+	    }
+	    return count;
+	}
+
+	/**
+	 * Search from a node, avoiding another and the nodes contracted
+	 * in this round, up to a distance or a number of nodes settled.
+	 */
+	private void search(int source, int avoid, double maxDistance, int limit){
+	    reach(source, 0);
+	    int settled = 0;
+	    while( heapSize > 0 ){
+		double key = heapKeys[0];
+		int x = pop();
+		if( key > distance[x] ) continue; // an old entry
+		if( key > maxDistance || ++settled > limit ) break;
+		for( int k = 0; k < degree[x]; k++ ){
+		    int y = edgeTargets[x][k];
+		    if( y == avoid || contracting[y] ) continue;
+		    double d = key + edgeLengths[x][k];
+		    if( Double.isNaN(distance[y]) || d < distance[y] ) reach(y, d);
+		}
+	    }
+	}
+
+	/** Set the distance of a node, and put it in the heap. */
+	private void reach(int x, double d){
+	    if( Double.isNaN(distance[x]) ){
+		if( reachedSize == reached.length ) reached = Arrays.copyOf(reached, 2 * reachedSize);
+		reached[reachedSize++] = x;
+	    }
+	    distance[x] = d;
+	    push(x, d);
+	}
+
+	private void reset(){
+	    for( int i = 0; i < reachedSize; i++ ){ distance[reached[i]] = Double.NaN; }
+	    reachedSize = 0;
+	    heapSize = 0;
+	}
+
+	private void push(int x, double key){
+	    if( heapSize == heapNodes.length ){
+		heapNodes = Arrays.copyOf(heapNodes, 2 * heapSize);
+		heapKeys = Arrays.copyOf(heapKeys, 2 * heapSize);
+	    }
+	    int i = heapSize++;
+	    while( i > 0 ){
+		int p = (i - 1) / 2;
+		if( !(key < heapKeys[p]) ) break;
+		heapNodes[i] = heapNodes[p];
+		heapKeys[i] = heapKeys[p];
+		i = p;
+	    }
+	    heapNodes[i] = x;
+	    heapKeys[i] = key;
+	}
+
+	private int pop(){
+	    int top = heapNodes[0];
+	    heapSize--;
+	    int x = heapNodes[heapSize];
+	    double key = heapKeys[heapSize];
+	    int i = 0;
+	    while( true ){
+		int c = 2 * i + 1;
+		if( c >= heapSize ) break;
+		if( c + 1 < heapSize && heapKeys[c+1] < heapKeys[c] ) c++;
+		if( !(heapKeys[c] < key) ) break;
+		heapNodes[i] = heapNodes[c];
+		heapKeys[i] = heapKeys[c];
+		i = c;
+	    }
+	    heapNodes[i] = x;
+	    heapKeys[i] = key;
+	    return top;
+	}
+    }
+
+}
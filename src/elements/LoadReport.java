@@ -0,0 +1,258 @@
+package elements;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Where the time and the memory of a load go: the time and the bytes
+ * allocated in each phase of the parse and of finalizeData(), counts of
+ * what was loaded, and the peak heap. OSMParser fills it in when given
+ * one (see OSMParser.setReport()), and MapData keeps it, so that the
+ * first paint of the map is added too.
+ *
+ * Phases are named, with a '.' before the name of a step of another
+ * phase, like "finalize.graph". They can nest; end() ends the phase
+ * begun last. The bytes allocated are for all threads: the heap used
+ * at the end of the phase, less at its start, plus what the collector
+ * freed in between, as it reports it. This is close, not exact; the
+ * collector reports a little after it ran. The peak heap is the most
+ * heap used before a collection, or at the end of a phase.
+ */
+public class LoadReport {
+
+    /** A phase that was timed */
+    private static class Phase {
+	String name;
+	long nanos;
+	long allocated;
+	/** If only the time is known, not the memory */
+	boolean timeOnly;
+
+	/** The heap used and the freed count when the phase began */
+	long startUsed;
+	long startFreed;
+	long startTime;
+    }
+
+    /** The phases, in the order they began */
+    private ArrayList<Phase> phases;
+
+    /** The phases begun and not ended, innermost last */
+    private ArrayList<Phase> open;
+
+    /** Named counts, like the number of nodes */
+    private LinkedHashMap<String, Long> counts;
+
+    /** Bytes freed by the collector since the report was made */
+    private volatile long freed;
+
+    /** Most heap used seen so far */
+    private volatile long peakHeap;
+
+    /** The listener of the collectors, and what it listens to */
+    private NotificationListener gcListener;
+    private ArrayList<NotificationEmitter> emitters;
+
+    /** When the report was made, and when finish() was called */
+    private long startTime;
+    private long endTime;
+
+    /** Where to print the report when it is finished; null for nowhere */
+    private PrintStream out;
+
+
+    // --- end of fields --- //
+
+    /** The constructor. Starts listening to the garbage collector. */
+    public LoadReport(){
+	phases = new ArrayList<Phase>();
+	open = new ArrayList<Phase>();
+	counts = new LinkedHashMap<String, Long>();
+	emitters = new ArrayList<NotificationEmitter>();
+	gcListener = new NotificationListener(){
+	    @Override
+	    public void handleNotification(Notification n, Object handback){
+		if( !n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) ) return;
+		GarbageCollectionNotificationInfo info =
+		    GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+		collected(info.getGcInfo().getMemoryUsageBeforeGc(), info.getGcInfo().getMemoryUsageAfterGc());
+	    }
+	};
+	for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ){
+	    if( gc instanceof NotificationEmitter ){
+		((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+		emitters.add((NotificationEmitter) gc);
+	    }
+	}
+	startTime = System.nanoTime();
+	peakHeap = heapUsed();
+    }
+
+    /** Count what a collection freed, and the heap used before it */
+    private synchronized void collected(Map<String, MemoryUsage> before, Map<String, MemoryUsage> after){
+	long usedBefore = 0, usedAfter = 0;
+	for( MemoryUsage u : before.values() ){ usedBefore += u.getUsed(); }
+	for( MemoryUsage u : after.values() ){ usedAfter += u.getUsed(); }
+	freed += Math.max(0, usedBefore - usedAfter);
+	peakHeap = Math.max(peakHeap, usedBefore);
+    }
+
+    /** Get the heap used now */
+    private static long heapUsed(){
+	return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** Set where to print the report when it is finished; null for nowhere. */
+    public void setPrintStream(PrintStream out){
+	this.out = out;
+    }
+
+    /** Begin a phase, within the phase begun last if it was not ended. */
+    public synchronized void begin(String name){
+	Phase p = new Phase();
+	p.name = open.isEmpty() ? name : open.get(open.size() - 1).name + "." + name;
+	p.startUsed = heapUsed();
+	p.startFreed = freed;
+	p.startTime = System.nanoTime();
+	phases.add(p);
+	open.add(p);
+    }
+
+    /** End the phase begun last. */
+    public synchronized void end(){
+	Phase p = open.remove(open.size() - 1);
+	p.nanos = System.nanoTime() - p.startTime;
+	long used = heapUsed();
+	peakHeap = Math.max(peakHeap, used);
+	p.allocated = Math.max(0, used - p.startUsed + freed - p.startFreed);
+    }
+
+    /**
+     * Add the time of a step that was timed apart, like one spread over
+     * a phase; within the phase begun last, if any.
+     */
+    public synchronized void addTime(String name, long nanos){
+	Phase p = new Phase();
+	p.name = open.isEmpty() ? name : open.get(open.size() - 1).name + "." + name;
+	p.nanos = nanos;
+	p.timeOnly = true;
+	phases.add(p);
+    }
+
+    /** Set a count, like the number of nodes. */
+    public synchronized void setCount(String name, long value){
+	counts.put(name, value);
+    }
+
+    /** Get a count; -1 if it was not set. */
+    public synchronized long getCount(String name){
+	Long value = counts.get(name);
+	return value == null ? -1 : value;
+    }
+
+    /** Get the time of a phase, in ns; -1 if there was none. */
+    public synchronized long getTime(String name){
+	for( Phase p : phases ){
+	    if( p.name.equals(name) ) return p.nanos;
+	}
+	return -1;
+    }
+
+    /** Get the bytes allocated in a phase; -1 if there was none, or it is not known. */
+    public synchronized long getAllocated(String name){
+	for( Phase p : phases ){
+	    if( p.name.equals(name) ) return p.timeOnly ? -1 : p.allocated;
+	}
+	return -1;
+    }
+
+    /** Get the most heap used seen so far, in bytes. */
+    public long getPeakHeap(){
+	return Math.max(peakHeap, heapUsed());
+    }
+
+    /** Get the time from the making of the report to finish(), in ns; or to now. */
+    public long getTotalTime(){
+	return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+    }
+
+    /**
+     * Finish the report, once the map data is loaded: stop listening to
+     * the collector, and print the report if a print stream is set.
+     */
+    public void finish(){
+	synchronized( this ){
+	    if( endTime != 0 ) return;
+	    endTime = System.nanoTime();
+	    peakHeap = getPeakHeap();
+	}
+	for( NotificationEmitter emitter : emitters ){
+	    try {
+		emitter.removeNotificationListener(gcListener);
+	    } catch (Exception x) {
+		// it was not listening after all
+	    }
+	}
+	if( out != null ) out.print(this);
+    }
+
+    /**
+     * Add the time to the first paint of the map, from the making of the
+     * report, and print it if a print stream is set. Only the first call
+     * counts.
+     */
+    public void firstPaint(){
+	long nanos = System.nanoTime() - startTime;
+	synchronized( this ){
+	    if( getTime("first paint") >= 0 ) return;
+	    addTime("first paint", nanos);
+	}
+	if( out != null ) out.printf("first paint after %.1f ms%n", nanos / 1e6);
+    }
+
+    /** The report, as lines of text. */
+    @Override
+    public synchronized String toString(){
+	StringBuilder sb = new StringBuilder();
+	sb.append(String.format("load report: %.1f ms, peak heap %.1f MB%n", getTotalTime() / 1e6, peakHeap / 1e6));
+	for( Phase p : phases ){
+	    int depth = 0;
+	    for( int i = 0; i < p.name.length(); i++ ){
+		if( p.name.charAt(i) == '.' ) depth++;
+	    }
+	    String name = p.name.substring(p.name.lastIndexOf('.') + 1);
+	    String indent = "  " + "  ".repeat(depth);
+	    if( p.timeOnly ){
+		sb.append(String.format("%-32s %10.1f ms%n", indent + name, p.nanos / 1e6));
+	    } else {
+		sb.append(String.format("%-32s %10.1f ms %10.1f MB allocated%n",
+			    indent + name, p.nanos / 1e6, p.allocated / 1e6));
+	    }
+	}
+	for( Map.Entry<String, Long> c : counts.entrySet() ){
+	    sb.append(String.format("  %-30s %,12d%n", c.getKey(), c.getValue()));
+	}
+	long parse = getTime("parse");
+	long bytes = getCount("bytes");
+	long elements = getCount("elements");
+	if( parse > 0 && bytes >= 0 ){
+	    sb.append(String.format("  %-30s %12.1f MB/s%n", "bytes per second", bytes / 1e6 / (parse / 1e9)));
+	}
+	if( parse > 0 && elements >= 0 ){
+	    sb.append(String.format("  %-30s %,12.0f%n", "elements per second", elements / (parse / 1e9)));
+	}
+	return sb.toString();
+    }
+
+}
@@ -0,0 +1,162 @@
+package elements;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to primitive int values. Used to
+ * look up the dense index of an Element given its OSM id, without boxing
+ * the id or allocating an entry object per element. Open addressing with
+ * linear probing; the table is always a power of two in size.
+ */
+public class LongIntMap {
+
+    /** Value returned by get() when a key is not present. */
+    public static final int MISSING = -1;
+
+    /** The keys of the table. */
+    private long[] keys;
+
+    /** The values of the table, MISSING where the slot is empty. */
+    private int[] values;
+
+    /** Number of keys in the map. */
+    private int size;
+
+    /** keys.length - 1, for masking the hash into the table. */
+    private int mask;
+
+
+    // --- end of fields --- //
+
+    /** The constructor. */
+    public LongIntMap(){
+	this(16);
+    }
+
+    /**
+     * The constructor.
+     * @param expected The number of keys expected to be put.
+     */
+    public LongIntMap(int expected){
+	int capacity = 16;
+	while( capacity < expected * 2 ){ capacity <<= 1; }
+	allocate(capacity);
+    }
+
+    /** Allocate empty tables of the given capacity. */
+    private void allocate(int capacity){
+	keys = new long[capacity];
+	values = new int[capacity];
+	Arrays.fill(values, MISSING);
+	mask = capacity - 1;
+    }
+
+    /** Spread the bits of the key, so sequential ids don't cluster. */
+    private static int hash(long key){
+	long h = key * 0x9E3779B97F4A7C15L;
+	return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Put a key, value pair. The value must not be negative.
+     * @return the previous value, or MISSING if there was none.
+     */
+    public int put(long key, int value){
+	if( (size + 1) * 2 > keys.length ){ rehash(keys.length * 2); }
+	int i = hash(key) & mask;
+	while( values[i] != MISSING ){
+	    if( keys[i] == key ){
+		int old = values[i];
+		values[i] = value;
+		return old;
+	    }
+	    i = (i + 1) & mask;
+	}
+	keys[i] = key;
+	values[i] = value;
+	size++;
+	return MISSING;
+    }
+
+    /**
+     * Get the value of a key.
+     * @return the value, or MISSING if the key is not present.
+     */
+    public int get(long key){
+	int i = hash(key) & mask;
+	while( values[i] != MISSING ){
+	    if( keys[i] == key ){ return values[i]; }
+	    i = (i + 1) & mask;
+	}
+	return MISSING;
+    }
+
+    /**
+     * Remove a key. The keys after it in its probe run are moved back,
+     * so that no tombstones are left.
+     * @return the value, or MISSING if the key was not present.
+     */
+    public int remove(long key){
+	int i = hash(key) & mask;
+	while( values[i] != MISSING ){
+	    if( keys[i] == key ){
+		int old = values[i];
+		int hole = i;
+		for( int j = (i + 1) & mask; values[j] != MISSING; j = (j + 1) & mask ){
+		    // a key can fill the hole if the hole is between its home slot and it
+		    int home = hash(keys[j]) & mask;
+		    if( ((j - home) & mask) >= ((j - hole) & mask) ){
+			keys[hole] = keys[j];
+			values[hole] = values[j];
+			hole = j;
+		    }
+		}
+		values[hole] = MISSING;
+		size--;
+		return old;
+	    }
+	    i = (i + 1) & mask;
+	}
+	return MISSING;
+    }
+
+    /** Check if the key is present. */
+    public boolean containsKey(long key){
+	return get(key) != MISSING;
+    }
+
+    /** Get the number of keys. */
+    public int size(){ return size; }
+
+    /** Write the table to a snapshot as it is, so it is not rebuilt on loading. */
+    void writeSnapshot(MapSnapshot.Writer out) throws IOException {
+	out.writeInt(size);
+	out.writeInt(keys.length);
+	out.writeLongs(keys, keys.length);
+	out.writeInts(values, values.length);
+    }
+
+    /** Read a table written by writeSnapshot(). */
+    static LongIntMap readSnapshot(MapSnapshot.Reader in) throws IOException {
+	LongIntMap map = new LongIntMap();
+	map.size = in.readInt();
+	int capacity = in.readInt();
+	if( Integer.bitCount(capacity) != 1 ) throw new IOException("Map snapshot corrupt: bad table");
+	map.keys = in.readLongs(capacity, capacity);
+	map.values = in.readInts(capacity, capacity);
+	map.mask = capacity - 1;
+	return map;
+    }
+
+    /** Grow the table, re-inserting every key. */
+    private void rehash(int capacity){
+	long[] oldKeys = keys;
+	int[] oldValues = values;
+	allocate(capacity);
+	size = 0;
+	for( int i = 0; i < oldKeys.length; i++ ){
+	    if( oldValues[i] != MISSING ){ put(oldKeys[i], oldValues[i]); }
+	}
+    }
+
+}
@@ -1,6 +1,10 @@
 package elements;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
 
 import org.xml.sax.Attributes;
 
@@ -25,11 +29,11 @@ public class MapData {
      * i.e. key = "minlon" is value = min. longitude value. */
     private HashMap<String, String> boundRange;
 
-    /** An HashMap mapping the node ID to all Way objects IDs
-     * that contain that Node. That is, the node exists in the way.
-     * The ArrayList should have size() >= 1 
-     */
-    private HashMap<String, ArrayList<Way>> nodeInWayMap;
+    /** Where tags that were not kept at load time are read from; null if all were kept */
+    private TagSource tagSource;
+
+    /** The report of the load of this data; null if none was made */
+    private LoadReport loadReport;
 
 
     // -- end of fields -- //
@@ -39,7 +43,7 @@ public class MapData {
      */
     public MapData(){ 
 	nodeManager = new NodeManager();
-	wayManager = new WayManager();
+	wayManager = new WayManager(nodeManager);
 	relationManager = new RelationManager();
 	boundRange = new HashMap<String, String>();
     }
@@ -53,6 +57,16 @@ public class MapData {
 	return n;
     }
 
+    /**
+     * Add a node object.
+     * @param id The ID of the Node object
+     * @param lat The latitude of the Node object
+     * @param lon The longitude of the Node object
+     */
+    public Node newNode( long id, double lat, double lon ){ 
+	return nodeManager.newNode(id, lat, lon);
+    }
+
     /**
      * Add a Way object.
      * @param atts The attributes of the Way object
@@ -62,6 +76,14 @@ public class MapData {
 	return w;
     }
 
+    /**
+     * Add a Way object.
+     * @param id The ID of the Way object
+     */
+    public Way newWay( long id ){ 
+	return wayManager.newWay(id);
+    }
+
     /**
      * Add a Relation object
      * @param atts The attributes of the Relation object
@@ -71,6 +93,14 @@ public class MapData {
 	return r;
     }
 
+    /**
+     * Add a Relation object
+     * @param id The ID of the Relation object
+     */
+    public Relation newRelation( long id ){
+	return relationManager.newRelation(id);
+    }
+
     /**
      * Add Bounds. Attributes indicates the key to value.
      */
@@ -82,6 +112,16 @@ public class MapData {
 	}
     }
 
+    /**
+     * Add Bounds by value.
+     */
+    public void addBounds( double minlat, double minlon, double maxlat, double maxlon ){
+	boundRange.put("minlat", String.valueOf(minlat));
+	boundRange.put("minlon", String.valueOf(minlon));
+	boundRange.put("maxlat", String.valueOf(maxlat));
+	boundRange.put("maxlon", String.valueOf(maxlon));
+    }
+
     /**
      * Add Bound Box: Order: min lat, min lon, max lat, max lon.
      * Example of tag: bound box="41.14964,-71.89513,42.02115,-71.12079";
@@ -98,18 +138,27 @@ public class MapData {
 
     /**
      * if there is a path between this node and other node.
+     * For adjacent nodes, as on a path, this is the way of the road 
+     * graph edge between them; otherwise the first way both are in.
      * @return the Way if there is a shared way. 
      * otherwise null, if there is no shared way between n1 and n2.
      */
     public Way connectedBy(Node n1, Node n2){
-	String id1 = n1.getID();
-	String id2 = n2.getID();
-	ArrayList<Way> ways1 = nodeInWayMap.get(id1);
-	ArrayList<Way> ways2 = nodeInWayMap.get(id2);
-	for(Way w1: ways1){
-	    for(Way w2: ways2){
-		if(w1.equals(w2)){ return w1; }
-	    }
+	int i1 = n1.getIndex(), i2 = n2.getIndex();
+	RoadGraph graph = nodeManager.getRoadGraph();
+	if( graph != null ){
+	    int edge = graph.findEdge(i1, i2);
+	    if( edge != -1 ){ return wayManager.getWayByIndex(graph.getWay(edge)); }
+	}
+	// the way indexes of a node are in increasing order; merge them
+	int c1 = wayManager.getContainingWayCount(i1);
+	int c2 = wayManager.getContainingWayCount(i2);
+	for( int j = 0, k = 0; j < c1 && k < c2; ){
+	    int w1 = wayManager.getContainingWayIndex(i1, j);
+	    int w2 = wayManager.getContainingWayIndex(i2, k);
+	    if( w1 == w2 ){ return wayManager.getWayByIndex(w1); }
+	    if( w1 < w2 ) j++;
+	    else k++;
 	}
 	return null;
     }
@@ -122,18 +171,109 @@ public class MapData {
      * involving the name, but not sure if it should be moved here. 
      */
     public void finalizeData(){ 
+	finalizeData(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** 
+     * Finalize the data, on the given number of threads.
+     * See WayManager.computeIncidence().
+     */
+    public void finalizeData(int threads){ 
+	finalizeData(threads, null);
+    }
+
+    /** 
+     * Finalize the data, on the given number of threads, timing each 
+     * step in a report.
+     * @param report The report; null for none.
+     */
+    public void finalizeData(int threads, LoadReport report){ 
 	// nodeManager.organizeByLonLat(); /* never used */
-	nodeManager.genImportantNodes();
-	wayManager.computeSharedNodes(); 
-	nodeInWayMap = wayManager.getnodeInWayMap();
-	wayManager.setNeighboringNodes();
+	if( report != null ) report.begin("finalize");
+	ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+	try {
+	    if( report != null ) report.begin("names");
+	    nodeManager.genImportantNodes(pool);
+	    if( report != null ) report.end();
+	    wayManager.computeIncidence(pool, report);
+	} finally {
+	    pool.shutdown();
+	}
+	if( report != null ) report.end();
     }
 
+    /**
+     * Start changing the finalized data in place: see MapUpdate, and
+     * OSMChangeReader, which applies osmChange files with it.
+     * @throws IllegalStateException if the data is not finalized.
+     */
+    public MapUpdate update(){
+	if( nodeManager.getRoadGraph() == null ) throw new IllegalStateException("Map data is not finalized");
+	return new MapUpdate(this);
+    }
+
+    /** 
+     * Write the finalized data to a snapshot. See MapSnapshot.
+     */
+    void writeSnapshot(MapSnapshot.Writer out) throws IOException {
+	out.writeTags(boundRange);
+	String[] kept = tagSource == null ? new String[0] : tagSource.getKeptKeys();
+	out.writeInt(kept.length);
+	for( String key : kept ){ out.writeString(key); }
+	nodeManager.writeSnapshot(out);
+	wayManager.writeSnapshot(out);
+	relationManager.writeSnapshot(out);
+	nodeManager.getRoadGraph().writeSnapshot(out);
+    }
+
+    /** 
+     * Read the data from a snapshot, written by writeSnapshot().
+     * The data is finalized already.
+     */
+    void readSnapshot(MapSnapshot.Reader in) throws IOException {
+	int bounds = in.readInt();
+	for( int i = 0; i < bounds; i++ ){
+	    boundRange.put(in.readString(), in.readString());
+	}
+	// tags that were not kept are read from the source; only with the same keys kept
+	String[] kept = new String[in.readInt()];
+	for( int i = 0; i < kept.length; i++ ){ kept[i] = in.readString(); }
+	if( kept.length > 0 ){
+	    tagSource = in.getTagSource();
+	    if( tagSource == null || !new HashSet<String>(Arrays.asList(kept)).equals(
+		    new HashSet<String>(Arrays.asList(tagSource.getKeptKeys()))) ){
+		throw new IOException("Map snapshot was made with other lazy tags");
+	    }
+	}
+	nodeManager.readSnapshot(in);
+	wayManager.readSnapshot(in);
+	relationManager.readSnapshot(in, wayManager);
+	nodeManager.setRoadGraph(RoadGraph.readSnapshot(in));
+    }
+
+    /**
+     * Set where the tags that were not kept at load time are read from,
+     * when the data is loaded with lazy tags. See TagSource.
+     */
+    public void setTagSource(TagSource source){ tagSource = source; }
+
+    /** Get where the tags that were not kept are read from; null if all were kept. */
+    public TagSource getTagSource(){ return tagSource; }
+
+    /** Set the report of the load of this data. */
+    public void setLoadReport(LoadReport report){ loadReport = report; }
+
+    /** Get the report of the load of this data; null if none was made. */
+    public LoadReport getLoadReport(){ return loadReport; }
+
     /**
      * Get the nodeManager object.
      */
     public NodeManager getNodeManager(){ return nodeManager; }
 
+    /** Get the road graph; null until the data is finalized. */
+    public RoadGraph getRoadGraph(){ return nodeManager.getRoadGraph(); }
+
     /**
      * Get the wayManager object.
      */
@@ -0,0 +1,503 @@
+package elements;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a finalized MapData, so that a map that was parsed
+ * once can be loaded again without parsing and finalizing it.
+ *
+ * The file is a fixed header followed by the payload. The header holds
+ * a magic number, the format version, the length and modification time
+ * of the OSM file the snapshot was made from (so a stale snapshot is
+ * noticed), and the length and CRC32 of the payload. The payload is the
+ * sections written by MapData, NodeManager, WayManager and
+ * RelationManager, big-endian, with every string stored once in a table
+ * at the end and referred to by index. The snapshot is loaded through
+ * mapped windows of the file, copying the arrays out in bulk.
+ */
+public class MapSnapshot {
+
+    /** "OSMS" */
+    private static final int MAGIC = 0x4F534D53;
+
+    /** Version of the format; snapshots of other versions are not loaded. */
+    public static final int VERSION = 5;
+
+    /** Size of the header */
+    private static final int HEADER_SIZE = 48;
+
+    /** Size of the windows the snapshot is mapped in */
+    private static final long MAP_WINDOW = 1L << 30;
+
+
+    // --- end of fields --- //
+
+    /** This class is not instantiated. */
+    private MapSnapshot(){
+    }
+
+    /**
+     * Get the snapshot file kept next to an OSM file.
+     * @param source The OSM file.
+     */
+    public static File snapshotFile(File source){
+	return new File(source.getPath() + ".snap");
+    }
+
+    /**
+     * Get the snapshot file kept next to an OSM file for a variant of
+     * its map data, such as the data of a filter profile.
+     * @param source The OSM file.
+     * @param variant The name of the variant.
+     */
+    public static File snapshotFile(File source, String variant){
+	return new File(source.getPath() + "." + variant + ".snap");
+    }
+
+    /**
+     * Write a snapshot of finalized map data. The snapshot is written to a
+     * temporary file first, and moved in place once complete.
+     * @param data The finalized map data.
+     * @param source The OSM file the data was parsed from.
+     * @param snapshot The snapshot file to write.
+     */
+    public static void write(MapData data, File source, File snapshot) throws IOException {
+	File tmp = new File(snapshot.getPath() + ".tmp");
+	FileOutputStream file = new FileOutputStream(tmp);
+	try {
+	    file.write(new byte[HEADER_SIZE]);
+	    Writer out = new Writer(file);
+	    data.writeSnapshot(out);
+	    long stringsOffset = out.writeStrings();
+	    out.flush();
+
+	    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	    header.putInt(MAGIC);
+	    header.putInt(VERSION);
+	    header.putLong(source.length());
+	    header.putLong(source.lastModified());
+	    header.putLong(stringsOffset);
+	    header.putLong(out.size());
+	    header.putLong(out.checksum());
+	    header.flip();
+	    file.getChannel().write(header, 0);
+	} finally {
+	    file.close();
+	}
+	Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Check if a snapshot exists, is of this version, and was made from
+     * the OSM file as it is now. The payload is not checked here.
+     */
+    public static boolean isFresh(File source, File snapshot){
+	if( !snapshot.isFile() || snapshot.length() < HEADER_SIZE ) return false;
+	try {
+	    FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+	    try {
+		ByteBuffer header = readHeader(channel);
+		return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+			&& header.getLong(8) == source.length()
+			&& header.getLong(16) == source.lastModified();
+	    } finally {
+		channel.close();
+	    }
+	} catch (IOException x) {
+	    return false;
+	}
+    }
+
+    /**
+     * Load a snapshot. The payload is checked against its CRC first.
+     * @return the finalized map data.
+     * @throws IOException if the file is not a snapshot of this version,
+     * or is damaged.
+     */
+    public static MapData load(File snapshot) throws IOException {
+	return load(snapshot, null);
+    }
+
+    /**
+     * Load a snapshot of map data that was loaded with lazy tags.
+     * @param tagSource Where the tags that were not kept are read from;
+     * it must keep the same keys as when the snapshot was written.
+     * @return the finalized map data.
+     * @throws IOException if the file is not a snapshot of this version,
+     * is damaged, or was written with other keys kept.
+     */
+    public static MapData load(File snapshot, TagSource tagSource) throws IOException {
+	FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+	try {
+	    ByteBuffer header = readHeader(channel);
+	    if( header.getInt(0) != MAGIC ) throw new IOException("Not a map snapshot: " + snapshot);
+	    int version = header.getInt(4);
+	    if( version != VERSION ){
+		throw new IOException("Map snapshot version " + version + ", expected " + VERSION);
+	    }
+	    long stringsOffset = header.getLong(24);
+	    long size = header.getLong(32);
+	    long checksum = header.getLong(40);
+	    if( size != channel.size() - HEADER_SIZE ) throw new IOException("Map snapshot truncated");
+
+	    Reader in = new Reader(channel, HEADER_SIZE, HEADER_SIZE + size, tagSource);
+	    if( in.checksum() != checksum ) throw new IOException("Map snapshot CRC error");
+	    in.seek(HEADER_SIZE + stringsOffset);
+	    in.readStrings();
+	    in.seek(HEADER_SIZE);
+
+	    MapData data = new MapData();
+	    data.readSnapshot(in);
+	    return data;
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	while( header.hasRemaining() ){
+	    if( channel.read(header, header.position()) < 0 ) throw new IOException("Map snapshot truncated");
+	}
+	return header;
+    }
+
+    /**
+     * Output of the sections of a snapshot. Strings are written as
+     * indexes into the string table, which is written at the end.
+     */
+    static class Writer {
+
+	private DataOutputStream out;
+	private CRC32 crc;
+
+	/** Number of bytes written */
+	private long size;
+
+	/** Index of every string written, in the string table */
+	private HashMap<String, Integer> stringIndex;
+
+	/** The string table */
+	private ArrayList<String> strings;
+
+	Writer(OutputStream file){
+	    crc = new CRC32();
+	    out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16));
+	    stringIndex = new HashMap<String, Integer>();
+	    strings = new ArrayList<String>();
+	}
+
+	void writeInt(int v) throws IOException { out.writeInt(v); size += 4; }
+
+	void writeLong(long v) throws IOException { out.writeLong(v); size += 8; }
+
+	void writeDouble(double v) throws IOException { out.writeDouble(v); size += 8; }
+
+	/** Write the first n values of an array */
+	void writeInts(int[] a, int n) throws IOException {
+	    for( int i = 0; i < n; i++ ){ out.writeInt(a[i]); }
+	    size += 4L * n;
+	}
+
+	/** Write the first n values of an array */
+	void writeLongs(long[] a, int n) throws IOException {
+	    for( int i = 0; i < n; i++ ){ out.writeLong(a[i]); }
+	    size += 8L * n;
+	}
+
+	/** Write the first n values of an array */
+	void writeDoubles(double[] a, int n) throws IOException {
+	    for( int i = 0; i < n; i++ ){ out.writeDouble(a[i]); }
+	    size += 8L * n;
+	}
+
+	/** Write the first n values of an array */
+	void writeFloats(float[] a, int n) throws IOException {
+	    for( int i = 0; i < n; i++ ){ out.writeFloat(a[i]); }
+	    size += 4L * n;
+	}
+
+	/** Write the first n values of an array */
+	void writeBytes(byte[] a, int n) throws IOException {
+	    out.write(a, 0, n);
+	    size += n;
+	}
+
+	/** Write a string, which may be null, as its index in the string table */
+	void writeString(String s) throws IOException {
+	    if( s == null ){
+		writeInt(-1);
+		return;
+	    }
+	    Integer index = stringIndex.get(s);
+	    if( index == null ){
+		index = strings.size();
+		stringIndex.put(s, index);
+		strings.add(s);
+	    }
+	    writeInt(index);
+	}
+
+	/** Write tags: their number, then keys and values; null for none */
+	void writeTags(Map<String, String> tags) throws IOException {
+	    if( tags == null ){
+		writeInt(0);
+		return;
+	    }
+	    writeInt(tags.size());
+	    for( Map.Entry<String, String> tag : tags.entrySet() ){
+		writeString(tag.getKey());
+		writeString(tag.getValue());
+	    }
+	}
+
+	/** Write packed tags, see TagDictionary, like writeTags(Map) */
+	void writeTags(int[] tags) throws IOException {
+	    if( tags == null ){
+		writeInt(0);
+		return;
+	    }
+	    writeInt(tags.length / 2);
+	    for( int i = 0; i < tags.length; i++ ){ writeString(TagDictionary.string(tags[i])); }
+	}
+
+	/**
+	 * Write the string table.
+	 * @return the offset of the table in the payload.
+	 */
+	long writeStrings() throws IOException {
+	    long offset = size;
+	    writeInt(strings.size());
+	    for( String s : strings ){
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeInt(b.length);
+		writeBytes(b, b.length);
+	    }
+	    return offset;
+	}
+
+	void flush() throws IOException { out.flush(); }
+
+	/** Get the number of bytes written. */
+	long size(){ return size; }
+
+	/** Get the CRC32 of the bytes written. */
+	long checksum(){ return crc.getValue(); }
+    }
+
+    /**
+     * Input of the sections of a snapshot, from windows of the file that
+     * are mapped as reading moves along. Arrays are copied out of the
+     * mapped windows in bulk.
+     */
+    static class Reader {
+
+	private FileChannel channel;
+
+	/** File offset of the next byte to read */
+	private long pos;
+
+	/** File offset where the payload ends */
+	private long end;
+
+	/** The mapped window, and its file offset */
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	/** The string table */
+	private String[] strings;
+
+	/** TagDictionary ids of the string table, interned on first use */
+	private int[] tagIds;
+
+	/** Where tags that were not kept are read from; may be null */
+	private TagSource tagSource;
+
+	Reader(FileChannel channel, long start, long end, TagSource tagSource){
+	    this.channel = channel;
+	    this.end = end;
+	    this.tagSource = tagSource;
+	    pos = start;
+	}
+
+	/** Get where tags that were not kept are read from; may be null. */
+	TagSource getTagSource(){ return tagSource; }
+
+	/** Move to a file offset. */
+	void seek(long offset){ pos = offset; }
+
+	/**
+	 * Make the window cover at least the next n bytes (or the rest of
+	 * the payload), positioned at pos.
+	 */
+	private ByteBuffer window(int n) throws IOException {
+	    if( window == null || pos < windowStart || pos + n > windowStart + window.capacity() ){
+		if( pos + n > end ) throw new IOException("Map snapshot corrupt: read past the end");
+		windowStart = pos;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, end - pos));
+	    }
+	    window.position((int) (pos - windowStart));
+	    return window;
+	}
+
+	/** Number of whole values of the given size left in the window */
+	private int fit(int valueSize){
+	    return (int) ((windowStart + window.capacity() - pos) / valueSize);
+	}
+
+	/** Compute the CRC32 of the payload. */
+	long checksum() throws IOException {
+	    CRC32 crc = new CRC32();
+	    long start = pos;
+	    while( pos < end ){
+		ByteBuffer w = window(1);
+		int n = (int) Math.min(w.remaining(), end - pos);
+		w.limit(w.position() + n);
+		crc.update(w);
+		w.limit(w.capacity());
+		pos += n;
+	    }
+	    pos = start;
+	    return crc.getValue();
+	}
+
+	int readInt() throws IOException {
+	    int v = window(4).getInt();
+	    pos += 4;
+	    return v;
+	}
+
+	long readLong() throws IOException {
+	    long v = window(8).getLong();
+	    pos += 8;
+	    return v;
+	}
+
+	double readDouble() throws IOException {
+	    double v = window(8).getDouble();
+	    pos += 8;
+	    return v;
+	}
+
+	/** Read n values into a new array of the given length */
+	int[] readInts(int n, int length) throws IOException {
+	    int[] a = new int[length];
+	    for( int i = 0; i < n; ){
+		ByteBuffer w = window(4);
+		int k = Math.min(n - i, fit(4));
+		w.asIntBuffer().get(a, i, k);
+		i += k;
+		pos += 4L * k;
+	    }
+	    return a;
+	}
+
+	/** Read n values into a new array of the given length */
+	long[] readLongs(int n, int length) throws IOException {
+	    long[] a = new long[length];
+	    for( int i = 0; i < n; ){
+		ByteBuffer w = window(8);
+		int k = Math.min(n - i, fit(8));
+		w.asLongBuffer().get(a, i, k);
+		i += k;
+		pos += 8L * k;
+	    }
+	    return a;
+	}
+
+	/** Read n values into a new array of the given length */
+	double[] readDoubles(int n, int length) throws IOException {
+	    double[] a = new double[length];
+	    for( int i = 0; i < n; ){
+		ByteBuffer w = window(8);
+		int k = Math.min(n - i, fit(8));
+		w.asDoubleBuffer().get(a, i, k);
+		i += k;
+		pos += 8L * k;
+	    }
+	    return a;
+	}
+
+	/** Read n values into a new array of the given length */
+	float[] readFloats(int n, int length) throws IOException {
+	    float[] a = new float[length];
+	    for( int i = 0; i < n; ){
+		ByteBuffer w = window(4);
+		int k = Math.min(n - i, fit(4));
+		w.asFloatBuffer().get(a, i, k);
+		i += k;
+		pos += 4L * k;
+	    }
+	    return a;
+	}
+
+	/** Read n values into a new array of the given length */
+	byte[] readBytes(int n, int length) throws IOException {
+	    byte[] a = new byte[length];
+	    for( int i = 0; i < n; ){
+		ByteBuffer w = window(1);
+		int k = Math.min(n - i, fit(1));
+		w.get(a, i, k);
+		i += k;
+		pos += k;
+	    }
+	    return a;
+	}
+
+	/** Read a string written by Writer.writeString() */
+	String readString() throws IOException {
+	    int index = readInt();
+	    if( index == -1 ) return null;
+	    if( index < 0 || index >= strings.length ) throw new IOException("Map snapshot corrupt: bad string");
+	    return strings[index];
+	}
+
+	/**
+	 * Read tags written by Writer.writeTags().
+	 * @return the packed tags, see TagDictionary; null for none.
+	 */
+	int[] readTagArray() throws IOException {
+	    int count = readInt();
+	    if( count == 0 ) return null;
+	    if( count < 0 ) throw new IOException("Map snapshot corrupt: bad tag count");
+	    int[] tags = new int[2 * count];
+	    for( int i = 0; i < tags.length; i++ ){
+		int index = readInt();
+		if( index < 0 || index >= strings.length ) throw new IOException("Map snapshot corrupt: bad tag");
+		if( tagIds[index] == TagDictionary.MISSING ){ tagIds[index] = TagDictionary.intern(strings[index]); }
+		tags[i] = tagIds[index];
+	    }
+	    return tags;
+	}
+
+	/** Read the string table */
+	void readStrings() throws IOException {
+	    strings = new String[readInt()];
+	    for( int i = 0; i < strings.length; i++ ){
+		int length = readInt();
+		strings[i] = new String(readBytes(length, length), StandardCharsets.UTF_8);
+	    }
+	    tagIds = new int[strings.length];
+	    Arrays.fill(tagIds, TagDictionary.MISSING);
+	}
+    }
+
+}
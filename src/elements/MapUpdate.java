@@ -0,0 +1,232 @@
+package elements;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A set of changes to finalized map data, made in place: nodes, ways and
+ * relations created, modified or deleted, as an osmChange file lists
+ * them (see OSMChangeReader). The elements are changed right away; what
+ * was derived from them when the data was finalized (the ways of each
+ * node, the shared nodes, the road graph and the names) is repaired by
+ * finish(), for the elements that were touched only.
+ *
+ * Indexes are never reused: a deleted node keeps its index, flagged as
+ * deleted, and a deleted way or relation stays in the lists without
+ * nodes, members or tags. Created elements get the next indexes.
+ * Get one from MapData.update().
+ */
+public class MapUpdate {
+
+    private MapData data;
+    private NodeManager nodeManager;
+    private WayManager wayManager;
+    private RelationManager relationManager;
+
+    /** The nodes of the changed ways before the change, and the created and deleted nodes */
+    private int[] touched;
+    private int touchedCount;
+
+    /** The nodes that were moved */
+    private int[] moved;
+    private int movedCount;
+
+    /** The nodes created or modified; their names are set again */
+    private int[] named;
+    private int namedCount;
+
+    /** The indexes of the ways created, modified or deleted */
+    private int[] changedWays;
+    private int changedCount;
+
+    /** The names of the changed ways before the change, by way index */
+    private HashMap<Integer, String> oldNames;
+
+    /** If a way was deleted, so that relations must lose it */
+    private boolean waysDeleted;
+
+    /** If finish() was called */
+    private boolean finished;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param data The finalized map data to change.
+     */
+    MapUpdate(MapData data){
+	this.data = data;
+	nodeManager = data.getNodeManager();
+	wayManager = data.getWayManager();
+	relationManager = data.getRelationManager();
+	touched = new int[16];
+	moved = new int[16];
+	named = new int[16];
+	changedWays = new int[16];
+	oldNames = new HashMap<Integer, String>();
+    }
+
+    /** Add a value to one of the lists; returns the list, grown if needed */
+    private static int[] add(int[] list, int count, int value){
+	if( count == list.length ){ list = Arrays.copyOf(list, count * 2); }
+	list[count] = value;
+	return list;
+    }
+
+    /** Check that finish() was not called yet */
+    private void checkOpen(){
+	if( finished ) throw new IllegalStateException("Map update is finished");
+    }
+
+    /**
+     * Create a node. A node that exists already is modified instead.
+     * @return the node, to add its tags to.
+     */
+    public Node createNode(long id, double lat, double lon){
+	checkOpen();
+	if( nodeManager.indexOf(id) != LongIntMap.MISSING ) return modifyNode(id, lat, lon);
+	Node n = nodeManager.newNode(id, lat, lon);
+	touched = add(touched, touchedCount++, n.getIndex());
+	named = add(named, namedCount++, n.getIndex());
+	return n;
+    }
+
+    /**
+     * Modify a node: move it, and remove its tags, to be given the new
+     * ones. A node that does not exist is created instead.
+     * @return the node, to add its tags to.
+     */
+    public Node modifyNode(long id, double lat, double lon){
+	checkOpen();
+	int index = nodeManager.indexOf(id);
+	if( index == LongIntMap.MISSING ) return createNode(id, lat, lon);
+	if( nodeManager.getLatitude(index) != lat || nodeManager.getLongitude(index) != lon ){
+	    nodeManager.moveNode(index, lat, lon);
+	    moved = add(moved, movedCount++, index);
+	}
+	nodeManager.clearTags(index);
+	named = add(named, namedCount++, index);
+	return nodeManager.getNodeByIndex(index);
+    }
+
+    /** Delete a node, if it exists. */
+    public void deleteNode(long id){
+	checkOpen();
+	int index = nodeManager.indexOf(id);
+	if( index == LongIntMap.MISSING ) return;
+	nodeManager.deleteNode(index);
+	touched = add(touched, touchedCount++, index);
+    }
+
+    /**
+     * Create a way. A way that exists already is modified instead.
+     * @return the way, to add its nodes and tags to.
+     */
+    public Way createWay(long id){
+	checkOpen();
+	if( wayManager.getWay(id) != null ) return modifyWay(id);
+	Way w = wayManager.newWay(id);
+	changedWays = add(changedWays, changedCount++, w.getIndex());
+	oldNames.put(w.getIndex(), null);
+	return w;
+    }
+
+    /**
+     * Modify a way: remove its nodes and tags, to be given the new ones.
+     * A way that does not exist is created instead.
+     * @return the way, to add its nodes and tags to.
+     */
+    public Way modifyWay(long id){
+	checkOpen();
+	Way w = wayManager.getWay(id);
+	if( w == null ) return createWay(id);
+	change(w);
+	w.reset(false);
+	return w;
+    }
+
+    /** Delete a way, if it exists. */
+    public void deleteWay(long id){
+	checkOpen();
+	Way w = wayManager.getWay(id);
+	if( w == null ) return;
+	change(w);
+	w.reset(true);
+	wayManager.unmapWay(w);
+	waysDeleted = true;
+    }
+
+    /** Remember the nodes and name of a way before it is changed */
+    private void change(Way w){
+	for( int j = 0; j < w.getNodeCount(); j++ ){
+	    touched = add(touched, touchedCount++, w.getNodeIndex(j));
+	}
+	changedWays = add(changedWays, changedCount++, w.getIndex());
+	if( !oldNames.containsKey(w.getIndex()) ) oldNames.put(w.getIndex(), w.getName());
+    }
+
+    /**
+     * Create a relation. A relation that exists already is modified instead.
+     * @return the relation, to add its members and tags to.
+     */
+    public Relation createRelation(long id){
+	checkOpen();
+	if( relationManager.getRelation(id) != null ) return modifyRelation(id);
+	return data.newRelation(id);
+    }
+
+    /**
+     * Modify a relation: remove its members and tags, to be given the
+     * new ones. A relation that does not exist is created instead.
+     * @return the relation, to add its members and tags to.
+     */
+    public Relation modifyRelation(long id){
+	checkOpen();
+	Relation r = relationManager.getRelation(id);
+	if( r == null ) return createRelation(id);
+	r.reset(false);
+	return r;
+    }
+
+    /** Delete a relation, if it exists. */
+    public void deleteRelation(long id){
+	checkOpen();
+	Relation r = relationManager.getRelation(id);
+	if( r == null ) return;
+	r.reset(true);
+	relationManager.unmapRelation(r);
+    }
+
+    /**
+     * Repair what was derived from the elements that changed: the ways
+     * of their nodes, the shared nodes, the road graph, and the names.
+     * The update can not be used after this.
+     */
+    public void finish(){
+	checkOpen();
+	finished = true;
+	wayManager.repairIncidence(distinct(changedWays, changedCount),
+		distinct(touched, touchedCount), distinct(moved, movedCount));
+	int[] nodes = distinct(named, namedCount);
+	for( int v : nodes ){
+	    if( !nodeManager.isDeleted(v) ) nodeManager.updateName(v);
+	}
+	for( Integer w : oldNames.keySet() ){
+	    wayManager.renameWay(wayManager.getWayByIndex(w), oldNames.get(w));
+	}
+	if( waysDeleted ) relationManager.removeDeletedMembers();
+    }
+
+    /** Get the values of a list, increasing and once each */
+    private static int[] distinct(int[] list, int count){
+	int[] a = Arrays.copyOf(list, count);
+	Arrays.sort(a);
+	int n = 0;
+	for( int i = 0; i < a.length; i++ ){
+	    if( n == 0 || a[n-1] != a[i] ) a[n++] = a[i];
+	}
+	return Arrays.copyOf(a, n);
+    }
+
+}
@@ -1,82 +1,100 @@
 package elements;
 import java.util.ArrayList;
 
-import org.xml.sax.Attributes;
-
 /**
  * A node. Determined by the longitude and latitude at which it is located.
  * A location "point" in a sense. It is contained in one or more Ways supposedly.
+ * 
+ * A Node is a lightweight view of one index of the NodeManager. The id, 
+ * location, name, tags and neighbors of the node all live in the primitive 
+ * arrays of the NodeManager; two Node objects of the same index are equal.
  */
 public class Node extends Element{
 
-    /** The id of this object, unique */
-    private String id; 
-
-    /** If it's an important node, it has a name */
-    private String name; // possibly null
-
-    /** The longitude of the node */
-    private double longitude;
-
-    /** The latitude of the node */
-    private double latitude;
-
-    /** Attributes associated with this node object */
-    private Attributes attributes;
+    /** The manager whose arrays hold this node's data */
+    private NodeManager manager;
 
-    /** "Neighbors" */
-    private ArrayList<Node> neighbors; 
-
-    /** If this is a shared node */
-    private boolean isShared = false;
+    /** The dense index of this node, in order of creation */
+    private int index;
 
 
     // --- end of fields --- //
 
     /** 
-     * Constructor for a node object.
-     * @param atts Associated attributes.
-     * @param id The ID of this node object.
+     * Constructor for a node object. Called by the NodeManager.
+     * @param manager The NodeManager holding the node's data.
+     * @param index The dense index assigned by the NodeManager.
      */
-    public Node( String id, Attributes atts ){ 
-	this.id = id;
-	attributes = atts;
-	longitude = Double.parseDouble(attributes.getValue("lon"));
-	latitude = Double.parseDouble(attributes.getValue("lat"));
-	neighbors = new ArrayList<Node>();
+    public Node( NodeManager manager, int index ){ 
+	this.manager = manager;
+	this.index = index;
     }
 
     /** Get the id of this object. */
-    public String getID(){ return id; }
+    public long getID(){ return manager.getID(index); }
+
+    /** Get the dense index of this object. */
+    public int getIndex(){ return index; }
 
     /** Set name of this object. */
-    public void setName(String n){ name = n; }
+    public void setName(String n){ manager.setName(index, n); }
 
     /** Get the id of this object. */
-    public String getName(){ return name; }
+    public String getName(){ return manager.getName(index); }
 
-    /** Add a neighbor */
-    public void addNeighbor( Node n ){ neighbors.add(n); }
+    /** Add a tag to this node. Tags are kept by the NodeManager. */
+    @Override
+    public void addTag( String key, String value ){ 
+	manager.addTag(index, key, value);
+    }
+
+    /** Get a tag of this node. Tags are kept by the NodeManager. */
+    @Override
+    public String getTag( String key ){ 
+	return manager.getTag(index, key);
+    }
+
+    /** Set where the tags that were not kept can be read. Kept by the NodeManager. */
+    @Override
+    public void setTagSource( TagSource source, long offset ){ 
+	manager.setTagSource(index, source, offset);
+    }
+
+    @Override
+    public int getTagCount(){ return manager.getTagCount(index); }
+
+    @Override
+    public String getTagKey( int i ){ return manager.getTagKey(index, i); }
+
+    @Override
+    public String getTagValue( int i ){ return manager.getTagValue(index, i); }
 
     /** Get the neighbors of this node */
-    public ArrayList<Node> getNeighbors(){ return neighbors; }
+    public ArrayList<Node> getNeighbors(){ 
+	int count = manager.getNeighborCount(index);
+	ArrayList<Node> neighbors = new ArrayList<Node>(count);
+	for( int k = 0; k < count; k++ ){
+	    neighbors.add(manager.getNodeByIndex(manager.getNeighbor(index, k)));
+	}
+	return neighbors; 
+    }
 
     /**
      * Get the longitude location of the node.
      */
-    public double getLongitude(){ return longitude; }
+    public double getLongitude(){ return manager.getLongitude(index); }
 
     /**
      * Get the latitude location of the node.
      */
-    public double getLatitude(){ return latitude; }
+    public double getLatitude(){ return manager.getLatitude(index); }
 
     /**
      * Set this node as a shared node.
      * @param true if this node exists in more than one way.
      */
     public void setShared(boolean b){
-	isShared = b;
+	manager.setShared(index, b);
     }
 
     /**
@@ -84,32 +102,16 @@ public class Node extends Element{
      * @return true if this node exists in more than one way.
      */
     public boolean isShared(){ 
-	return isShared; 
+	return manager.isShared(index); 
     }
 
     /** 
-     * Compute distance between two nodes. Uses pythagorean.
-     * Miles per longitude and latitude formula is from:
-     * www.answers.google.com/answers/threadview?id=577262
+     * Compute distance between two nodes: the great circle
+     * distance; see NodeManager.distance().
      * @return the distance between two nodes in miles. 
      */
     public double distFrom(Node n2){
-
-	double lon2 = n2.getLongitude();
-	double lat2 = n2.getLatitude();	
-
-	double EARTH_RADIUS = 3963.1676;
-	double MILES_PER_LAT = 68.703;
-	double MILES_PER_LON = (Math.PI/180)* EARTH_RADIUS* Math.cos(latitude);
-
-	double dLon = Math.abs(lon2 - longitude)* MILES_PER_LON;
-	double dLat = Math.abs(lat2 - latitude)* MILES_PER_LAT;
-
-	double x = Math.pow(dLon, 2);
-	double y = Math.pow(dLat, 2);
-	double z = Math.sqrt(x + y);
-
-	return z;
+	return manager.distance(index, n2.index);
     }
 
     /** 
@@ -118,32 +120,24 @@ public class Node extends Element{
      * the pythagorean formula in coordinate values.
      */
     public double distFrom(double lon, double lat){
-
-	if(longitude == lon && latitude == lat) return 0;
-
-	double dLon = Math.abs(longitude - lon);
-	double dLat = Math.abs(latitude - lat);
-
-	double x = Math.pow(dLon, 2);
-	double y = Math.pow(dLat, 2);
-	double z = Math.sqrt(x + y);
-
-	return z;
+	return manager.distFrom(index, lon, lat);
     }
 
     /** To string method. */
     public String toString(){
-	return "Node: " + id + "; " + " Longitude: " + longitude + ", Latitude: " + latitude;
+	return "Node: " + getID() + "; " + " Longitude: " + getLongitude() + ", Latitude: " + getLatitude();
     }
 
     /**
      * "equals" is defined by having the same ID number.
-     * @param otherString 
-     * @return true if otherRef and this obj are equal.
+     * @param other 
+     * @return true if other and this obj are equal.
      */
-    public boolean equals(String otherString) {
-	if (otherString.equals(id)) {
-	    return true;
+    @Override
+    public boolean equals(Object other) {
+	if (other instanceof Node) {
+	    Node n = (Node) other;
+	    return n.index == index && n.manager == manager;
 	}
 	return false;
     }
@@ -153,8 +147,7 @@ public class Node extends Element{
      */
     @Override
     public int hashCode() {
-	int hashC = Integer.parseInt(id);
-	return hashC;
+	return index;
     }
 
 }
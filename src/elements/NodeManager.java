@@ -1,24 +1,86 @@
 package elements;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.xml.sax.Attributes;
 
 
 /**
  * Class to create and manage Node objects.
+ * 
+ * Node data is stored column-wise: parallel primitive arrays indexed by
+ * the node's dense index hold the id, latitude, longitude, flags and name
+ * of every node. Node objects are created on demand as views of an index,
+ * so hot loops such as closestNode() read contiguous doubles only.
  */
 public class NodeManager {
 
+    /** Flag bit: the node exists in more than one way */
+    private static final byte SHARED = 1;
+
+    /** Flag bit: the node was deleted by a MapUpdate; its index is not reused */
+    private static final byte DELETED = 2;
+
+    /** Number of nodes created. Columns below are valid up to count. */
+    private int count;
+
     /** 
-     * HashMap for mapping nodes to their ID. 
+     * Map from node ID to the dense index of the node.
      * @key The node ID.
-     * @value The node object
+     * @value The index of the node.
+     */
+    private LongIntMap idIndexMap;
+
+    /** The node ids, by index */
+    private long[] ids;
+
+    /** The node latitudes, by index */
+    private double[] latitudes;
+
+    /** The node longitudes, by index */
+    private double[] longitudes;
+
+    /** Flag bits of the nodes, by index */
+    private byte[] flags;
+
+    /** Index into nameList of the node's name, or -1, by index */
+    private int[] nameIndex;
+
+    /** The distinct names given to nodes, each once */
+    private ArrayList<String> nameList;
+
+    /** Index of each name in nameList */
+    private HashMap<String, Integer> nameIds;
+
+    /** Packed tags of the nodes, by index, see TagDictionary; null for untagged nodes */
+    private int[][] tags;
+
+    /** 
+     * Nodes with tags that were not kept, see TagSource: their indexes,
+     * increasing, and where their tags can be read. Few nodes have
+     * tags, so these are not columns.
      */
-    private HashMap<String, Node> nodeMap;
+    private int[] lazyIndex;
+    private long[] lazyOffset;
+    private TagSource[] lazySource;
+
+    /** Number of entries in lazyIndex */
+    private int lazyCount;
+
+    /** Number of nodes deleted, by change files; their indexes stay in use */
+    private int deletedCount;
+
+    /** The graph of the nodes and way segments; null until finalized */
+    private RoadGraph roadGraph;
+
+    /** The contraction hierarchy of the road graph; null if none */
+    private ContractionHierarchy hierarchy;
 
     /** 
      * HashMap for mapping nodes to their ID
@@ -32,10 +94,10 @@ public class NodeManager {
      * @key The longitude value of the node
      * @value The node object ID.
      */
-    private HashMap<Double, String> longitudeMap;
+    private HashMap<Double, Long> longitudeMap;
 
     /** Storing nodes by their latitude and ID */
-    private HashMap<Double, String> latitudeMap;
+    private HashMap<Double, Long> latitudeMap;
 
 
     // --- end of fields --- //
@@ -44,22 +106,66 @@ public class NodeManager {
      * The constructor for NodeManager.
      */
     public NodeManager() { 
-	nodeMap = new HashMap<String, Node>();
-	longitudeMap = new HashMap<Double, String>();
-	latitudeMap = new HashMap<Double, String>();
+	idIndexMap = new LongIntMap();
+	allocate(1024);
+	lazyIndex = new int[16];
+	lazyOffset = new long[16];
+	lazySource = new TagSource[16];
+	nameList = new ArrayList<String>();
+	nameIds = new HashMap<String, Integer>();
+	longitudeMap = new HashMap<Double, Long>();
+	latitudeMap = new HashMap<Double, Long>();
 	nameMap = new HashMap<String, Node>();
     }
 
+    /** Grow (or create) the columns to the given capacity. */
+    private void allocate(int capacity){
+	if( ids == null ){
+	    ids = new long[capacity];
+	    latitudes = new double[capacity];
+	    longitudes = new double[capacity];
+	    flags = new byte[capacity];
+	    nameIndex = new int[capacity];
+	    tags = new int[capacity][];
+	} else {
+	    ids = Arrays.copyOf(ids, capacity);
+	    latitudes = Arrays.copyOf(latitudes, capacity);
+	    longitudes = Arrays.copyOf(longitudes, capacity);
+	    flags = Arrays.copyOf(flags, capacity);
+	    nameIndex = Arrays.copyOf(nameIndex, capacity);
+	    tags = Arrays.copyOf(tags, capacity);
+	}
+    }
+
     /** 
      * Create and add a new Node object.
      * @param atts The attributes of the node.
      * @return the newly created node with the attributes.
      */
     public Node newNode(Attributes atts){ 
-	String id = atts.getValue("id");
-	Node n = new Node(id, atts);
-	nodeMap.put(id, n);
-	return n;
+	long id = Long.parseLong(atts.getValue("id"));
+	double lat = Double.parseDouble(atts.getValue("lat"));
+	double lon = Double.parseDouble(atts.getValue("lon"));
+	return newNode(id, lat, lon);
+    }
+
+    /** 
+     * Create and add a new Node object. The node is given
+     * the next dense index.
+     * @param id The ID of the node.
+     * @param lat The latitude of the node.
+     * @param lon The longitude of the node.
+     * @return the newly created node.
+     */
+    public Node newNode(long id, double lat, double lon){ 
+	if( count == ids.length ){ allocate(count * 2); }
+	int index = count++;
+	ids[index] = id;
+	latitudes[index] = lat;
+	longitudes[index] = lon;
+	nameIndex[index] = -1;
+	idIndexMap.put(id, index);
+	return new Node(this, index);
     }
 
     /**
@@ -67,8 +173,244 @@ public class NodeManager {
      * @param ref The ID of the node.
      * @return null if the node does not exist.
      */
-    public Node getNode(String ref){  
-	return nodeMap.get(ref);
+    public Node getNode(long ref){  
+	int index = idIndexMap.get(ref);
+	if( index == LongIntMap.MISSING ) return null;
+	return new Node(this, index);
+    }
+
+    /**
+     * Get the dense index of a node given it's ID.
+     * @param ref The ID of the node.
+     * @return the index, or LongIntMap.MISSING if the node does not exist.
+     */
+    public int indexOf(long ref){
+	return idIndexMap.get(ref);
+    }
+
+    /**
+     * Get a node given it's dense index.
+     * @param index The index of the node.
+     */
+    public Node getNodeByIndex(int index){
+	return new Node(this, index);
+    }
+
+    /** Get the number of nodes: the bound of their indexes, deleted nodes included. */
+    public int size(){ return count; }
+
+    /** Get the number of nodes that are not deleted. */
+    public int getNodeCount(){ return count - deletedCount; }
+
+    /** Get the id of the node at index. */
+    public long getID(int index){ return ids[index]; }
+
+    /** Get the latitude of the node at index. */
+    public double getLatitude(int index){ return latitudes[index]; }
+
+    /** Get the longitude of the node at index. */
+    public double getLongitude(int index){ return longitudes[index]; }
+
+    /** Check if the node at index exists in more than one way. */
+    public boolean isShared(int index){ return (flags[index] & SHARED) != 0; }
+
+    /** Set if the node at index exists in more than one way. */
+    public void setShared(int index, boolean b){
+	if( b ){ 
+	    flags[index] |= SHARED; 
+	} else { 
+	    flags[index] &= ~SHARED; 
+	}
+    }
+
+    /** Check if the node at index was deleted by a MapUpdate. */
+    public boolean isDeleted(int index){ return (flags[index] & DELETED) != 0; }
+
+    /** Move the node at index. Used by MapUpdate. */
+    void moveNode(int index, double lat, double lon){
+	latitudes[index] = lat;
+	longitudes[index] = lon;
+    }
+
+    /** Remove all the tags of the node at index, and forget its TagSource. Used by MapUpdate. */
+    void clearTags(int index){
+	tags[index] = null;
+	int lazy = findLazy(index);
+	if( lazy >= 0 ) lazySource[lazy] = null;
+    }
+
+    /** 
+     * Delete the node at index: it can no longer be found by id, and has
+     * no tags or name. Used by MapUpdate.
+     */
+    void deleteNode(int index){
+	if( (flags[index] & DELETED) == 0 ) deletedCount++;
+	idIndexMap.remove(ids[index]);
+	flags[index] = DELETED;
+	clearTags(index);
+	updateName(index);
+    }
+
+    /** 
+     * Set the name of the node at index from its tags again, and repair
+     * the nodes by name. Used by MapUpdate, after the tags changed.
+     */
+    void updateName(int index){
+	String old = getName(index);
+	String name = getTag(index, "name");
+	if( old != null && !old.equals(name) ){
+	    Node named = nameMap.get(old);
+	    if( named != null && named.getIndex() == index ) nameMap.remove(old);
+	}
+	setName(index, name);
+	if( name != null ) nameMap.put(name, new Node(this, index));
+    }
+
+    /** Get the name of the node at index, or null. */
+    public String getName(int index){
+	int n = nameIndex[index];
+	if( n == -1 ) return null;
+	return nameList.get(n);
+    }
+
+    /** Set the name of the node at index. */
+    public void setName(int index, String name){
+	if( name == null ){
+	    nameIndex[index] = -1;
+	    return;
+	}
+	Integer n = nameIds.get(name);
+	if( n == null ){
+	    n = nameList.size();
+	    nameIds.put(name, n);
+	    nameList.add(name);
+	}
+	nameIndex[index] = n;
+    }
+
+    /** Add a tag (k, v) to the node at index. */
+    public void addTag(int index, String key, String value){
+	tags[index] = TagDictionary.put(tags[index], key, value);
+    }
+
+    /** 
+     * Get a tag of the node at index.
+     * @return the value, or null if the node has no such tag.
+     */
+    public String getTag(int index, String key){
+	int lazy = findLazy(index);
+	if( lazy >= 0 && !lazySource[lazy].isKept(key) ) loadTags(index, lazy);
+	return TagDictionary.get(tags[index], key);
+    }
+
+    /** Get the number of tags of the node at index, reading them all if some were not kept. */
+    public int getTagCount(int index){ 
+	int lazy = findLazy(index);
+	if( lazy >= 0 ) loadTags(index, lazy);
+	return tags[index] == null ? 0 : tags[index].length / 2;
+    }
+
+    /**
+     * Set where the tags of the node at index that were not kept can be read.
+     * @param source The source, see TagSource.
+     * @param offset The offset of the node in the source.
+     */
+    public void setTagSource(int index, TagSource source, long offset){
+	int k = Arrays.binarySearch(lazyIndex, 0, lazyCount, index);
+	if( k < 0 ){ // nodes are loaded in index order, so this is mostly an append
+	    k = -k - 1;
+	    if( lazyCount == lazyIndex.length ){
+		lazyIndex = Arrays.copyOf(lazyIndex, lazyCount * 2);
+		lazyOffset = Arrays.copyOf(lazyOffset, lazyCount * 2);
+		lazySource = Arrays.copyOf(lazySource, lazyCount * 2);
+	    }
+	    System.arraycopy(lazyIndex, k, lazyIndex, k + 1, lazyCount - k);
+	    System.arraycopy(lazyOffset, k, lazyOffset, k + 1, lazyCount - k);
+	    System.arraycopy(lazySource, k, lazySource, k + 1, lazyCount - k);
+	    lazyCount++;
+	}
+	lazyIndex[k] = index;
+	lazyOffset[k] = offset;
+	lazySource[k] = source;
+    }
+
+    /** Find the node at index in lazyIndex; -1 if it is not there, or its tags were read. */
+    private int findLazy(int index){
+	if( lazyCount == 0 ) return -1;
+	int k = Arrays.binarySearch(lazyIndex, 0, lazyCount, index);
+	return k >= 0 && lazySource[k] != null ? k : -1;
+    }
+
+    /** Read all the tags of the node at index from its TagSource. */
+    private void loadTags(int index, int lazy){
+	TagSource source = lazySource[lazy];
+	lazySource[lazy] = null;
+	source.readTags(lazyOffset[lazy], getNodeByIndex(index));
+    }
+
+    /** Get the key of the i-th tag of the node at index. */
+    public String getTagKey(int index, int i){ return TagDictionary.string(tags[index][2*i]); }
+
+    /** Get the value of the i-th tag of the node at index. */
+    public String getTagValue(int index, int i){ return TagDictionary.string(tags[index][2*i+1]); }
+
+    /** Get the graph of the nodes and way segments; null until the data is finalized. */
+    public RoadGraph getRoadGraph(){ return roadGraph; }
+
+    /** Set the graph of the nodes and way segments; a hierarchy of the old one is dropped. */
+    void setRoadGraph(RoadGraph graph){ 
+	roadGraph = graph; 
+	hierarchy = null;
+    }
+
+    /** Get the contraction hierarchy of the road graph; null if there is none. */
+    public ContractionHierarchy getHierarchy(){ return hierarchy; }
+
+    /**
+     * Set the contraction hierarchy of the road graph. It is dropped
+     * when the graph changes, as when a change file is applied.
+     */
+    public void setHierarchy(ContractionHierarchy hierarchy){ this.hierarchy = hierarchy; }
+
+    /** Get the number of neighbors of the node at index. */
+    public int getNeighborCount(int index){ 
+	return roadGraph == null ? 0 : roadGraph.getDegree(index);
+    }
+
+    /** Get the index of the k-th neighbor of the node at index. */
+    public int getNeighbor(int index, int k){ 
+	return roadGraph.getTarget(roadGraph.firstEdge(index) + k);
+    }
+
+    /** Radius of the earth, in miles */
+    public static final double EARTH_RADIUS = 3963.1676;
+
+    /** 
+     * Compute distance between two nodes: the great circle distance, by
+     * the haversine formula. It is the same both ways, and no path
+     * between the nodes is shorter, so it is a lower bound of the length
+     * of a route between them.
+     * @return the distance between the nodes at index i and j in miles. 
+     */
+    public double distance(int i, int j){
+	double lat1 = Math.toRadians(latitudes[i]);
+	double lat2 = Math.toRadians(latitudes[j]);
+	double sinLat = Math.sin((lat2 - lat1) / 2);
+	double sinLon = Math.sin(Math.toRadians(longitudes[j] - longitudes[i]) / 2);
+
+	double h = sinLat * sinLat + Math.cos(lat1) * Math.cos(lat2) * sinLon * sinLon;
+	return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+    /** 
+     * Compute distance from a node to a coordinate.
+     * @return the distance using the pythagorean 
+     * formula in coordinate values.
+     */
+    public double distFrom(int index, double lon, double lat){
+	double dLon = longitudes[index] - lon;
+	double dLat = latitudes[index] - lat;
+	return Math.sqrt(dLon * dLon + dLat * dLat);
     }
 
     /**
@@ -82,16 +424,39 @@ public class NodeManager {
     }
 
     /**
-     * Get all the nodes objects themselves.
+     * Get all the nodes objects themselves, but the deleted ones.
      * @return set of all the nodes.
      */
-    public Collection<Node> getNodeSet(){ return nodeMap.values(); }
+    public Collection<Node> getNodeSet(){ 
+	if( deletedCount > 0 ){
+	    ArrayList<Node> nodes = new ArrayList<Node>(getNodeCount());
+	    for( int i = 0; i < count; i++ ){
+		if( (flags[i] & DELETED) == 0 ) nodes.add(new Node(this, i));
+	    }
+	    return nodes;
+	}
+	return new AbstractList<Node>(){
+	    @Override
+	    public Node get(int index){ return new Node(NodeManager.this, index); }
+
+	    @Override
+	    public int size(){ return count; }
+	};
+    }
 
     /**
-     * Get all the nodes objects by their ID.
-     * @return set of all the nodes' IDs.
+     * Get all the nodes objects by their ID, but the deleted ones.
+     * @return all the nodes' IDs, in index order.
      */
-    public Set<String> getNodeIDs(){ return nodeMap.keySet(); }
+    public long[] getNodeIDs(){ 
+	if( deletedCount == 0 ) return Arrays.copyOf(ids, count);
+	long[] live = new long[getNodeCount()];
+	int n = 0;
+	for( int i = 0; i < count; i++ ){
+	    if( (flags[i] & DELETED) == 0 ) live[n++] = ids[i];
+	}
+	return live;
+    }
 
     /** 
      * Get all the nodes that have names; the important ones.
@@ -112,33 +477,126 @@ public class NodeManager {
     /** Store nodes by their longitude and latitude */
     public void organizeByLonLat(){
 	// I don't think I end up using longitude and latitude methods.
-	for(String id: nodeMap.keySet()){
-	    Node n = getNode(id);
-	    double lon = n.getLongitude();
-	    double lat = n.getLatitude();
-	    longitudeMap.put(lon, id);
-	    latitudeMap.put(lat, id);
+	for( int i = 0; i < count; i++ ){
+	    longitudeMap.put(longitudes[i], ids[i]);
+	    latitudeMap.put(latitudes[i], ids[i]);
 	}
     }
 
     /** Get the longitudeMap */
-    public HashMap<Double, String> getLongitudeMap(){
+    public HashMap<Double, Long> getLongitudeMap(){
 	return longitudeMap;
     }
 
     /** Get the latitudeMap */
-    public HashMap<Double, String> getByLatitudeMap(){
+    public HashMap<Double, Long> getByLatitudeMap(){
 	return latitudeMap;
     }
 
     /** Find the nodes with names; "important" nodes */
     public void genImportantNodes(){
-	for(Node n: nodeMap.values()){
-	    String name = n.getTag("name");
-	    if( name != null ){
-		n.setName(name);
-		nameMap.put(name, n);
+	genImportantNodes(ForkJoinPool.commonPool());
+    }
+
+    /** 
+     * Find the nodes with names, looking up the name tags in parallel
+     * on the pool, and adding the names in node order.
+     */
+    void genImportantNodes(ForkJoinPool pool){
+	final String[] names = new String[count];
+	ParallelRange.run(pool, count, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int i = lo; i < hi; i++ ){ names[i] = getTag(i, "name"); }
 	    }
+	});
+	for( int i = 0; i < count; i++ ){
+	    if( names[i] != null ){
+		setName(i, names[i]);
+		nameMap.put(names[i], new Node(this, i));
+	    }
+	}
+    }
+
+    /** Write the nodes to a snapshot. See MapSnapshot. */
+    void writeSnapshot(MapSnapshot.Writer out) throws IOException {
+	out.writeInt(count);
+	out.writeLongs(ids, count);
+	out.writeDoubles(latitudes, count);
+	out.writeDoubles(longitudes, count);
+	out.writeBytes(flags, count);
+	out.writeInts(nameIndex, count);
+	out.writeInt(nameList.size());
+	for( String name : nameList ){ out.writeString(name); }
+
+	int tagged = 0;
+	for( int i = 0; i < count; i++ ){
+	    if( tags[i] != null ) tagged++;
+	}
+	out.writeInt(tagged);
+	for( int i = 0; i < count; i++ ){
+	    if( tags[i] == null ) continue;
+	    out.writeInt(i);
+	    out.writeTags(tags[i]);
+	}
+	int lazy = 0;
+	for( int k = 0; k < lazyCount; k++ ){
+	    if( lazySource[k] != null ) lazy++;
+	}
+	out.writeInt(lazy);
+	for( int k = 0; k < lazyCount; k++ ){
+	    if( lazySource[k] == null ) continue;
+	    out.writeInt(lazyIndex[k]);
+	    out.writeLong(lazyOffset[k]);
+	}
+
+	idIndexMap.writeSnapshot(out);
+    }
+
+    /** Read the nodes from a snapshot, written by writeSnapshot(). */
+    void readSnapshot(MapSnapshot.Reader in) throws IOException {
+	count = in.readInt();
+	int capacity = Math.max(count, 1024);
+	ids = in.readLongs(count, capacity);
+	latitudes = in.readDoubles(count, capacity);
+	longitudes = in.readDoubles(count, capacity);
+	flags = in.readBytes(count, capacity);
+	deletedCount = 0;
+	for( int i = 0; i < count; i++ ){
+	    if( (flags[i] & DELETED) != 0 ) deletedCount++;
+	}
+	nameIndex = in.readInts(count, capacity);
+	int names = in.readInt();
+	nameList = new ArrayList<String>(names);
+	nameIds = new HashMap<String, Integer>(names * 2);
+	for( int i = 0; i < names; i++ ){
+	    String name = in.readString();
+	    nameList.add(name);
+	    if( !nameIds.containsKey(name) ) nameIds.put(name, i);
+	}
+
+	tags = new int[capacity][];
+	int tagged = in.readInt();
+	for( int k = 0; k < tagged; k++ ){
+	    int i = in.readInt();
+	    if( i < 0 || i >= count ) throw new IOException("Map snapshot corrupt: bad node index");
+	    tags[i] = in.readTagArray();
+	}
+	lazyCount = in.readInt();
+	lazyIndex = new int[Math.max(lazyCount, 16)];
+	lazyOffset = new long[lazyIndex.length];
+	lazySource = new TagSource[lazyIndex.length];
+	for( int k = 0; k < lazyCount; k++ ){
+	    lazyIndex[k] = in.readInt();
+	    lazyOffset[k] = in.readLong();
+	    lazySource[k] = in.getTagSource();
+	}
+
+	idIndexMap = LongIntMap.readSnapshot(in);
+
+	// as genImportantNodes() left it
+	nameMap.clear();
+	for( int i = 0; i < count; i++ ){
+	    if( nameIndex[i] != -1 ){ nameMap.put(nameList.get(nameIndex[i]), new Node(this, i)); }
 	}
     }
 
@@ -148,16 +606,20 @@ public class NodeManager {
      * @return the node closest to the parameters.
      */
     public Node closestNode(double lon, double lat){
-	Node minN = null;
+	int minN = -1;
 	double minDist = -1;
-	for(Node n: nodeMap.values()){
-	    double dist = n.distFrom(lon, lat);
-	    if( minN == null || dist < minDist ){
-		minN = n;
+	for( int i = 0; i < count; i++ ){
+	    if( (flags[i] & DELETED) != 0 ) continue;
+	    double dLon = longitudes[i] - lon;
+	    double dLat = latitudes[i] - lat;
+	    double dist = dLon * dLon + dLat * dLat; // squared, same order
+	    if( minN == -1 || dist < minDist ){
+		minN = i;
 		minDist = dist;
 	    }
 	}
-	return minN;
+	if( minN == -1 ) return null;
+	return new Node(this, minN);
     }
 
     /** 
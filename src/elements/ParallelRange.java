@@ -0,0 +1,73 @@
+package elements;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task that runs a loop body over a range of indexes, split
+ * in halves until the pieces are small, for the passes of
+ * MapData.finalizeData() and of HierarchyBuilder. The body must only
+ * write to what belongs to the indexes it is given.
+ */
+class ParallelRange extends RecursiveAction {
+
+    /** The body of the loop. */
+    interface Body {
+	/** Run the loop over the indexes [lo, hi). */
+	void run(int lo, int hi);
+    }
+
+    /** Ranges are not split below this many indexes. */
+    private static final int MIN_GRAIN = 1024;
+
+    private Body body;
+    private int lo;
+    private int hi;
+    private int grain;
+
+
+    // --- end of fields --- //
+
+    private ParallelRange(Body body, int lo, int hi, int grain){
+	this.body = body;
+	this.lo = lo;
+	this.hi = hi;
+	this.grain = grain;
+    }
+
+    /**
+     * Run a loop body over the indexes [0, n) on a pool, and wait for it.
+     * @param pool The pool to run on.
+     * @param n The number of indexes.
+     * @param body The body of the loop.
+     */
+    static void run(ForkJoinPool pool, int n, Body body){
+	run(pool, n, MIN_GRAIN, body);
+    }
+
+    /**
+     * Run a loop body over the indexes [0, n) on a pool, and wait for it,
+     * with ranges of at least minGrain indexes; fewer than MIN_GRAIN for
+     * a body that is slow for each index.
+     * @param pool The pool to run on.
+     * @param n The number of indexes.
+     * @param minGrain The least number of indexes of a range.
+     * @param body The body of the loop.
+     */
+    static void run(ForkJoinPool pool, int n, int minGrain, Body body){
+	if( n == 0 ) return;
+	int grain = Math.max(minGrain, n / (pool.getParallelism() * 8));
+	pool.invoke(new ParallelRange(body, 0, n, grain));
+    }
+
+    @Override
+    protected void compute(){
+	if( hi - lo <= grain ){
+	    body.run(lo, hi);
+	    return;
+	}
+	int mid = (lo + hi) >>> 1;
+	invokeAll(new ParallelRange(body, lo, mid, grain), new ParallelRange(body, mid, hi, grain));
+    }
+
+}
@@ -2,37 +2,55 @@ package elements;
 
 import java.util.ArrayList;
 
-import org.xml.sax.Attributes;
-
 /**
  * Relation class representing associations of ways ( members ) and geographical areas.
  */
 public class Relation extends Element{
 
     /** unique ID of this object */
-    private String id;
+    private long id;
+
+    /** The dense index of this relation, in order of creation */
+    private int index;
 
     /** The name of the Relation object (may be null) */
     private String name;
 
-    /** The attributes of the Relation object */
-    private Attributes attributes;
-
     /** The members of the Relation object*/
     private ArrayList<Way> members;
 
+    /** If this relation was deleted by a MapUpdate; it has no members or tags then */
+    private boolean deleted;
+
     /**
      * The constructor;
-     * @param atts The attributes of this Relation
+     * @param id The ID of this Relation
+     * @param index The dense index assigned by the RelationManager
      */
-    public Relation( String id, Attributes atts ){ 
+    public Relation( long id, int index ){ 
 	this.id = id;
-	attributes = atts;
+	this.index = index;
 	members = new ArrayList<Way>();
     }
 
     /** Get the id of this object. */
-    public String getID(){ return id; }
+    public long getID(){ return id; }
+
+    /** Get the dense index of this object. */
+    public int getIndex(){ return index; }
+
+    /** Check if this relation was deleted by a MapUpdate. */
+    public boolean isDeleted(){ return deleted; }
+
+    /** 
+     * Remove the members and tags of this relation, to be given new
+     * ones, or to delete it. Used by MapUpdate.
+     */
+    void reset(boolean delete){
+	members.clear();
+	clearTags();
+	deleted = delete;
+    }
 
     /**
      * Add the relation object's members.
@@ -71,12 +89,13 @@ public class Relation extends Element{
 
     /**
      * "equals" is defined by having the same ID number.
-     * @param otherString
-     * @return true if otherRef and this obj are equal.
+     * @param other
+     * @return true if other and this obj are equal.
      */
-    public boolean equals(String otherString) {
-	if (otherString.equals(id)) {
-	    return true;
+    @Override
+    public boolean equals(Object other) {
+	if (other instanceof Relation) {
+	    return ((Relation) other).id == id;
 	}
 	return false;
     }
@@ -86,8 +105,7 @@ public class Relation extends Element{
      */
     @Override
     public int hashCode() {
-	int hashC = Integer.parseInt(id);
-	return hashC;
+	return Long.hashCode(id);
     }
 
 }
@@ -1,5 +1,7 @@
 package elements;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Set;
@@ -8,12 +10,15 @@ import org.xml.sax.Attributes;
 
 /**
  * Class for creating and managing Relation objects. 
- * Includes a HashMap to map relations to their proper ID. 
+ * Includes a map from relation ID to the relation's dense index. 
  */
 public class RelationManager {
 
-    /** HashMap for mapping relations to their IDs */
-    private HashMap<String, Relation> relationMap;
+    /** Map from relation ID to the dense index of the relation */
+    private LongIntMap idIndexMap;
+
+    /** All relations, by their dense index */
+    private ArrayList<Relation> relationList;
 
     /** HashMap for mapping relations to their names (if any) */
     private HashMap<String, Relation> relationNameMap;
@@ -25,7 +30,8 @@ public class RelationManager {
      * that will manage Relation objects.
      */
     public RelationManager(){
-	relationMap = new HashMap<String, Relation>();
+	idIndexMap = new LongIntMap();
+	relationList = new ArrayList<Relation>();
 	relationNameMap = new HashMap<String, Relation>();
     }
 
@@ -34,9 +40,19 @@ public class RelationManager {
      * @param atts The attributes of the Relation object.
      */
     public Relation newRelation(Attributes atts){ 
-	String id = atts.getValue("id");
-	Relation r = new Relation(id, atts);
-	relationMap.put(id, r);
+	long id = Long.parseLong(atts.getValue("id"));
+	return newRelation(id);
+    }
+
+    /** 
+     * Creates a new Relation object, given the next dense index.
+     * @param id The ID of the Relation object.
+     */
+    public Relation newRelation(long id){ 
+	int index = relationList.size();
+	Relation r = new Relation(id, index);
+	relationList.add(r);
+	idIndexMap.put(id, index);
 	return r;
     }
 
@@ -46,8 +62,10 @@ public class RelationManager {
      * @return the Relation object of the desired name.
      * @return null if the object does not exist.
      */
-    public Relation getRelation(String ref){
-	return relationMap.get(ref);
+    public Relation getRelation(long ref){
+	int index = idIndexMap.get(ref);
+	if( index == LongIntMap.MISSING ) return null;
+	return relationList.get(index);
     }
 
     /**
@@ -55,15 +73,66 @@ public class RelationManager {
      * @return the set of all of Relation objects.
      */
     public Collection<Relation> getAllRelations(){
-	return relationMap.values();
+	return relationList;
     }
 
     /**
      * Get all Relation objects by their id.
-     * @return the set of all of Relation object IDs
+     * @return all of the Relation object IDs, in index order.
+     */
+    public long[] getAllRelationIDs(){
+	long[] ids = new long[relationList.size()];
+	for( int i = 0; i < ids.length; i++ ){
+	    ids[i] = relationList.get(i).getID();
+	}
+	return ids;
+    }
+
+    /** Make a deleted relation impossible to find by id. Used by MapUpdate. */
+    void unmapRelation(Relation r){
+	idIndexMap.remove(r.getID());
+    }
+
+    /** Remove the deleted ways from the members of all relations. Used by MapUpdate. */
+    void removeDeletedMembers(){
+	for( Relation r : relationList ){
+	    ArrayList<Way> members = r.getMembers();
+	    for( int i = members.size() - 1; i >= 0; i-- ){
+		if( members.get(i).isDeleted() ) members.remove(i);
+	    }
+	}
+    }
+
+    /** Write the relations to a snapshot. See MapSnapshot. */
+    void writeSnapshot(MapSnapshot.Writer out) throws IOException {
+	out.writeInt(relationList.size());
+	for( Relation r : relationList ){
+	    out.writeLong(r.getID());
+	    out.writeInt(r.getMembers().size());
+	    for( Way w : r.getMembers() ){ out.writeInt(w.getIndex()); }
+	    out.writeTags(r.getTagArray());
+	    out.writeLong(r.getTagOffset());
+	}
+	idIndexMap.writeSnapshot(out);
+    }
+
+    /** 
+     * Read the relations from a snapshot, written by writeSnapshot().
+     * @param wayManager The ways, read already, that are members.
      */
-    public Set<String> getAllRelationIDs(){
-	return relationMap.keySet();
+    void readSnapshot(MapSnapshot.Reader in, WayManager wayManager) throws IOException {
+	int relations = in.readInt();
+	relationList = new ArrayList<Relation>(relations);
+	for( int i = 0; i < relations; i++ ){
+	    Relation r = new Relation(in.readLong(), i);
+	    int members = in.readInt();
+	    for( int j = 0; j < members; j++ ){ r.addMember(wayManager.getWayByIndex(in.readInt())); }
+	    r.setTagArray(in.readTagArray());
+	    long offset = in.readLong();
+	    if( offset >= 0 ){ r.setTagSource(in.getTagSource(), offset); }
+	    relationList.add(r);
+	}
+	idIndexMap = LongIntMap.readSnapshot(in);
     }
 
     /**
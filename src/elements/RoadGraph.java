@@ -0,0 +1,128 @@
+package elements;
+
+import java.io.IOException;
+
+/**
+ * The graph of the nodes and the segments of the ways between them, in
+ * compressed sparse row form. The edges leaving node v are the indexes
+ * [firstEdge(v), endEdge(v)); every edge has its target node, its length
+ * and the way it is a segment of, in primitive arrays, so that routing
+ * walks contiguous ints and floats and allocates nothing.
+ *
+ * Every segment of a way is an edge in both directions. Nodes and ways
+ * are referred to by their dense indexes. The graph is built by
+ * WayManager.computeIncidence() when the map data is finalized.
+ */
+public class RoadGraph {
+
+    /** Number of nodes */
+    private int nodeCount;
+
+    /** First edge of each node, by node index; nodeCount + 1 long */
+    private int[] offsets;
+
+    /** Target node of each edge */
+    private int[] targets;
+
+    /** Length of each edge, as NodeManager.distance() gives it */
+    private float[] lengths;
+
+    /** Index of the way each edge is a segment of */
+    private int[] ways;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor, for arrays that are filled by the caller.
+     * @param offsets The first edge of each node, and the edge count last.
+     */
+    RoadGraph(int[] offsets){
+	this.offsets = offsets;
+	nodeCount = offsets.length - 1;
+	int edges = offsets[nodeCount];
+	targets = new int[edges];
+	lengths = new float[edges];
+	ways = new int[edges];
+    }
+
+    /** Set an edge; used while building the graph. */
+    void setEdge(int edge, int target, float length, int way){
+	targets[edge] = target;
+	lengths[edge] = length;
+	ways[edge] = way;
+    }
+
+    /** Copy count edges of another graph, from its edge from to this graph's edge to. */
+    void copyEdges(RoadGraph other, int from, int to, int count){
+	System.arraycopy(other.targets, from, targets, to, count);
+	System.arraycopy(other.lengths, from, lengths, to, count);
+	System.arraycopy(other.ways, from, ways, to, count);
+    }
+
+    /** Get the number of nodes. */
+    public int getNodeCount(){ return nodeCount; }
+
+    /** Get the number of edges. */
+    public int getEdgeCount(){ return offsets[nodeCount]; }
+
+    /** Get the first edge leaving a node. */
+    public int firstEdge(int node){ return offsets[node]; }
+
+    /** Get the end of the edges leaving a node: the first edge of the next node. */
+    public int endEdge(int node){ return offsets[node + 1]; }
+
+    /** Get the number of edges leaving a node. */
+    public int getDegree(int node){ return offsets[node + 1] - offsets[node]; }
+
+    /** Get the node an edge leads to. */
+    public int getTarget(int edge){ return targets[edge]; }
+
+    /** Get the length of an edge. */
+    public float getLength(int edge){ return lengths[edge]; }
+
+    /** Get the index of the way an edge is a segment of. */
+    public int getWay(int edge){ return ways[edge]; }
+
+    /** 
+     * Find the first edge from a node to another, adjacent, node.
+     * @return the edge, or -1 if the nodes are not adjacent.
+     */
+    public int findEdge(int from, int to){
+	for( int e = offsets[from]; e < offsets[from + 1]; e++ ){
+	    if( targets[e] == to ) return e;
+	}
+	return -1;
+    }
+
+    /** Write the graph to a snapshot. See MapSnapshot. */
+    void writeSnapshot(MapSnapshot.Writer out) throws IOException {
+	out.writeInt(nodeCount);
+	out.writeInts(offsets, nodeCount + 1);
+	int edges = getEdgeCount();
+	out.writeInts(targets, edges);
+	out.writeFloats(lengths, edges);
+	out.writeInts(ways, edges);
+    }
+
+    /** Read a graph written by writeSnapshot(). */
+    static RoadGraph readSnapshot(MapSnapshot.Reader in) throws IOException {
+	int nodes = in.readInt();
+	if( nodes < 0 ) throw new IOException("Map snapshot corrupt: bad graph");
+	int[] offsets = in.readInts(nodes + 1, nodes + 1);
+	int edges = offsets[nodes];
+	if( edges < 0 ) throw new IOException("Map snapshot corrupt: bad graph");
+	RoadGraph graph = new RoadGraph(nodes, offsets);
+	graph.targets = in.readInts(edges, edges);
+	graph.lengths = in.readFloats(edges, edges);
+	graph.ways = in.readInts(edges, edges);
+	return graph;
+    }
+
+    /** The constructor, for readSnapshot(). */
+    private RoadGraph(int nodeCount, int[] offsets){
+	this.nodeCount = nodeCount;
+	this.offsets = offsets;
+    }
+
+}
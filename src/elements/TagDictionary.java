@@ -0,0 +1,108 @@
+package elements;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The dictionary of all tag keys and values. Every distinct string is
+ * kept once and given an int id, and an element keeps its tags as a
+ * packed int array of (key id, value id) pairs instead of a HashMap.
+ * So "highway" and "residential" exist once however many ways use them,
+ * and an element with one tag costs one small array.
+ *
+ * The dictionary is shared by all map data. Ids are only handed out
+ * under a lock, and lookups need none, so one map can be loaded while
+ * another is being drawn.
+ */
+public final class TagDictionary {
+
+    /** Id returned by find() for a string that is not in the dictionary. */
+    public static final int MISSING = -1;
+
+    /** Map from string to id */
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /** The strings, by id */
+    private static volatile String[] strings = new String[1024];
+
+    /** Number of strings */
+    private static int count;
+
+
+    // --- end of fields --- //
+
+    /** This class is not instantiated. */
+    private TagDictionary(){
+    }
+
+    /**
+     * Get the id of a string, adding it to the dictionary if needed.
+     * @param s The string; not null.
+     */
+    public static int intern(String s){
+	Integer id = ids.get(s);
+	if( id != null ) return id;
+	synchronized( TagDictionary.class ){
+	    id = ids.get(s);
+	    if( id != null ) return id;
+	    String[] table = strings;
+	    if( count == table.length ){ table = Arrays.copyOf(table, count * 2); }
+	    table[count] = s;
+	    strings = table; // publish the string before its id
+	    ids.put(s, count);
+	    return count++;
+	}
+    }
+
+    /**
+     * Get the id of a string.
+     * @return the id, or MISSING if the string is not in the dictionary.
+     */
+    public static int find(String s){
+	Integer id = ids.get(s);
+	return id == null ? MISSING : id;
+    }
+
+    /** Get the string of an id. */
+    public static String string(int id){
+	return strings[id];
+    }
+
+    /**
+     * Set a tag in a packed tag array, replacing the value if the key is
+     * there already.
+     * @param tags The packed tags; null for none.
+     * @return the packed tags with the tag set; may be a new array.
+     */
+    static int[] put(int[] tags, String key, String value){
+	int k = intern(key);
+	int v = intern(value);
+	if( tags == null ) return new int[]{ k, v };
+	for( int i = 0; i < tags.length; i += 2 ){
+	    if( tags[i] == k ){
+		tags[i+1] = v;
+		return tags;
+	    }
+	}
+	int[] grown = Arrays.copyOf(tags, tags.length + 2);
+	grown[tags.length] = k;
+	grown[tags.length + 1] = v;
+	return grown;
+    }
+
+    /**
+     * Look up a tag in a packed tag array.
+     * @param tags The packed tags; null for none.
+     * @return the value, or null if there is no such tag.
+     */
+    static String get(int[] tags, String key){
+	if( tags == null ) return null;
+	int k = find(key);
+	if( k == MISSING ) return null;
+	for( int i = 0; i < tags.length; i += 2 ){
+	    if( tags[i] == k ) return strings[tags[i+1]];
+	}
+	return null;
+    }
+
+}
@@ -0,0 +1,29 @@
+package elements;
+
+/**
+ * Where the tags of an element that were not kept at load time can be
+ * read from again. With lazy tags, only the tags with keys that are
+ * used all the time (names, highway and the like) are kept when a map
+ * is loaded; an element that had other tags remembers the source and
+ * the offset of the element in it, and reads all its tags from there
+ * the first time one of the others is asked for.
+ */
+public interface TagSource {
+
+    /**
+     * Check if tags with this key were kept at load time, so that an
+     * element that does not have it has no such tag in the source either.
+     */
+    public boolean isKept(String key);
+
+    /** Get the keys of the tags that were kept at load time. */
+    public String[] getKeptKeys();
+
+    /**
+     * Read all the tags of the element at an offset, adding them to it.
+     * @param offset The offset of the element in the source.
+     * @param e The element to add the tags to.
+     */
+    public void readTags(long offset, Element e);
+
+}
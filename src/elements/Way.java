@@ -1,7 +1,6 @@
 package elements;
 import java.util.ArrayList;
-
-import org.xml.sax.Attributes;
+import java.util.Arrays;
 
 /** 
  * A way, which represents a connected sequence of nodes. 
@@ -9,20 +8,26 @@ import org.xml.sax.Attributes;
 public class Way extends Element{
 
     /** The id of this object, unique */
-    private String id; 
+    private long id; 
+
+    /** The dense index of this way, in order of creation */
+    private int index;
 
     /** The name of this way object (if any) */
     private String name;
 
-    /** The sequence of nodes of this way */
-    private ArrayList<Node> nodeSeq;
+    /** The manager of the nodes this way refers to */
+    private NodeManager nodeManager;
+
+    /** The sequence of nodes of this way, by node index */
+    private int[] nodeSeq;
+
+    /** Number of nodes in nodeSeq */
+    private int nodeCount;
 
     /** Segments, defined by edges between nodes */
     private int segments = 0;
 
-    /** The attributes of this way object */
-    private Attributes attributes;
-
     /** The distance spanned of this Way. Total distance */
     private double distance = -1;
 
@@ -36,38 +41,65 @@ public class Way extends Element{
      * Also, only drive-able ways have a concept of sharedNode.
      * So sharedNodes is possibly empty. 
      */
-    private ArrayList<String> sharedNodes;
+    private ArrayList<Node> sharedNodes;
+
+    /** If this way was deleted by a MapUpdate; it has no nodes or tags then */
+    private boolean deleted;
 
     // --- end of fields --- // 
 
     /**
      * The constructor.
-     * @param atts The attributes of this Way.
      * @param id The ID of this way.
+     * @param index The dense index assigned by the WayManager.
+     * @param nodeManager The manager of the nodes of this way.
      */
-    public Way(String id, Attributes atts){ 
+    public Way(long id, int index, NodeManager nodeManager){ 
 	this.id = id;
-	attributes = atts;
-	nodeSeq = new ArrayList<Node>();
-	sharedNodes = new ArrayList<String>();
+	this.index = index;
+	this.nodeManager = nodeManager;
+	nodeSeq = new int[4];
+	sharedNodes = new ArrayList<Node>();
     }
 
     /** Get the id of this object. */
-    public String getID(){ return id; }
+    public long getID(){ return id; }
+
+    /** Get the dense index of this object. */
+    public int getIndex(){ return index; }
+
+    /** Check if this way was deleted by a MapUpdate. */
+    public boolean isDeleted(){ return deleted; }
+
+    /** 
+     * Remove the nodes, shared nodes and tags of this way, to be given
+     * new ones, or to delete it. Used by MapUpdate.
+     */
+    void reset(boolean delete){
+	nodeCount = 0;
+	sharedNodes.clear();
+	clearTags();
+	resetDistance();
+	driveable = true;
+	deleted = delete;
+    }
+
+    /** Forget the distance, after a node of this way moved. */
+    void resetDistance(){
+	distance = -1;
+	segments = 0;
+    }
 
     /** Private method to compute distance */
     private void computeDistance(){
-	Node n0 = nodeSeq.get(0);
 	double accumDist = 0;
 
-	for( int i = 1; i < nodeSeq.size() ; i++ ){
+	for( int i = 1; i < nodeCount ; i++ ){
 	    segments++;
-	    Node n1 = nodeSeq.get(i);
-	    double dist = n0.distFrom(n1);
+	    double dist = nodeManager.distance(nodeSeq[i-1], nodeSeq[i]);
 	    accumDist += dist;
-	    n0 = n1;
 	}
-	distance = accumDist * 69;
+	distance = accumDist;
     }
 
     /**
@@ -75,7 +107,16 @@ public class Way extends Element{
      * @param n The node to be added.
      */
     public void addNode(Node n){
-	nodeSeq.add(n);
+	addNode(n.getIndex());
+    }
+
+    /**
+     * Add a node to the node sequence.
+     * @param nodeIndex The index of the node to be added.
+     */
+    public void addNode(int nodeIndex){
+	if( nodeCount == nodeSeq.length ){ nodeSeq = Arrays.copyOf(nodeSeq, nodeCount * 2); }
+	nodeSeq[nodeCount++] = nodeIndex;
     }
 
     /** 
@@ -105,17 +146,34 @@ public class Way extends Element{
      * @param node The node want to check if contained
      * @return true If the node is contained.
      */
-    public boolean containsNode( Node node ){ return nodeSeq.contains(node); }
+    public boolean containsNode( Node node ){ 
+	for( int i = 0; i < nodeCount; i++ ){
+	    if( nodeSeq[i] == node.getIndex() ) return true;
+	}
+	return false;
+    }
 
     /**
      * Get the sequence of nodes that make up this Way.
      * @return The sequence of nodes that make up this Way.
      */
-    public ArrayList<Node> getNodeSeq(){ return nodeSeq; }
+    public ArrayList<Node> getNodeSeq(){ 
+	ArrayList<Node> nodes = new ArrayList<Node>(nodeCount);
+	for( int i = 0; i < nodeCount; i++ ){
+	    nodes.add(nodeManager.getNodeByIndex(nodeSeq[i]));
+	}
+	return nodes; 
+    }
+
+    /** Get the number of nodes in this Way. */
+    public int getNodeCount(){ return nodeCount; }
+
+    /** Get the index of the i-th node of this Way. */
+    public int getNodeIndex(int i){ return nodeSeq[i]; }
 
     /** 
      * Get the distance spanned of this Way.
-     * @return The distance spanned.
+     * @return The distance spanned, in miles.
      */
     public double getTotalDistance(){ 
 	if( distance == -1 ){ computeDistance(); }
@@ -134,14 +192,19 @@ public class Way extends Element{
     /** 
      * Add a shared node; this node is shared with another Way.
      */
-    public void addSharedNode(String nodeID){
-	sharedNodes.add(nodeID);
+    public void addSharedNode(Node node){
+	sharedNodes.add(node);
     }
 
-    /** Get shared nodesIDs.
+    /** Remove the shared nodes, to add them again. */
+    void clearSharedNodes(){
+	sharedNodes.clear();
+    }
+
+    /** Get shared nodes.
      * @return the list of nodes that this Way shares with another
      */
-    public ArrayList<String> getSharedNodes(){ return sharedNodes; }
+    public ArrayList<Node> getSharedNodes(){ return sharedNodes; }
 
 
     /** 
@@ -163,12 +226,13 @@ public class Way extends Element{
 
     /**
      * "equals" is defined by having the same ID number.
-     * @param otherString
-     * @return true if otherRef and this object are equal.
+     * @param other
+     * @return true if other and this object are equal.
      */
-    public boolean equals(String otherString) {
-	if (otherString.equals(id)) {
-	    return true;
+    @Override
+    public boolean equals(Object other) {
+	if (other instanceof Way) {
+	    return ((Way) other).id == id;
 	}
 	return false;
     }
@@ -178,8 +242,7 @@ public class Way extends Element{
      */
     @Override
     public int hashCode() {
-	int hashC = Integer.parseInt(id);
-	return hashC;
+	return Long.hashCode(id);
     }
 
 }
@@ -1,10 +1,14 @@
 package elements;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.xml.sax.Attributes;
 
@@ -13,10 +17,13 @@ import org.xml.sax.Attributes;
  */
 public class WayManager {
 
-    /** HashMap that maps Way objects to their ID */
-    private HashMap<String, Way> idWayMap;
+    /** The manager of the nodes that ways refer to */
+    private NodeManager nodeManager;
 
-    /** ArrayList of Ways because HashMap is view only */
+    /** Map from way ID to the dense index of the Way in allWays */
+    private LongIntMap idIndexMap;
+
+    /** ArrayList of Ways, by their dense index */
     private ArrayList<Way> allWays;
 
     /** 
@@ -32,7 +39,7 @@ public class WayManager {
      * @key The ID of the Way
      * @value The name of the Way
      */
-    private HashMap<String, String> idNameMap;
+    private HashMap<Long, String> idNameMap;
 
     /**
      * A name to the ArrayList<Way> with all same names.
@@ -42,23 +49,26 @@ public class WayManager {
     private HashMap<String, ArrayList<Way>> nameWayMap;
 
     /** 
-     * A HashMap mapping the node ID to Way objects IDs
-     * that contain that Node. That is, the node exists in the way.
-     * The ArrayList should have size() >= 1 
-     * Important note: nodeInWayMap only contains nodes 
-     * that are drive able.
+     * The ways that contain each node, in compressed sparse row form:
+     * the indexes of the ways node v is in are in
+     * wayIndexes[wayOffsets[v], wayOffsets[v+1]), once each, in 
+     * increasing order. Set when the data is finalized.
      */
-    private HashMap<String, ArrayList<Way>> nodeInWayMap;
+    private int[] wayOffsets;
+    private int[] wayIndexes;
 
 
     // ----- end of fields ----- //
 
     /**
      * The constructor.
+     * @param nodeManager The manager of the nodes that ways refer to.
      */
-    public WayManager(){
-	idWayMap = new HashMap<String, Way>();
-	nodeInWayMap = new HashMap<String, ArrayList<Way>>();
+    public WayManager(NodeManager nodeManager){
+	this.nodeManager = nodeManager;
+	idIndexMap = new LongIntMap();
+	wayOffsets = new int[1];
+	wayIndexes = new int[0];
 	allWays = new ArrayList<Way>();
 	// some fields are only possible  after parsing is done.
     }
@@ -68,10 +78,19 @@ public class WayManager {
      * @param atts the Attributes of the way object.
      */
     public Way newWay(Attributes atts){ 
-	String id = atts.getValue("id");
-	Way w = new Way(id, atts);
-	idWayMap.put(id, w);
+	long id = Long.parseLong(atts.getValue("id"));
+	return newWay(id);
+    }
+
+    /**
+     * Create and add a new Way object, given the next dense index.
+     * @param id the ID of the way object.
+     */
+    public Way newWay(long id){ 
+	int index = allWays.size();
+	Way w = new Way(id, index, nodeManager);
 	allWays.add(w);
+	idIndexMap.put(id, index);
 	return w;
     }
 
@@ -83,9 +102,15 @@ public class WayManager {
 
     /**
      * Get all existing Ways by getting their id.
-     * @return Set of existing Ways IDs.
+     * @return existing Ways IDs, in index order.
      */
-    public Set<String> getAllWayIDs(){ return idWayMap.keySet(); }
+    public long[] getAllWayIDs(){ 
+	long[] ids = new long[allWays.size()];
+	for( int i = 0; i < ids.length; i++ ){
+	    ids[i] = allWays.get(i).getID();
+	}
+	return ids;
+    }
 
 
     /**
@@ -100,7 +125,7 @@ public class WayManager {
      * Get all nameable Ways by their names.
      * @return Set of all nameable Ways object names.
      */
-    public Set<String> getWayNames(){ 
+    public Set<Long> getWayNames(){ 
 	idNameMapInitialized();
 	return idNameMap.keySet();
     }
@@ -124,13 +149,18 @@ public class WayManager {
      * @return the desired Way object.
      * @return null if the Way object does not exist.
      */
-    public Way getWay(String id){ 
-	Way w = null;
-	if (idWayMap.containsKey(id)) {
-	    w = idWayMap.get(id);
-	    return w;
-	}
-	return w;
+    public Way getWay(long id){ 
+	int index = idIndexMap.get(id);
+	if( index == LongIntMap.MISSING ) return null;
+	return allWays.get(index);
+    }
+
+    /**
+     * Get a Way object given its dense index.
+     * @param index The index of the Way.
+     */
+    public Way getWayByIndex(int index){
+	return allWays.get(index);
     }
 
     /**
@@ -150,12 +180,11 @@ public class WayManager {
      */
     private void idNameMapInitialized(){	
 	if(idNameMap == null){
-	    idNameMap =  new HashMap<String, String>();
-	    for(String id: idWayMap.keySet()){
-		Way w = this.getWay(id);
+	    idNameMap =  new HashMap<Long, String>();
+	    for(Way w: allWays){
 		String name = w.getName();
 		if( name != null ){ 
-		    idNameMap.put(id, name); 
+		    idNameMap.put(w.getID(), name); 
 		}
 	    }
 	}
@@ -185,7 +214,7 @@ public class WayManager {
 	if(nameWayMap == null){
 	    nameWayMap = new HashMap<String, ArrayList<Way>>();
 	    idNameMapInitialized();
-	    for( Way w : idWayMap.values() ){
+	    for( Way w : allWays ){
 		String name = w.getName();
 		if( name != null ){
 		    ArrayList<Way> sameNameWays = findByName(name);
@@ -204,7 +233,7 @@ public class WayManager {
      */
     private ArrayList<Way> findByName(String ref){
 	ArrayList<Way> waySum = new ArrayList<Way>();
-	for( Way w : idWayMap.values() ){
+	for( Way w : allWays ){
 	    String name = w.getName();
 	    if( ref.equals(name) ){
 		waySum.add(w);
@@ -213,53 +242,517 @@ public class WayManager {
 	return waySum;
     }
 
-    /** Compute the shared nodes */
-    public void computeSharedNodes() {
-
-	for( int i = 0 ; i < allWays.size(); i++ ){
-	    Way way = allWays.get(i);
-	    ArrayList<Node> containedNodes = way.getNodeSeq();
+    /** 
+     * Compute, from the node sequences of the ways, which ways each node
+     * is in, the shared nodes (nodes in more than one way, or twice in
+     * one), and the road graph: an edge from every node to the nodes
+     * before and after it in its ways. Every step is a linear pass over
+     * the ways or the nodes, run in parallel on the pool:
+     * 
+     * Every place a node is in a way is an occurrence, numbered in way
+     * order. The occurrences are counted per node, then grouped by node,
+     * and the groups are put back in way order, so the results are the
+     * same as from a serial pass.
+     * @param pool The pool to run on.
+     */
+    public void computeIncidence(ForkJoinPool pool){
+	computeIncidence(pool, null);
+    }
 
-	    for( int j = 0 ; j < containedNodes.size(); j++ ){
-		Node node = containedNodes.get(j);
-		String nID = node.getID();
+    /**
+     * Compute the ways of each node, the shared nodes and the road
+     * graph, timing each step in a report. See computeIncidence(pool).
+     * @param pool The pool to run on.
+     * @param report The report; null for none.
+     */
+    void computeIncidence(ForkJoinPool pool, LoadReport report){
+	if( report != null ) report.begin("occurrences");
+	final int ways = allWays.size();
+	final int nodes = nodeManager.size();
+
+	// the occurrences of each way start at wayStart[w]
+	final int[] wayStart = new int[ways + 1];
+	for( int w = 0; w < ways; w++ ){ wayStart[w+1] = wayStart[w] + allWays.get(w).getNodeCount(); }
+	final int occurrences = wayStart[ways];
+	final int[] occNode = new int[occurrences];
+	final int[] occWay = new int[occurrences];
+	final AtomicIntegerArray counts = new AtomicIntegerArray(nodes);
+	ParallelRange.run(pool, ways, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int w = lo; w < hi; w++ ){
+		    Way way = allWays.get(w);
+		    for( int j = 0; j < way.getNodeCount(); j++ ){
+			int v = way.getNodeIndex(j);
+			occNode[wayStart[w] + j] = v;
+			occWay[wayStart[w] + j] = w;
+			counts.incrementAndGet(v);
+		    }
+		}
+	    }
+	});
 
-		if( !nodeInWayMap.containsKey(nID) ){
-		    ArrayList<Way> wayList = new ArrayList<Way>();
-		    wayList.add(way);
-		    nodeInWayMap.put(nID, wayList);
+	if( report != null ) report.end();
 
-		} else {
-		    node.setShared(true);
-		    ArrayList<Way> wayList = nodeInWayMap.get(nID);
-		    wayList.add(way);
-		    for( Way w: wayList ){
-			if(w.isDriveable()) { w.addSharedNode(nID); }
+	// group the occurrences by node: those of node v are in [start[v], start[v+1])
+	if( report != null ) report.begin("grouping");
+	final int[] start = new int[nodes + 1];
+	for( int v = 0; v < nodes; v++ ){
+	    start[v+1] = start[v] + counts.get(v);
+	    counts.set(v, start[v]);
+	}
+	final AtomicIntegerArray next = counts;
+	final int[] byNode = new int[occurrences];
+	ParallelRange.run(pool, occurrences, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int o = lo; o < hi; o++ ){ byNode[next.getAndIncrement(occNode[o])] = o; }
+	    }
+	});
+
+	if( report != null ) report.end();
+
+	// per node: the number of ways it is in, and of neighbors
+	if( report != null ) report.begin("counting");
+	final int[] wayOffsets = new int[nodes + 1];
+	final int[] offsets = new int[nodes + 1];
+	ParallelRange.run(pool, nodes, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int v = lo; v < hi; v++ ){
+		    int s = start[v], e = start[v+1];
+		    if( s == e ) continue;
+		    Arrays.sort(byNode, s, e);
+		    if( e - s > 1 ) nodeManager.setShared(v, true);
+		    int wayCount = 0;
+		    int degree = 0;
+		    int last = -1;
+		    for( int k = s; k < e; k++ ){
+			int o = byNode[k];
+			int w = occWay[o];
+			if( w != last ) wayCount++;
+			last = w;
+			if( o > wayStart[w] ) degree++;
+			if( o + 1 < wayStart[w+1] ) degree++;
 		    }
+		    wayOffsets[v+1] = wayCount;
+		    offsets[v+1] = degree;
 		}
 	    }
+	});
+	for( int v = 0; v < nodes; v++ ){ 
+	    wayOffsets[v+1] += wayOffsets[v];
+	    offsets[v+1] += offsets[v]; 
 	}
+
+	if( report != null ) report.end();
+
+	// the ways of each node, and the road graph: the neighbors of 
+	// each node, in way order, as edges
+	if( report != null ) report.begin("graph");
+	final int[] wayIndexes = new int[wayOffsets[nodes]];
+	final RoadGraph graph = new RoadGraph(offsets);
+	ParallelRange.run(pool, nodes, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int v = lo; v < hi; v++ ){
+		    int edge = offsets[v];
+		    int way = wayOffsets[v];
+		    int last = -1;
+		    for( int k = start[v]; k < start[v+1]; k++ ){
+			int o = byNode[k];
+			int w = occWay[o];
+			if( w != last ){ wayIndexes[way++] = w; }
+			last = w;
+			if( o > wayStart[w] ){ 
+			    int u = occNode[o-1];
+			    graph.setEdge(edge++, u, (float) nodeManager.distance(v, u), w);
+			}
+			if( o + 1 < wayStart[w+1] ){ 
+			    int u = occNode[o+1];
+			    graph.setEdge(edge++, u, (float) nodeManager.distance(v, u), w);
+			}
+		    }
+		}
+	    }
+	});
+	nodeManager.setRoadGraph(graph);
+	this.wayOffsets = wayOffsets;
+	this.wayIndexes = wayIndexes;
+	if( report != null ) report.end();
+
+	// shared nodes of the drive-able ways, once each, in way order
+	if( report != null ) report.begin("shared nodes");
+	ParallelRange.run(pool, ways, new ParallelRange.Body(){
+	    public void run(int lo, int hi){
+		for( int w = lo; w < hi; w++ ){
+		    Way way = allWays.get(w);
+		    if( !way.isDriveable() ) continue;
+		    for( int o = wayStart[w]; o < wayStart[w+1]; o++ ){
+			int v = occNode[o];
+			if( start[v+1] - start[v] < 2 ) continue;
+			// skip all but the first occurrence of v in this way
+			int k = start[v];
+			while( byNode[k] < wayStart[w] ) k++;
+			if( byNode[k] == o ){ way.addSharedNode(nodeManager.getNodeByIndex(v)); }
+		    }
+		}
+	    }
+	});
+	if( report != null ) report.end();
     }
 
-    /** Get map of Node IDs to Ways that contain the Node. */
-    public HashMap<String, ArrayList<Way>> getnodeInWayMap(){ return nodeInWayMap; }
+    /** Make a deleted way impossible to find by id. Used by MapUpdate. */
+    void unmapWay(Way w){
+	idIndexMap.remove(w.getID());
+    }
 
     /** 
-     * Compute neighbors for nodes. A node add the
-     * previous as neighbor, and the previous adds this.
+     * Repair the ways by name, if they were made, after the name of a way
+     * changed, or it was created or deleted. Used by MapUpdate.
+     * @param w The way.
+     * @param old The name of the way before; null if it had none.
+     */
+    void renameWay(Way w, String old){
+	String name = w.getName();
+	if( old == null ? name == null : old.equals(name) ) return;
+	if( idNameMap != null ){
+	    if( name == null ){ 
+		idNameMap.remove(w.getID()); 
+	    } else { 
+		idNameMap.put(w.getID(), name); 
+	    }
+	}
+	if( nameWayMap != null ){
+	    if( old != null && nameWayMap.containsKey(old) ){
+		ArrayList<Way> same = nameWayMap.get(old);
+		same.remove(w);
+		if( same.isEmpty() ) nameWayMap.remove(old);
+	    }
+	    if( name != null ){
+		ArrayList<Way> same = nameWayMap.get(name);
+		if( same == null ){
+		    same = new ArrayList<Way>();
+		    nameWayMap.put(name, same);
+		}
+		// in index order, as findByName() gives them
+		int k = same.size();
+		while( k > 0 && same.get(k-1).getIndex() > w.getIndex() ) k--;
+		same.add(k, w);
+	    }
+	}
+	if( wayNames != null ){
+	    if( name != null ) wayNames.add(name);
+	    // without nameWayMap, it is not known if another way has the old name
+	    if( old != null && (nameWayMap == null || !nameWayMap.containsKey(old)) ) wayNames = null;
+	}
+    }
+
+    /**
+     * Repair what computeIncidence() computed, after a MapUpdate changed
+     * some ways and nodes: the ways of the nodes, the shared flags and 
+     * shared nodes, and the road graph. Only the entries of the nodes 
+     * that were touched are computed again, in the same order as 
+     * computeIncidence() would; those of the other nodes are copied over
+     * in runs.
+     * @param changedWays The indexes of the ways that were created,
+     * modified or deleted; increasing, once each.
+     * @param touched The nodes of those ways before the change, and the
+     * nodes that were created or deleted; increasing, once each.
+     * @param moved The nodes that were moved; increasing, once each.
+     */
+    void repairIncidence(int[] changedWays, int[] touched, int[] moved){
+	int nodes = nodeManager.size();
+	int oldNodes = wayOffsets.length - 1;
+
+	// the (node, way) pairs of the changed ways as they are now
+	int pairCount = 0;
+	for( int w : changedWays ){ pairCount += allWays.get(w).getNodeCount(); }
+	long[] pairs = new long[pairCount];
+	pairCount = 0;
+	for( int w : changedWays ){
+	    Way way = allWays.get(w);
+	    for( int j = 0; j < way.getNodeCount(); j++ ){
+		pairs[pairCount++] = ((long) way.getNodeIndex(j) << 32) | w;
+	    }
+	}
+	Arrays.sort(pairs);
+	int[] nowIn = new int[pairs.length];
+	int nowCount = 0;
+	for( long pair : pairs ){
+	    int v = (int) (pair >>> 32);
+	    if( nowCount == 0 || nowIn[nowCount-1] != v ) nowIn[nowCount++] = v;
+	}
+
+	// the ways of the nodes computed again: the old ones that did not
+	// change, and the changed ones they are in now
+	int[] again = union(touched, Arrays.copyOf(nowIn, nowCount));
+	int[] againStart = new int[again.length + 1];
+	int[] againWays = new int[16];
+	int size = 0;
+	int p = 0;
+	for( int k = 0; k < again.length; k++ ){
+	    int v = again[k];
+	    if( v < oldNodes ){
+		for( int i = wayOffsets[v]; i < wayOffsets[v+1]; i++ ){
+		    if( Arrays.binarySearch(changedWays, wayIndexes[i]) >= 0 ) continue;
+		    if( size == againWays.length ) againWays = Arrays.copyOf(againWays, size * 2);
+		    againWays[size++] = wayIndexes[i];
+		}
+	    }
+	    while( p < pairs.length && (int) (pairs[p] >>> 32) < v ) p++;
+	    int last = -1;
+	    for( ; p < pairs.length && (int) (pairs[p] >>> 32) == v; p++ ){
+		int w = (int) pairs[p];
+		if( w == last ) continue;
+		last = w;
+		if( size == againWays.length ) againWays = Arrays.copyOf(againWays, size * 2);
+		againWays[size++] = w;
+	    }
+	    Arrays.sort(againWays, againStart[k], size);
+	    againStart[k+1] = size;
+	}
+
+	// the new table: the entries of the nodes computed again, and runs of the others
+	int[] newOffsets = new int[nodes + 1];
+	for( int v = 0, k = 0; v < nodes; v++ ){
+	    int c;
+	    if( k < again.length && again[k] == v ){
+		c = againStart[k+1] - againStart[k];
+		k++;
+	    } else {
+		c = v < oldNodes ? wayOffsets[v+1] - wayOffsets[v] : 0;
+	    }
+	    newOffsets[v+1] = newOffsets[v] + c;
+	}
+	int[] newIndexes = new int[newOffsets[nodes]];
+	int from = 0;
+	for( int k = 0; k <= again.length; k++ ){
+	    int to = k < again.length ? again[k] : nodes;
+	    int end = Math.min(to, oldNodes);
+	    if( from < end ){
+		System.arraycopy(wayIndexes, wayOffsets[from], newIndexes, newOffsets[from], 
+			wayOffsets[end] - wayOffsets[from]);
+	    }
+	    if( k < again.length ){
+		System.arraycopy(againWays, againStart[k], newIndexes, newOffsets[to], 
+			againStart[k+1] - againStart[k]);
+	    }
+	    from = to + 1;
+	}
+	wayOffsets = newOffsets;
+	wayIndexes = newIndexes;
+
+	// the shared flags of the nodes computed again, and the shared
+	// nodes of the ways that changed or have a node that did
+	int[] redo = Arrays.copyOf(changedWays, changedWays.length);
+	int redoCount = redo.length;
+	for( int v : again ){
+	    int occurrences = 0;
+	    for( int i = wayOffsets[v]; i < wayOffsets[v+1]; i++ ){
+		Way way = allWays.get(wayIndexes[i]);
+		for( int j = 0; j < way.getNodeCount(); j++ ){
+		    if( way.getNodeIndex(j) == v ) occurrences++;
+		}
+	    }
+	    boolean shared = occurrences > 1;
+	    if( shared == nodeManager.isShared(v) ) continue;
+	    nodeManager.setShared(v, shared);
+	    for( int i = wayOffsets[v]; i < wayOffsets[v+1]; i++ ){
+		if( redoCount == redo.length ) redo = Arrays.copyOf(redo, redoCount * 2 + 1);
+		redo[redoCount++] = wayIndexes[i];
+	    }
+	}
+	Arrays.sort(redo, 0, redoCount);
+	for( int i = 0; i < redoCount; i++ ){
+	    if( i > 0 && redo[i] == redo[i-1] ) continue;
+	    Way way = allWays.get(redo[i]);
+	    way.clearSharedNodes();
+	    if( !way.isDriveable() ) continue;
+	    for( int j = 0; j < way.getNodeCount(); j++ ){
+		int v = way.getNodeIndex(j);
+		if( !nodeManager.isShared(v) ) continue;
+		boolean first = true;
+		for( int i2 = 0; i2 < j && first; i2++ ){ first = way.getNodeIndex(i2) != v; }
+		if( first ) way.addSharedNode(nodeManager.getNodeByIndex(v));
+	    }
+	}
+
+	// the ways with a node that moved are longer or shorter now; the
+	// edges of the moved nodes and their neighbors are computed again
+	int[] near = new int[16];
+	int nearCount = 0;
+	for( int v : moved ){
+	    for( int i = wayOffsets[v]; i < wayOffsets[v+1]; i++ ){
+		Way way = allWays.get(wayIndexes[i]);
+		way.resetDistance();
+		for( int j = 0; j < way.getNodeCount(); j++ ){
+		    if( way.getNodeIndex(j) != v ) continue;
+		    if( nearCount + 2 > near.length ) near = Arrays.copyOf(near, near.length * 2);
+		    if( j > 0 ) near[nearCount++] = way.getNodeIndex(j-1);
+		    if( j + 1 < way.getNodeCount() ) near[nearCount++] = way.getNodeIndex(j+1);
+		}
+	    }
+	}
+	near = Arrays.copyOf(near, nearCount);
+	Arrays.sort(near);
+	int[] edgesAgain = union(union(again, moved), near);
+	repairGraph(edgesAgain, oldNodes);
+    }
+
+    /**
+     * Compute the edges of some nodes of the road graph again, from the
+     * ways that contain them now, and copy those of the others.
+     * @param again The nodes to compute again; increasing, once each.
+     * @param oldNodes The number of nodes of the old graph.
      */
-    public void setNeighboringNodes(){
-	for( int i = 0; i < allWays.size(); i++ ){
-	    Way way = allWays.get(i);
-	    ArrayList<Node> nodeSeq = way.getNodeSeq();
-
-	    for( int j = 1; j < nodeSeq.size(); j++){
-		Node node = nodeSeq.get(j);
-		Node prevNode = nodeSeq.get(j-1);
-		node.addNeighbor(prevNode); // add each other
-		prevNode.addNeighbor(node);
+    private void repairGraph(int[] again, int oldNodes){
+	int nodes = nodeManager.size();
+	RoadGraph old = nodeManager.getRoadGraph();
+
+	// the edges of the nodes computed again, as computeIncidence() orders them
+	int[] againStart = new int[again.length + 1];
+	int[] targets = new int[16];
+	int[] ways = new int[16];
+	int size = 0;
+	for( int k = 0; k < again.length; k++ ){
+	    int v = again[k];
+	    for( int i = wayOffsets[v]; i < wayOffsets[v+1]; i++ ){
+		Way way = allWays.get(wayIndexes[i]);
+		for( int j = 0; j < way.getNodeCount(); j++ ){
+		    if( way.getNodeIndex(j) != v ) continue;
+		    if( size + 2 > targets.length ){
+			targets = Arrays.copyOf(targets, targets.length * 2);
+			ways = Arrays.copyOf(ways, ways.length * 2);
+		    }
+		    if( j > 0 ){
+			targets[size] = way.getNodeIndex(j-1);
+			ways[size++] = way.getIndex();
+		    }
+		    if( j + 1 < way.getNodeCount() ){
+			targets[size] = way.getNodeIndex(j+1);
+			ways[size++] = way.getIndex();
+		    }
+		}
+	    }
+	    againStart[k+1] = size;
+	}
+
+	int[] offsets = new int[nodes + 1];
+	for( int v = 0, k = 0; v < nodes; v++ ){
+	    int c;
+	    if( k < again.length && again[k] == v ){
+		c = againStart[k+1] - againStart[k];
+		k++;
+	    } else {
+		c = v < oldNodes ? old.getDegree(v) : 0;
 	    }
+	    offsets[v+1] = offsets[v] + c;
 	}
+	RoadGraph graph = new RoadGraph(offsets);
+	int from = 0;
+	for( int k = 0; k <= again.length; k++ ){
+	    int to = k < again.length ? again[k] : nodes;
+	    int end = Math.min(to, oldNodes);
+	    if( from < end ){
+		graph.copyEdges(old, old.firstEdge(from), offsets[from], old.firstEdge(end) - old.firstEdge(from));
+	    }
+	    if( k < again.length ){
+		int edge = offsets[to];
+		for( int e = againStart[k]; e < againStart[k+1]; e++ ){
+		    int u = targets[e];
+		    graph.setEdge(edge++, u, (float) nodeManager.distance(to, u), ways[e]);
+		}
+	    }
+	    from = to + 1;
+	}
+	nodeManager.setRoadGraph(graph);
+    }
+
+    /** Merge two increasing arrays into one, with each value once. */
+    private static int[] union(int[] a, int[] b){
+	int[] c = new int[a.length + b.length];
+	int n = 0;
+	for( int i = 0, j = 0; i < a.length || j < b.length; ){
+	    int x;
+	    if( j == b.length || (i < a.length && a[i] <= b[j]) ){ 
+		x = a[i++]; 
+	    } else { 
+		x = b[j++]; 
+	    }
+	    if( n == 0 || c[n-1] != x ) c[n++] = x;
+	}
+	return Arrays.copyOf(c, n);
+    }
+
+    /** 
+     * Get the Ways that contain the Node, in a new list.
+     * getContainingWayCount() and getContainingWay() do not allocate.
+     * @return the ways, or null if the node is in no way.
+     */
+    public ArrayList<Way> getWaysContaining(Node n){ 
+	int count = getContainingWayCount(n.getIndex());
+	if( count == 0 ) return null;
+	ArrayList<Way> ways = new ArrayList<Way>(count);
+	for( int k = 0; k < count; k++ ){ ways.add(getContainingWay(n.getIndex(), k)); }
+	return ways; 
+    }
+
+    /** Get the number of ways that contain the node at index. */
+    public int getContainingWayCount(int node){ 
+	if( node + 1 >= wayOffsets.length ) return 0;
+	return wayOffsets[node + 1] - wayOffsets[node];
+    }
+
+    /** Get the k-th way that contains the node at index, in the order of the ways. */
+    public Way getContainingWay(int node, int k){ 
+	return allWays.get(wayIndexes[wayOffsets[node] + k]);
+    }
+
+    /** Get the index of the k-th way that contains the node at index. */
+    public int getContainingWayIndex(int node, int k){ 
+	return wayIndexes[wayOffsets[node] + k];
+    }
+
+    /** Write the ways to a snapshot. See MapSnapshot. */
+    void writeSnapshot(MapSnapshot.Writer out) throws IOException {
+	out.writeInt(allWays.size());
+	for( Way w : allWays ){
+	    out.writeLong(w.getID());
+	    out.writeInt(w.getNodeCount());
+	    for( int j = 0; j < w.getNodeCount(); j++ ){ out.writeInt(w.getNodeIndex(j)); }
+	    out.writeTags(w.getTagArray());
+	    out.writeLong(w.getTagOffset());
+	    ArrayList<Node> shared = w.getSharedNodes();
+	    out.writeInt(shared.size());
+	    for( Node n : shared ){ out.writeInt(n.getIndex()); }
+	}
+
+	int nodes = wayOffsets.length - 1;
+	out.writeInt(nodes);
+	out.writeInts(wayOffsets, nodes + 1);
+	out.writeInts(wayIndexes, wayOffsets[nodes]);
+	idIndexMap.writeSnapshot(out);
+    }
+
+    /** Read the ways from a snapshot, written by writeSnapshot(). */
+    void readSnapshot(MapSnapshot.Reader in) throws IOException {
+	int ways = in.readInt();
+	allWays = new ArrayList<Way>(ways);
+	for( int i = 0; i < ways; i++ ){
+	    Way w = new Way(in.readLong(), i, nodeManager);
+	    int nodes = in.readInt();
+	    for( int j = 0; j < nodes; j++ ){ w.addNode(in.readInt()); }
+	    w.setTagArray(in.readTagArray());
+	    long offset = in.readLong();
+	    if( offset >= 0 ){ w.setTagSource(in.getTagSource(), offset); }
+	    int shared = in.readInt();
+	    for( int j = 0; j < shared; j++ ){ w.addSharedNode(nodeManager.getNodeByIndex(in.readInt())); }
+	    allWays.add(w);
+	}
+
+	int nodes = in.readInt();
+	if( nodes < 0 ) throw new IOException("Map snapshot corrupt: bad way incidence");
+	wayOffsets = in.readInts(nodes + 1, nodes + 1);
+	if( wayOffsets[nodes] < 0 ) throw new IOException("Map snapshot corrupt: bad way incidence");
+	wayIndexes = in.readInts(wayOffsets[nodes], wayOffsets[nodes]);
+	idIndexMap = LongIntMap.readSnapshot(in);
     }
 
 
@@ -0,0 +1,398 @@
+package function;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that decompresses bzip2 data, as written by the bzip2 program.
+ * Streams written one after the other (as pbzip2 does) are read as one.
+ * The block and stream CRCs are checked.
+ *
+ * Decoding a block goes through the stages of the format in reverse:
+ * Huffman codes, the run-length coding of zeros, move-to-front, the
+ * Burrows-Wheeler transform, and finally the initial run-length coding,
+ * which is undone as the bytes are read.
+ */
+public class BZip2InputStream extends InputStream {
+
+    /** Most Huffman tables a block can have */
+    private static final int MAX_GROUPS = 6;
+
+    /** Longest Huffman code */
+    private static final int MAX_CODE_LENGTH = 20;
+
+    /** Most selectors a block can use */
+    private static final int MAX_SELECTORS = 18002;
+
+    /** Symbols coded with one selector */
+    private static final int GROUP_SIZE = 50;
+
+    /** CRC table of the big-endian CRC-32 bzip2 uses */
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+	for( int i = 0; i < 256; i++ ){
+	    int c = i << 24;
+	    for( int k = 0; k < 8; k++ ){
+		c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+	    }
+	    CRC_TABLE[i] = c;
+	}
+    }
+
+    /** The compressed input */
+    private InputStream in;
+
+    /** Buffer of compressed bytes */
+    private byte[] inBuffer = new byte[1 << 13];
+
+    /** Position and number of bytes in inBuffer */
+    private int inPos, inCount;
+
+    /** Bits read from the input but not used yet, in the low bitCount bits */
+    private int bitBuffer, bitCount;
+
+    /** Maximum block size, from the stream header */
+    private int blockSize;
+
+    /**
+     * The block after the BWT: the low 8 bits of tt[i] are the i-th byte
+     * of the last column, and the high bits link to the next position.
+     */
+    private int[] tt;
+
+    /** Position of the next byte to take out of tt */
+    private int tPos;
+
+    /** Bytes left to take out of tt in this block */
+    private int bwtLeft;
+
+    /** The last byte given out, for the final run-length decoding */
+    private int lastByte;
+
+    /** Number of times lastByte has been seen in a row */
+    private int runCount;
+
+    /** Copies of lastByte still to give out */
+    private int repeat;
+
+    /** CRC stored with the current block, and the one computed */
+    private int storedBlockCRC, blockCRC;
+
+    /** CRC over the block CRCs of the stream */
+    private int streamCRC;
+
+    /** If a block is being read */
+    private boolean inBlock;
+
+    /** If the end of the input was reached */
+    private boolean eof;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor. Reads the stream header.
+     * @param in The compressed input.
+     */
+    public BZip2InputStream(InputStream in) throws IOException {
+	this.in = in;
+	if( !readStreamHeader() ) throw new IOException("Not bzip2 data: no header");
+    }
+
+    @Override
+    public int read() throws IOException {
+	byte[] b = new byte[1];
+	int k = read(b, 0, 1);
+	return k < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+	if( len == 0 ) return 0;
+	int n = 0;
+	while( n < len ){
+	    if( repeat > 0 ){
+		b[off + n++] = (byte) lastByte;
+		updateCRC(lastByte);
+		repeat--;
+		continue;
+	    }
+	    if( bwtLeft == 0 ){
+		if( n > 0 ) break; // return what we have before the next block
+		if( !nextBlock() ) return -1;
+		continue;
+	    }
+	    int t = tt[tPos];
+	    int ch = t & 0xff;
+	    tPos = t >>> 8;
+	    bwtLeft--;
+
+	    if( runCount == 4 ){ // after four equal bytes, a count of more
+		repeat = ch;
+		runCount = 0;
+		continue;
+	    }
+	    if( ch == lastByte ){
+		runCount++;
+	    } else {
+		lastByte = ch;
+		runCount = 1;
+	    }
+	    b[off + n++] = (byte) ch;
+	    updateCRC(ch);
+	}
+	return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+	in.close();
+    }
+
+    private void updateCRC(int ch){
+	blockCRC = (blockCRC << 8) ^ CRC_TABLE[(blockCRC >>> 24) ^ ch];
+    }
+
+    /**
+     * Finish the current block, and read the next one.
+     * @return false at the end of the data.
+     */
+    private boolean nextBlock() throws IOException {
+	if( eof ) return false;
+	if( inBlock ){
+	    blockCRC = ~blockCRC;
+	    if( blockCRC != storedBlockCRC ) throw new IOException("bzip2 block CRC error");
+	    streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCRC;
+	    inBlock = false;
+	}
+	while( true ){
+	    long magic = ((long) readBits(24) << 24) | readBits(24);
+	    if( magic == 0x314159265359L ){
+		readBlock();
+		if( bwtLeft > 0 ) return true;
+		continue; // an empty block
+	    }
+	    if( magic != 0x177245385090L ) throw new IOException("bzip2 data corrupt: bad block magic");
+	    int stored = readInt();
+	    if( stored != streamCRC ) throw new IOException("bzip2 stream CRC error");
+	    bitCount -= bitCount % 8; // streams start on a byte
+	    if( !readStreamHeader() ){
+		eof = true;
+		return false;
+	    }
+	}
+    }
+
+    /**
+     * Read a stream header, "BZh" and the block size digit.
+     * @return false if the input ended instead.
+     */
+    private boolean readStreamHeader() throws IOException {
+	if( bitCount == 0 && !fillInput() ) return false;
+	if( readBits(8) != 'B' || readBits(8) != 'Z' || readBits(8) != 'h' ){
+	    throw new IOException("Not bzip2 data: bad stream header");
+	}
+	int level = readBits(8) - '0';
+	if( level < 1 || level > 9 ) throw new IOException("Not bzip2 data: bad block size");
+	blockSize = level * 100000;
+	if( tt == null || tt.length < blockSize ){ tt = new int[blockSize]; }
+	streamCRC = 0;
+	return true;
+    }
+
+    /** Read a block, after its magic, and undo the BWT into tt. */
+    private void readBlock() throws IOException {
+	storedBlockCRC = readInt();
+	if( readBits(1) != 0 ) throw new IOException("Randomised bzip2 blocks are not supported");
+	int origPtr = readBits(24);
+
+	// the bytes in use
+	int[] seqToUnseq = new int[256];
+	int inUse = 0;
+	int used16 = readBits(16);
+	for( int i = 0; i < 16; i++ ){
+	    if( (used16 & (0x8000 >>> i)) == 0 ) continue;
+	    int used = readBits(16);
+	    for( int j = 0; j < 16; j++ ){
+		if( (used & (0x8000 >>> j)) != 0 ) seqToUnseq[inUse++] = i * 16 + j;
+	    }
+	}
+	if( inUse == 0 ) throw new IOException("bzip2 data corrupt: no bytes in use");
+	int alphaSize = inUse + 2;
+
+	// the selectors, move-to-front coded
+	int groups = readBits(3);
+	if( groups < 2 || groups > MAX_GROUPS ) throw new IOException("bzip2 data corrupt: bad table count");
+	int selectorCount = readBits(15);
+	if( selectorCount < 1 ) throw new IOException("bzip2 data corrupt: no selectors");
+	byte[] selectors = new byte[Math.min(selectorCount, MAX_SELECTORS)];
+	byte[] groupMtf = new byte[groups];
+	for( int i = 0; i < groups; i++ ){ groupMtf[i] = (byte) i; }
+	for( int i = 0; i < selectorCount; i++ ){
+	    int j = 0;
+	    while( readBits(1) != 0 ){
+		if( ++j >= groups ) throw new IOException("bzip2 data corrupt: bad selector");
+	    }
+	    byte v = groupMtf[j];
+	    for( ; j > 0; j-- ){ groupMtf[j] = groupMtf[j-1]; }
+	    groupMtf[0] = v;
+	    if( i < selectors.length ) selectors[i] = v;
+	}
+	selectorCount = selectors.length;
+
+	// the Huffman tables, as delta coded code lengths
+	int[][] limit = new int[groups][MAX_CODE_LENGTH + 2];
+	int[][] base = new int[groups][MAX_CODE_LENGTH + 2];
+	int[][] perm = new int[groups][alphaSize];
+	int[] minLength = new int[groups];
+	int[] length = new int[alphaSize];
+	for( int g = 0; g < groups; g++ ){
+	    int current = readBits(5);
+	    int min = 32, max = 0;
+	    for( int i = 0; i < alphaSize; i++ ){
+		while( true ){
+		    if( current < 1 || current > MAX_CODE_LENGTH ) throw new IOException("bzip2 data corrupt: bad code length");
+		    if( readBits(1) == 0 ) break;
+		    current += readBits(1) == 0 ? 1 : -1;
+		}
+		length[i] = current;
+		min = Math.min(min, current);
+		max = Math.max(max, current);
+	    }
+	    createDecodeTables(limit[g], base[g], perm[g], length, min, max, alphaSize);
+	    minLength[g] = min;
+	}
+
+	// the symbols: move-to-front indexes, with runs of the first one coded as RUNA/RUNB
+	int[] mtf = new int[256];
+	for( int i = 0; i < 256; i++ ){ mtf[i] = i; }
+	int[] counts = new int[256];
+	int eob = inUse + 1;
+	int count = 0;
+	int run = 0, runBit = 1;
+	int selector = -1, groupLeft = 0;
+	int[] gLimit = null, gBase = null, gPerm = null;
+	int gMin = 0;
+	while( true ){
+	    if( groupLeft == 0 ){
+		if( ++selector >= selectorCount ) throw new IOException("bzip2 data corrupt: out of selectors");
+		int g = selectors[selector];
+		gLimit = limit[g];
+		gBase = base[g];
+		gPerm = perm[g];
+		gMin = minLength[g];
+		groupLeft = GROUP_SIZE;
+	    }
+	    groupLeft--;
+
+	    int n = gMin;
+	    int code = readBits(n);
+	    while( code > gLimit[n] ){
+		if( ++n > MAX_CODE_LENGTH ) throw new IOException("bzip2 data corrupt: bad code");
+		code = (code << 1) | readBits(1);
+	    }
+	    int index = code - gBase[n];
+	    if( index < 0 || index >= alphaSize ) throw new IOException("bzip2 data corrupt: bad code");
+	    int sym = gPerm[index];
+
+	    if( sym <= 1 ){ // RUNA or RUNB: a bit of the run length of the front byte
+		run += (sym + 1) * runBit;
+		runBit <<= 1;
+		if( run > blockSize ) throw new IOException("bzip2 data corrupt: run too long");
+		continue;
+	    }
+	    if( run > 0 ){
+		if( count + run > blockSize ) throw new IOException("bzip2 data corrupt: block too long");
+		int v = seqToUnseq[mtf[0]];
+		counts[v] += run;
+		while( run-- > 0 ){ tt[count++] = v; }
+		run = 0;
+		runBit = 1;
+	    }
+	    if( sym == eob ) break;
+
+	    if( count >= blockSize ) throw new IOException("bzip2 data corrupt: block too long");
+	    int k = sym - 1;
+	    int v = mtf[k];
+	    for( ; k > 0; k-- ){ mtf[k] = mtf[k-1]; }
+	    mtf[0] = v;
+	    int ch = seqToUnseq[v];
+	    counts[ch]++;
+	    tt[count++] = ch;
+	}
+	if( origPtr >= count && count > 0 ) throw new IOException("bzip2 data corrupt: bad origin");
+
+	// inverse BWT: link each byte to the position of the next one
+	int[] start = new int[256];
+	for( int i = 1; i < 256; i++ ){ start[i] = start[i-1] + counts[i-1]; }
+	for( int i = 0; i < count; i++ ){
+	    int ch = tt[i] & 0xff;
+	    tt[start[ch]++] |= i << 8;
+	}
+	tPos = count > 0 ? tt[origPtr] >>> 8 : 0;
+	bwtLeft = count;
+	lastByte = -1;
+	runCount = 0;
+	repeat = 0;
+	blockCRC = 0xffffffff;
+	inBlock = true;
+    }
+
+    /**
+     * Make the tables to decode one Huffman code, from its code lengths.
+     * A code of n bits is valid when it is at most limit[n], and then
+     * perm[code - base[n]] is its symbol.
+     */
+    private static void createDecodeTables(int[] limit, int[] base, int[] perm, int[] length,
+	    int min, int max, int alphaSize){
+	int p = 0;
+	for( int n = min; n <= max; n++ ){
+	    for( int i = 0; i < alphaSize; i++ ){
+		if( length[i] == n ) perm[p++] = i;
+	    }
+	}
+	for( int i = 0; i < alphaSize; i++ ){ base[length[i] + 1]++; }
+	for( int i = 1; i < base.length; i++ ){ base[i] += base[i-1]; }
+	int code = 0;
+	for( int n = min; n <= max; n++ ){
+	    code += base[n+1] - base[n];
+	    limit[n] = code - 1;
+	    code <<= 1;
+	}
+	for( int n = min + 1; n <= max; n++ ){
+	    base[n] = ((limit[n-1] + 1) << 1) - base[n];
+	}
+	for( int n = max + 1; n < limit.length; n++ ){ limit[n] = Integer.MAX_VALUE; }
+	for( int n = 0; n < min; n++ ){ limit[n] = -1; }
+    }
+
+    /** Read a 32 bit number */
+    private int readInt() throws IOException {
+	return (readBits(16) << 16) | readBits(16);
+    }
+
+    /** Read n bits, at most 24, most significant first */
+    private int readBits(int n) throws IOException {
+	while( bitCount < n ){
+	    if( inPos == inCount && !fillInput() ) throw new EOFException("Unexpected end of bzip2 data");
+	    bitBuffer = (bitBuffer << 8) | (inBuffer[inPos++] & 0xff);
+	    bitCount += 8;
+	}
+	bitCount -= n;
+	return (bitBuffer >>> bitCount) & ((1 << n) - 1);
+    }
+
+    /** Fill the input buffer if it is used up; false at the end of input */
+    private boolean fillInput() throws IOException {
+	if( inPos < inCount ) return true;
+	inCount = in.read(inBuffer, 0, inBuffer.length);
+	inPos = 0;
+	if( inCount <= 0 ){
+	    inCount = 0;
+	    return false;
+	}
+	return true;
+    }
+
+}
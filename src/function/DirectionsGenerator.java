@@ -1,66 +1,152 @@
 package function;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import elements.ContractionHierarchy;
 import elements.Node;
+import elements.NodeManager;
+import elements.RoadGraph;
 
 
 /**
  * This class encapsulates the algorithm for computing a path
  * from one Node to another. This class provides methods for finding
- * directions from start to end. Uses Dijkstra's algorithm.
+ * directions from start to end. Uses Dijkstra's algorithm, on the
+ * RoadGraph of the map data: nodes are referred to by their indexes,
+ * the per-node state is in arrays that are kept between queries, and
+ * the next node to visit comes from a NodeHeap.
+ *
+ * Nodes are visited in order of their distance from the start, so the
+ * distance of a visited node is final, and the search stops as soon as
+ * the end is visited: a short trip settles only the nodes closer to
+ * the start than the end is.
+ *
+ * With Search.ASTAR, nodes are visited in order of their distance from
+ * the start plus the straight line distance from them to the end, which
+ * no route is shorter than. The search heads for the end instead of
+ * spreading around the start, and settles fewer nodes for the same
+ * route.
+ *
+ * Search.BIDIRECTIONAL searches back from the end at the same time,
+ * each time on the side with the nearer next node, until no route
+ * through the nodes left to visit can be shorter than the shortest one
+ * found where the two searches met. Each side spreads about half as
+ * far as a search from one side would. The road graph has each edge
+ * both ways, with the same length, so the search back walks the same
+ * edges. Search.BIDIRECTIONAL_ASTAR also heads each side for the other,
+ * by the average of the distances left to the end and to the start.
+ *
+ * Search.HIERARCHY searches the ContractionHierarchy of the map data,
+ * if it has one: both sides only go up the ranks, over few edges, so
+ * a query settles some hundreds of nodes wherever its ends are. The
+ * shortcuts of the route found are unpacked into the nodes of the road
+ * graph they stand for.
  */
 public class DirectionsGenerator {
 
+    /** How a query searches the graph */
+    public enum Search {
+	/** Visit the nodes by their distance from the start */
+	DIJKSTRA,
+	/** Visit the nodes by their distance from the start plus the distance left */
+	ASTAR,
+	/** Visit the nodes by their distance from the start, and from the end */
+	BIDIRECTIONAL,
+	/** Visit the nodes from the start and from the end, heading for the other */
+	BIDIRECTIONAL_ASTAR,
+	/** Visit the nodes up the contraction hierarchy from both ends; like BIDIRECTIONAL if there is none */
+	HIERARCHY
+    }
+
+    /**
+     * Factor of the straight line distance to the end, for ASTAR. The
+     * edge lengths are floats, rounded from the great circle distance,
+     * so the estimate is lowered a little to stay below any route.
+     */
+    private static final double ESTIMATE_FACTOR = 1 - 1e-6;
+
+    /** The nodes, to get the Node objects of the path */
+    private NodeManager nodeManager;
+
     /** 
-     * All nodes that are neighbor to some node from the start.
-     * This is the list of nodes that we consider looking at.
-     * It probably extends to all nodes connected to the start.
+     * The nodes that were reached and not visited yet, keyed by
+     * their distance from the start. The next node to visit is
+     * the one with the smallest distance.
      */
-    private ArrayList<Node> toVisit; 
+    private NodeHeap toVisit; 
+
+    /** The nodes reached by the search back from the end, keyed like toVisit */
+    private NodeHeap toVisitBack;
+
+    /**
+     * The straight line distance from each node to the end, by index,
+     * for ASTAR; for BIDIRECTIONAL_ASTAR, the half of it less the half of
+     * the distance to the start. Set when the node is first reached.
+     */
+    private double[] estimate;
+
+    /** The end of the query: its latitude and longitude in radians, and the cosine of the latitude */
+    private double endLat;
+    private double endLon;
+    private double endCos;
+
+    /** The start of the query, like the end */
+    private double startLat;
+    private double startLon;
+    private double startCos;
 
     /** 
-     * Map the nodeID to the shortest distance that that node.
-     * The distance ( value ) is the shortest distance from the 
-     * startNode to the node with the key nodeID.
-     * @key The node reached through the value
-     * @value The distance from startNode to the key node.
+     * The shortest distance from the start node to each node, by index.
+     * NaN is the equivalent to the distance being infinity.
      */
-    private HashMap<Node, Double> distanceMap;
+    private double[] distance;
 
     /** 
-     * The Set of visited nodes. Each node is visited once.
-     * If a node is contained in this set, then it is not 
-     * visited again.
+     * The visited nodes, by index. Each node is visited once.
+     * If a node is visited, then it is not visited again.
      */
-    private HashSet<Node> visited;
+    private boolean[] visited;
+
+    /** The distances to the end, by index, for the search back; NaN for infinity */
+    private double[] distanceBack;
+
+    /** The nodes visited by the search back, by index */
+    private boolean[] visitedBack;
 
     /**
-     * The a HashMap of visited nodes that caused an update in distanceMap.
-     * An update in distanceMap indicates that there is a shorter path
-     * to the most recently visited node. Used to trace back to startNode.
-     * 
-     * @key The node that is reached through its value node. 
-     * @value The node that should be backtracked to, 
-     * since the shortest possible path is through this node.
+     * The node after each node on the shortest known path to the end,
+     * by index, set by the search back; -1 for none.
      */
-    private HashMap<Node, Node> predecessorMap;
+    private int[] successor;
+
+    /** The length of the shortest route the two searches found, and the node where they met */
+    private double shortest;
+    private int meeting;
+
+    /**
+     * The node that should be backtracked to from each node, by index,
+     * since the shortest known path is through it; -1 for none. 
+     * Set by the visits that caused an update in distance.
+     */
+    private int[] predecessor;
+
+    /** The nodes that have a distance, to reset only those after a query */
+    private int[] touched;
+    private int touchedSize;
 
     
     // ------- end of fields ------- // 
 
     /**
      * The constructor.
-     * @param start The start Node
-     * @param end The end Node
-     * @param data Relevant mapData
+     * @param nodeManager The nodes of the finalized map data.
      */
-    public DirectionsGenerator(){
-	distanceMap = new HashMap<Node, Double>();
-	predecessorMap = new HashMap<Node, Node>();
-	toVisit = new ArrayList<Node>();
-	visited = new HashSet<Node>();
+    public DirectionsGenerator( NodeManager nodeManager ){
+	this.nodeManager = nodeManager;
+	toVisit = new NodeHeap(0);
+	toVisitBack = new NodeHeap(0);
+	touched = new int[16];
     }
 
     /**
@@ -74,80 +160,388 @@ public class DirectionsGenerator {
      * otherwise null.
      */
     public ArrayList<Node> generateDirections( Node start, Node end ){
-	return genDirections(start, end);
+	Route route = genDirections(start, end, Search.DIJKSTRA);
+	return route == null ? null : route.getPath();
     }
 
     /**
-     * Generates a path from start node to end node
-     * using Dijkstra's algorithm. A key == null is 
-     * the equivalent to it's distance being infinity.
+     * Find the shortest route from the specified start Node
+     * to the specified end Node.
      * 
-     * @return an ArrayList of Node objects that makeup
-     * the path from start node to end node. 
+     * @param start The start Node.
+     * @param end The end Node to be reached.
+     * @return the Route: the path from start to end, its 
+     * length and the number of nodes settled to find it,
+     * if start and end are connected; otherwise null.
      */
-    private synchronized ArrayList<Node> genDirections( Node start, Node end ){
+    public Route findRoute( Node start, Node end ){
+	return genDirections(start, end, Search.DIJKSTRA);
+    }
 
-	Node startTemp = start;
-	toVisit.add(start);
-	distanceMap.put(start, 0.0); 
+    /**
+     * Find the shortest route from the specified start Node
+     * to the specified end Node, searching as specified.
+     * Both searches find a route of the same length.
+     * 
+     * @param start The start Node.
+     * @param end The end Node to be reached.
+     * @param search How to search.
+     * @return the Route, if start and end are connected;
+     * otherwise null.
+     */
+    public Route findRoute( Node start, Node end, Search search ){
+	if( search == Search.HIERARCHY ){
+	    ContractionHierarchy hierarchy = nodeManager.getHierarchy();
+	    if( hierarchy != null ){ return genHierarchy(start, end, hierarchy); }
+	    search = Search.BIDIRECTIONAL;
+	}
+	if( search == Search.BIDIRECTIONAL || search == Search.BIDIRECTIONAL_ASTAR ){
+	    return genBidirectional(start, end, search == Search.BIDIRECTIONAL_ASTAR);
+	}
+	return genDirections(start, end, search);
+    }
+
+    /** Make the per-node arrays big enough for the graph. */
+    private void ensureCapacity( int nodes ){
+	if( distance != null && distance.length >= nodes ) return;
+	distance = new double[nodes];
+	Arrays.fill(distance, Double.NaN);
+	predecessor = new int[nodes];
+	Arrays.fill(predecessor, -1);
+	visited = new boolean[nodes];
+	estimate = new double[nodes];
+	distanceBack = new double[nodes];
+	Arrays.fill(distanceBack, Double.NaN);
+	successor = new int[nodes];
+	Arrays.fill(successor, -1);
+	visitedBack = new boolean[nodes];
+	toVisit.ensureCapacity(nodes);
+	toVisitBack.ensureCapacity(nodes);
+    }
+
+    /**
+     * Generates a path from start node to end node
+     * using Dijkstra's algorithm, or A* with the straight
+     * line distance to the end. A distance of NaN is 
+     * the equivalent to it being infinity.
+     * 
+     * @return the Route of Node objects that makeup
+     * the path from start node to end node; null if
+     * the end cannot be reached.
+     */
+    private synchronized Route genDirections( Node startNode, Node end, Search search ){
+	RoadGraph graph = nodeManager.getRoadGraph();
+	if( graph == null ){ return null; }
+	ensureCapacity(graph.getNodeCount());
 
-	while( toVisit.size() > 0 ){ // there are eligible nodes to visit
+	int startTemp = startNode.getIndex();
+	int endIndex = end.getIndex();
+	int settled = 0;
+	boolean aStar = search == Search.ASTAR;
+	if( aStar ){
+	    endLat = Math.toRadians(nodeManager.getLatitude(endIndex));
+	    endLon = Math.toRadians(nodeManager.getLongitude(endIndex));
+	    endCos = Math.cos(endLat);
+	}
+	setDistance(startTemp, 0.0); 
+	toVisit.add(startTemp, aStar ? estimate(startTemp) : 0.0);
 
-	    visited.add(start); // mark 'start' as visited
+	while( !toVisit.isEmpty() ){ // there are eligible nodes to visit
 
-	    // get neighbors reachable from one step from start.
-	    ArrayList<Node> neighbors = start.getNeighbors();
+	    // the unvisited node with the smallest distance (plus estimate);
+	    // no shorter path to it can be found after this.
+	    int start = toVisit.removeMin();
+	    visited[start] = true; // mark 'start' as visited
+	    settled++;
+	    if( start == endIndex ){ break; } // reached end; done.
 
 	    // for all neighbor nodes to start; "n" is neighbor to start.
-	    for(Node n: neighbors){
-		if( visited.contains(n) ){ continue; } // already visited. 
-		if(!toVisit.contains(n)){ 
-		    toVisit.add(n); 
-		}
+	    for( int e = graph.firstEdge(start); e < graph.endEdge(start); e++ ){
+		int n = graph.getTarget(e);
+		if( visited[n] ){ continue; } // already visited. 
 
 		// compute distance from startNode to this node n.
-		double dist = distanceMap.get(start) + start.distFrom(n);
+		double dist = distance[start] + graph.getLength(e);
 
-		// if the distance is null (infinity), or if new distance is less than current,
+		// if the distance is NaN (infinity), or if new distance is less than current,
 		// replace old distance value with new shorter distance, then mark the node
 		// stepped from as the predecessor allowing shorter distance. It caused update.
-		if( distanceMap.get(n) == null || dist < distanceMap.get(n) ){
-		    distanceMap.put(n, dist);
-		    predecessorMap.put(n, start);
+		if( Double.isNaN(distance[n]) || dist < distance[n] ){
+		    if( aStar && Double.isNaN(distance[n]) ){ estimate[n] = estimate(n); }
+		    setDistance(n, dist);
+		    predecessor[n] = start;
+		    toVisit.addOrDecrease(n, aStar ? dist + estimate[n] : dist);
+		}
+	    }
+	} // end of while loop
+	ArrayList<Node> path = backtrack(startTemp, endIndex);
+	Route route = path == null ? null : new Route(path, distance[endIndex], settled);
+	resetMaps();
+	return route;
+    }
+
+    /**
+     * Generates a path from start node to end node by searching
+     * from both, with Dijkstra's algorithm, or A* if aStar is true.
+     * The forward search is keyed by the distance from the start
+     * plus the potential of the node (its estimate), and the search
+     * back by the distance to the end less it; with no potential,
+     * that is plain Dijkstra's algorithm from both sides.
+     * 
+     * @return the Route from start node to end node; 
+     * null if the end cannot be reached.
+     */
+    private synchronized Route genBidirectional( Node startNode, Node end, boolean aStar ){
+	RoadGraph graph = nodeManager.getRoadGraph();
+	if( graph == null ){ return null; }
+	ensureCapacity(graph.getNodeCount());
+
+	int startIndex = startNode.getIndex();
+	int endIndex = end.getIndex();
+	int settled = 0;
+	if( aStar ){
+	    endLat = Math.toRadians(nodeManager.getLatitude(endIndex));
+	    endLon = Math.toRadians(nodeManager.getLongitude(endIndex));
+	    endCos = Math.cos(endLat);
+	    startLat = Math.toRadians(nodeManager.getLatitude(startIndex));
+	    startLon = Math.toRadians(nodeManager.getLongitude(startIndex));
+	    startCos = Math.cos(startLat);
+	    estimate[startIndex] = potential(startIndex);
+	    estimate[endIndex] = potential(endIndex);
+	}
+	shortest = Double.POSITIVE_INFINITY;
+	meeting = -1;
+	setDistance(startIndex, 0.0);
+	toVisit.add(startIndex, aStar ? estimate[startIndex] : 0.0);
+	setBackDistance(endIndex, 0.0);
+	toVisitBack.add(endIndex, aStar ? -estimate[endIndex] : 0.0);
+	meet(endIndex);
+
+	while( !toVisit.isEmpty() && !toVisitBack.isEmpty() ){
+
+	    // a route through a node not visited yet by either side 
+	    // is at least as long as the sum of the smallest keys. 
+	    if( toVisit.minKey() + toVisitBack.minKey() >= shortest ){ break; }
+
+	    // step the side whose next node is nearer
+	    boolean forward = toVisit.minKey() <= toVisitBack.minKey();
+	    NodeHeap heap = forward ? toVisit : toVisitBack;
+	    double[] dists = forward ? distance : distanceBack;
+	    boolean[] done = forward ? visited : visitedBack;
+	    int[] from = forward ? predecessor : successor;
+
+	    int start = heap.removeMin();
+	    done[start] = true;
+	    settled++;
+
+	    for( int e = graph.firstEdge(start); e < graph.endEdge(start); e++ ){
+		int n = graph.getTarget(e);
+		if( done[n] ){ continue; }
+
+		double dist = dists[start] + graph.getLength(e);
+		if( Double.isNaN(dists[n]) || dist < dists[n] ){
+		    if( aStar && !isReached(n) ){ estimate[n] = potential(n); }
+		    if( forward ){ setDistance(n, dist); } else { setBackDistance(n, dist); }
+		    from[n] = start;
+		    heap.addOrDecrease(n, !aStar ? dist : forward ? dist + estimate[n] : dist - estimate[n]);
+		    meet(n);
 		}
+	    }
+	} // end of while loop
+	Route route = meeting == -1 ? null : new Route(stitch(startIndex, endIndex), shortest, settled);
+	resetMaps();
+	return route;
+    }
 
-		// Add all neighbors of one step reachable nodes to toVisit.
-		// These are the neighbors of start's neighbors.
-		ArrayList<Node> nNeighbors = n.getNeighbors(); // neighbors of neighbor
-		for( Node otherN : nNeighbors ){
-		    if( visited.contains(otherN) ){ continue; }
-		    if(!toVisit.contains(otherN)){
-			double od = distanceMap.get(n) + n.distFrom(otherN);
-			distanceMap.put(otherN, od);
-			predecessorMap.put(otherN, n);
-			toVisit.add(otherN); 
-		    }
+    /**
+     * Generates a path from start node to end node by searching up
+     * the contraction hierarchy from both, with Dijkstra's algorithm.
+     * The two sides do not take turns to meet in the middle: each
+     * goes on until its next node is no nearer than the shortest
+     * route found, as the top of the route can be anywhere.
+     * 
+     * @return the Route from start node to end node; 
+     * null if the end cannot be reached.
+     */
+    private synchronized Route genHierarchy( Node startNode, Node end, ContractionHierarchy hierarchy ){
+	ensureCapacity(hierarchy.getNodeCount());
+
+	int startIndex = startNode.getIndex();
+	int endIndex = end.getIndex();
+	int settled = 0;
+	shortest = Double.POSITIVE_INFINITY;
+	meeting = -1;
+	setDistance(startIndex, 0.0);
+	toVisit.add(startIndex, 0.0);
+	setBackDistance(endIndex, 0.0);
+	toVisitBack.add(endIndex, 0.0);
+	meet(endIndex);
+
+	while( true ){
+	    boolean forwardDone = toVisit.isEmpty() || toVisit.minKey() >= shortest;
+	    boolean backDone = toVisitBack.isEmpty() || toVisitBack.minKey() >= shortest;
+	    if( forwardDone && backDone ){ break; }
+
+	    boolean forward = backDone || (!forwardDone && toVisit.minKey() <= toVisitBack.minKey());
+	    NodeHeap heap = forward ? toVisit : toVisitBack;
+	    double[] dists = forward ? distance : distanceBack;
+	    int[] from = forward ? predecessor : successor;
+
+	    // the edges only go up, so a node settled is not reached again
+	    int start = heap.removeMin();
+	    settled++;
+
+	    for( int e = hierarchy.firstEdge(start); e < hierarchy.endEdge(start); e++ ){
+		int n = hierarchy.getTarget(e);
+		double dist = dists[start] + hierarchy.getLength(e);
+		if( Double.isNaN(dists[n]) || dist < dists[n] ){
+		    if( forward ){ setDistance(n, dist); } else { setBackDistance(n, dist); }
+		    from[n] = start;
+		    heap.addOrDecrease(n, dist);
+		    meet(n);
 		}
 	    }
+	} // end of while loop
+	Route route = meeting == -1 ? null : unpack(hierarchy, startIndex, settled);
+	resetMaps();
+	return route;
+    }
 
-	    // Select the unvisited node v for which distance[v] is smallest
-	    // (this can be done by simply scanning distance[]).
-	    // in other words, set as 'start'
-	    double dist = -1;
-	    Node m = null;
-	    for(Node v: toVisit){
-		double vDist = distanceMap.get(v);
-		if(dist == -1 || vDist < distanceMap.get(m)){
-		    m = v;
-		    dist = vDist;
+    /**
+     * The route through the meeting node of a hierarchy search, with
+     * every shortcut replaced by the two edges it was made of, until
+     * only edges of the road graph are left. The length is summed 
+     * from the start, over the edges of the road graph.
+     */
+    private Route unpack( ContractionHierarchy hierarchy, int start, int settled ){
+	// the nodes of the hierarchy from the start to the meeting node, and on to the end
+	int[] nodes = new int[16];
+	int count = 0;
+	for( int n = meeting; n != -1; n = predecessor[n] ){ nodes = append(nodes, count++, n); }
+	for( int i = 0, j = count - 1; i < j; i++, j-- ){
+	    int t = nodes[i];
+	    nodes[i] = nodes[j];
+	    nodes[j] = t;
+	}
+	for( int n = successor[meeting]; n != -1; n = successor[n] ){ nodes = append(nodes, count++, n); }
+
+	ArrayList<Node> path = new ArrayList<Node>();
+	path.add(nodeManager.getNodeByIndex(start));
+	double cost = 0;
+	int[] stack = new int[32]; // pairs of nodes, the top one is unpacked next
+	for( int i = 0; i + 1 < count; i++ ){
+	    int size = 0;
+	    stack = append(stack, size++, nodes[i]);
+	    stack = append(stack, size++, nodes[i+1]);
+	    while( size > 0 ){
+		int b = stack[--size];
+		int a = stack[--size];
+		int e = hierarchy.findEdge(a, b);
+		int middle = hierarchy.getMiddle(e);
+		if( middle == -1 ){
+		    cost += hierarchy.getLength(e);
+		    path.add(nodeManager.getNodeByIndex(b));
+		} else { // a to middle first
+		    stack = append(stack, size++, middle);
+		    stack = append(stack, size++, b);
+		    stack = append(stack, size++, a);
+		    stack = append(stack, size++, middle);
 		}
 	    }
-	    toVisit.remove(m);
-	    start = m;
+	}
+	Collections.reverse(path); // from the end back to the start
+	return new Route(path, cost, settled);
+    }
 
+    /** Put a value at index i of an array, growing it if needed. */
+    private static int[] append( int[] a, int i, int value ){
+	if( i == a.length ){ a = Arrays.copyOf(a, 2 * i); }
+	a[i] = value;
+	return a;
+    }
 
-	} // end of while loop
-	return backtrack(startTemp, end);
+    /** Keep the route through a node if it is the shortest yet found by both searches. */
+    private void meet( int n ){
+	double dist = distance[n] + distanceBack[n]; // NaN if either search did not reach it
+	if( dist < shortest ){
+	    shortest = dist;
+	    meeting = n;
+	}
+    }
+
+    /** 
+     * The path of the route through the meeting node, from the end
+     * back to the start, like backtrack().
+     */
+    private ArrayList<Node> stitch( int start, int end ){
+	ArrayList<Node> path = new ArrayList<Node>();
+	for( int n = meeting; n != -1; n = successor[n] ){
+	    path.add(nodeManager.getNodeByIndex(n));
+	}
+	Collections.reverse(path); // end to the meeting node
+	for( int n = predecessor[meeting]; n != -1; n = predecessor[n] ){
+	    path.add(nodeManager.getNodeByIndex(n));
+	}
+	return path;
+    }
+
+    /** Check if either search reached a node */
+    private boolean isReached( int n ){
+	return !Double.isNaN(distance[n]) || !Double.isNaN(distanceBack[n]);
+    }
+
+    /** 
+     * The straight line distance from a node to the end, through the
+     * earth: the chord of the great circle distance, which is shorter,
+     * and needs no arcsine. It is a little lowered, so that it is never
+     * more than the length of a route.
+     */
+    private double estimate( int n ){
+	double lat = Math.toRadians(nodeManager.getLatitude(n));
+	double lon = Math.toRadians(nodeManager.getLongitude(n));
+	return chord(lat, lon, Math.cos(lat), endLat, endLon, endCos) * ESTIMATE_FACTOR;
+    }
+
+    /**
+     * The potential of a node for BIDIRECTIONAL_ASTAR: half the
+     * estimate to the end less half the estimate to the start. The
+     * search back uses its negative, so both sides see the same
+     * reduced edge lengths, and their keys can be added.
+     */
+    private double potential( int n ){
+	double lat = Math.toRadians(nodeManager.getLatitude(n));
+	double lon = Math.toRadians(nodeManager.getLongitude(n));
+	double cos = Math.cos(lat);
+	double toEnd = chord(lat, lon, cos, endLat, endLon, endCos);
+	double toStart = chord(lat, lon, cos, startLat, startLon, startCos);
+	return (toEnd - toStart) / 2 * ESTIMATE_FACTOR;
+    }
+
+    /** The chord distance between two points, in radians, with the cosines of their latitudes */
+    private static double chord( double lat1, double lon1, double cos1, double lat2, double lon2, double cos2 ){
+	double sinLat = Math.sin((lat2 - lat1) / 2);
+	double sinLon = Math.sin((lon2 - lon1) / 2);
+	double h = sinLat * sinLat + cos1 * cos2 * sinLon * sinLon;
+	return 2 * NodeManager.EARTH_RADIUS * Math.sqrt(h);
+    }
+
+    /** Set the distance of a node, remembering it for resetMaps(). */
+    private void setDistance( int n, double dist ){
+	touch(n);
+	distance[n] = dist;
+    }
+
+    /** Set the distance to the end of a node, remembering it for resetMaps(). */
+    private void setBackDistance( int n, double dist ){
+	touch(n);
+	distanceBack[n] = dist;
+    }
+
+    /** Remember a node for resetMaps(), when it is first reached */
+    private void touch( int n ){
+	if( isReached(n) ) return;
+	if( touchedSize == touched.length ){ touched = Arrays.copyOf(touched, touchedSize * 2); }
+	touched[touchedSize++] = n;
     }
 
     /** 
@@ -157,32 +551,36 @@ public class DirectionsGenerator {
      * @return path The path from start to end if 
      * the end was reached, otherwise null.
      */
-    private ArrayList<Node> backtrack(Node start, Node end){
-	if(!visited.contains(end)){ return null; } // never reached end.
+    private ArrayList<Node> backtrack( int start, int end ){
+	if( !visited[end] ){ return null; } // never reached end.
 
 	ArrayList<Node> path = new ArrayList<Node>();
-	Node prevN = end;
-	path.add(end);
+	int prevN = end;
+	path.add(nodeManager.getNodeByIndex(end));
 
-	while( prevN != null && !prevN.equals(start)){
-	    prevN = predecessorMap.get(prevN);
-	    path.add(prevN);
+	while( prevN != -1 && prevN != start ){
+	    prevN = predecessor[prevN];
+	    path.add(prevN == -1 ? null : nodeManager.getNodeByIndex(prevN));
 	}
-	resetMaps();
 	return path;
     }
 
     /** 
-     * Reset some necessary fields. It would make sense 
-     * to put all these fields in the method itself,
-     * but I needed to write out descriptions to think.
+     * Reset the per-node state of the nodes the last query
+     * reached, so that the arrays are ready for the next one.
      */
     private void resetMaps(){
-	distanceMap.clear();
-	predecessorMap.clear();
+	for( int i = 0; i < touchedSize; i++ ){
+	    int n = touched[i];
+	    distance[n] = Double.NaN;
+	    predecessor[n] = -1;
+	    visited[n] = false;
+	    distanceBack[n] = Double.NaN;
+	    successor[n] = -1;
+	    visitedBack[n] = false;
+	}
 	toVisit.clear();
-	visited.clear();
+	toVisitBack.clear();
+	touchedSize = 0;
     }
 }
-
-
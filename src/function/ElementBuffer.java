@@ -0,0 +1,202 @@
+package function;
+
+import java.util.Arrays;
+
+/**
+ * ElementSink that records elements in primitive arrays, so that they can
+ * be replayed into another sink later. Used to parse parts of a file on
+ * separate threads: each part fills its own buffer, and the buffers are
+ * then replayed into one MapDataSink, nodes first.
+ */
+public class ElementBuffer implements ElementSink {
+
+    /** Number of elements recorded */
+    private int count;
+
+    /** Element types, by element */
+    private byte[] types;
+
+    /** Element ids, by element */
+    private long[] ids;
+
+    /** Node latitudes, by element */
+    private double[] lats;
+
+    /** Node longitudes, by element */
+    private double[] lons;
+
+    /** Offsets of the elements in the file, see RawElement.getSourceOffset() */
+    private long[] offsets;
+
+    /** Start of the element's refs in refs[], by element; count + 1 long */
+    private int[] refStart;
+
+    /** Start of the element's tags in tagKeys[], by element; count + 1 long */
+    private int[] tagStart;
+
+    /** All refs, element after element */
+    private long[] refs;
+
+    /** Member types of all refs */
+    private byte[] memberTypes;
+
+    /** Member roles of all refs; null until a relation with roles is recorded */
+    private String[] memberRoles;
+
+    /** Number of refs recorded */
+    private int refCount;
+
+    /** All tag keys, element after element */
+    private String[] tagKeys;
+
+    /** All tag values, parallel to tagKeys */
+    private String[] tagValues;
+
+    /** Number of tags recorded */
+    private int tagCount;
+
+    /** The recorded bounds, or null if none were given */
+    private double[] bounds;
+
+    /** Element used to replay the recording */
+    private RawElement replayElement;
+
+
+    // --- end of fields --- //
+
+    /** The constructor. */
+    public ElementBuffer(){
+	types = new byte[256];
+	ids = new long[256];
+	lats = new double[256];
+	lons = new double[256];
+	offsets = new long[256];
+	refStart = new int[257];
+	tagStart = new int[257];
+	refs = new long[1024];
+	memberTypes = new byte[1024];
+	tagKeys = new String[256];
+	tagValues = new String[256];
+    }
+
+    /** Record the bounds */
+    @Override
+    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	bounds = new double[]{ minlat, minlon, maxlat, maxlon };
+    }
+
+    /** Record a copy of the element */
+    @Override
+    public void element(RawElement e){
+	if( count == types.length ){
+	    int capacity = count * 2;
+	    types = Arrays.copyOf(types, capacity);
+	    ids = Arrays.copyOf(ids, capacity);
+	    lats = Arrays.copyOf(lats, capacity);
+	    lons = Arrays.copyOf(lons, capacity);
+	    offsets = Arrays.copyOf(offsets, capacity);
+	    refStart = Arrays.copyOf(refStart, capacity + 1);
+	    tagStart = Arrays.copyOf(tagStart, capacity + 1);
+	}
+	types[count] = (byte) e.getType();
+	ids[count] = e.getID();
+	lats[count] = e.getLatitude();
+	lons[count] = e.getLongitude();
+	offsets[count] = e.getSourceOffset();
+
+	int n = e.getRefCount();
+	if( refCount + n > refs.length ){
+	    int capacity = Math.max(refs.length * 2, refCount + n);
+	    refs = Arrays.copyOf(refs, capacity);
+	    memberTypes = Arrays.copyOf(memberTypes, capacity);
+	    if( memberRoles != null ){ memberRoles = Arrays.copyOf(memberRoles, capacity); }
+	}
+	for( int i = 0; i < n; i++ ){
+	    refs[refCount + i] = e.getRef(i);
+	    memberTypes[refCount + i] = (byte) e.getMemberType(i);
+	    String role = e.getMemberRole(i);
+	    if( role != null ){
+		if( memberRoles == null ){ memberRoles = new String[refs.length]; }
+		memberRoles[refCount + i] = role;
+	    }
+	}
+	refCount += n;
+
+	int t = e.getTagCount();
+	if( tagCount + t > tagKeys.length ){
+	    int capacity = Math.max(tagKeys.length * 2, tagCount + t);
+	    tagKeys = Arrays.copyOf(tagKeys, capacity);
+	    tagValues = Arrays.copyOf(tagValues, capacity);
+	}
+	for( int i = 0; i < t; i++ ){
+	    tagKeys[tagCount + i] = e.getTagKey(i);
+	    tagValues[tagCount + i] = e.getTagValue(i);
+	}
+	tagCount += t;
+
+	count++;
+	refStart[count] = refCount;
+	tagStart[count] = tagCount;
+    }
+
+    /** Get the number of elements recorded. */
+    public int size(){ return count; }
+
+    /** Forget everything recorded, keeping the arrays for reuse. */
+    public void clear(){
+	count = 0;
+	refCount = 0;
+	tagCount = 0;
+	bounds = null;
+	Arrays.fill(tagKeys, null);
+	Arrays.fill(tagValues, null);
+	if( memberRoles != null ){ Arrays.fill(memberRoles, null); }
+    }
+
+    /**
+     * Replay the recorded bounds, if any, into a sink.
+     * @param sink The sink to give the bounds to.
+     */
+    public void replayBounds(ElementSink sink){
+	if( bounds != null ){ sink.bounds(bounds[0], bounds[1], bounds[2], bounds[3]); }
+    }
+
+    /**
+     * Replay the recorded elements of one type into a sink, in the order
+     * they were recorded.
+     * @param sink The sink to give the elements to.
+     * @param type RawElement.NODE, WAY or RELATION.
+     */
+    public void replay(ElementSink sink, int type){
+	if( replayElement == null ){ replayElement = new RawElement(); }
+	RawElement e = replayElement;
+
+	for( int k = 0; k < count; k++ ){
+	    if( types[k] != type ) continue;
+	    e.reset(type, ids[k]);
+	    e.setLocation(lats[k], lons[k]);
+	    e.setSourceOffset(offsets[k]);
+	    for( int i = refStart[k]; i < refStart[k+1]; i++ ){
+		String role = memberRoles == null ? null : memberRoles[i];
+		e.addMember(memberTypes[i], refs[i], role);
+	    }
+	    for( int i = tagStart[k]; i < tagStart[k+1]; i++ ){
+		e.addTag(tagKeys[i], tagValues[i]);
+	    }
+	    sink.element(e);
+	}
+    }
+
+    /**
+     * Replay everything recorded into a sink: the bounds, then all the
+     * nodes, then the ways, then the relations.
+     * @param sink The sink to give the elements to.
+     */
+    public void replay(ElementSink sink){
+	replayBounds(sink);
+	replay(sink, RawElement.NODE);
+	replay(sink, RawElement.WAY);
+	replay(sink, RawElement.RELATION);
+    }
+
+}
@@ -0,0 +1,27 @@
+package function;
+
+/**
+ * Receiver of the elements read from an OSM source. The readers
+ * (the SAX handler of OSMParser, and the others) call these methods
+ * in file order; MapDataSink builds the MapData from them, and
+ * ElementBuffer records them to be replayed later.
+ */
+public interface ElementSink {
+
+    /**
+     * The bounds of the map.
+     * @param minlat The minimum latitude.
+     * @param minlon The minimum longitude.
+     * @param maxlat The maximum latitude.
+     * @param maxlon The maximum longitude.
+     */
+    public void bounds(double minlat, double minlon, double maxlat, double maxlon);
+
+    /**
+     * A complete node, way or relation. The element object is reused
+     * by the caller once this method returns.
+     * @param e The element.
+     */
+    public void element(RawElement e);
+
+}
@@ -0,0 +1,151 @@
+package function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A choice of which elements of an OSM file to load, decided at parse
+ * time from their tags. A profile keeps the ways and relations that have
+ * one of its keep tags and none of its drop tags; nodes are kept if a
+ * kept way uses them, or if they have one of the node keep tags. See
+ * FilterSink, which applies a profile.
+ *
+ * ALL keeps everything; ROUTING keeps the road network only, and
+ * RENDERING what DisplayPanel draws.
+ */
+public class FilterProfile {
+
+    /** Keeps everything */
+    public static final FilterProfile ALL = new FilterProfile("all", true);
+
+    /** The roads that can be travelled, and turn restrictions */
+    public static final FilterProfile ROUTING = new FilterProfile("routing", false)
+	    .keepWays("highway")
+	    .dropWays("highway", "proposed", "construction", "abandoned", "platform", "raceway")
+	    .keepRelations("type", "restriction");
+
+    /** Roads, buildings, natural features and water, named places, and the relations drawn */
+    public static final FilterProfile RENDERING = new FilterProfile("rendering", false)
+	    .keepWays("highway")
+	    .keepWays("building")
+	    .keepWays("natural")
+	    .keepWays("waterway")
+	    .keepNodes("name")
+	    .keepRelations("type", "boundary", "route", "restriction", "multipolygon");
+
+    /** The profiles, for forName() */
+    private static final FilterProfile[] PROFILES = { ALL, ROUTING, RENDERING };
+
+    /** The name of this profile */
+    private String name;
+
+    /** If this profile keeps everything, whatever the rules */
+    private boolean keepsAll;
+
+    /** The rules */
+    private ArrayList<Rule> keepWays;
+    private ArrayList<Rule> dropWays;
+    private ArrayList<Rule> keepNodes;
+    private ArrayList<Rule> keepRelations;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor, for a profile that keeps nothing until rules are added.
+     * @param name The name of the profile.
+     * @param keepsAll true for a profile that keeps everything.
+     */
+    private FilterProfile(String name, boolean keepsAll){
+	this.name = name;
+	this.keepsAll = keepsAll;
+	keepWays = new ArrayList<Rule>();
+	dropWays = new ArrayList<Rule>();
+	keepNodes = new ArrayList<Rule>();
+	keepRelations = new ArrayList<Rule>();
+    }
+
+    /**
+     * Get a profile by its name: "all", "routing" or "rendering".
+     * @throws IllegalArgumentException if there is no such profile.
+     */
+    public static FilterProfile forName(String name){
+	for( FilterProfile p : PROFILES ){
+	    if( p.name.equals(name) ) return p;
+	}
+	throw new IllegalArgumentException("No filter profile " + name);
+    }
+
+    /** Keep the ways with a tag of the key, and one of the values; any value if none are given. */
+    private FilterProfile keepWays(String key, String... values){
+	keepWays.add(new Rule(key, values));
+	return this;
+    }
+
+    /** Drop the ways with a tag of the key and one of the values, even if they are kept by another rule. */
+    private FilterProfile dropWays(String key, String... values){
+	dropWays.add(new Rule(key, values));
+	return this;
+    }
+
+    /** Keep the nodes with a tag of the key, and one of the values, whether a kept way uses them or not. */
+    private FilterProfile keepNodes(String key, String... values){
+	keepNodes.add(new Rule(key, values));
+	return this;
+    }
+
+    /** Keep the relations with a tag of the key, and one of the values. */
+    private FilterProfile keepRelations(String key, String... values){
+	keepRelations.add(new Rule(key, values));
+	return this;
+    }
+
+    /** Get the name of this profile. */
+    public String getName(){ return name; }
+
+    /** Check if this profile keeps every element. */
+    public boolean keepsAll(){ return keepsAll; }
+
+    /** Check if a way is kept. */
+    public boolean keepsWay(RawElement e){
+	return keepsAll || (matches(keepWays, e) && !matches(dropWays, e));
+    }
+
+    /** Check if a node is kept for its own tags, used by a kept way or not. */
+    public boolean keepsNode(RawElement e){
+	return keepsAll || matches(keepNodes, e);
+    }
+
+    /** Check if a relation is kept. */
+    public boolean keepsRelation(RawElement e){
+	return keepsAll || matches(keepRelations, e);
+    }
+
+    /** Check if any of the rules matches the element */
+    private static boolean matches(ArrayList<Rule> rules, RawElement e){
+	if( e.getTagCount() == 0 ) return false;
+	for( Rule rule : rules ){
+	    String value = e.getTag(rule.key);
+	    if( value != null && (rule.values == null || rule.values.contains(value)) ) return true;
+	}
+	return false;
+    }
+
+    @Override
+    public String toString(){ return name; }
+
+    /** A tag key, and the values that match; null for any value. */
+    private static class Rule {
+
+	private String key;
+
+	private HashSet<String> values;
+
+	Rule(String key, String[] values){
+	    this.key = key;
+	    if( values.length > 0 ){ this.values = new HashSet<String>(Arrays.asList(values)); }
+	}
+    }
+
+}
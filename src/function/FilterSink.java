@@ -0,0 +1,161 @@
+package function;
+
+import elements.LongIntMap;
+
+/**
+ * ElementSink that gives only the elements that are kept to another
+ * sink: the ones a FilterProfile keeps and, if a bounding box is set,
+ * that are in the box. A way is in the box if one of its nodes is; it is
+ * kept whole, with its nodes outside the box, so that it is not cut
+ * short. A relation is in the box if one of its members is kept.
+ *
+ * Whether a node is kept depends on the ways that use it, which come
+ * after the nodes in a file, so the file is read twice: the first pass,
+ * into firstPass(), picks the ways to keep and collects the ids of their
+ * nodes, and the second pass, into this sink, passes those nodes on with
+ * the kept ways and relations.
+ */
+public class FilterSink implements ElementSink {
+
+    /** The profile that decides what is kept */
+    private FilterProfile profile;
+
+    /** The bounding box: minlat, minlon, maxlat, maxlon; null for none */
+    private double[] box;
+
+    /** The sink the kept elements are given to */
+    private ElementSink sink;
+
+    /** The ids of the nodes in the box, as keys, to 1 if the profile keeps the node; only with a box */
+    private LongIntMap boxNodes;
+
+    /** The ids of the nodes used by kept ways, as keys */
+    private LongIntMap nodeRefs;
+
+    /** The ids of the kept ways, as keys */
+    private LongIntMap keptWays;
+
+    /** The ids of the kept relations, as keys */
+    private LongIntMap keptRelations;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param profile The profile that decides what is kept.
+     * @param sink The sink the kept elements are given to.
+     */
+    public FilterSink(FilterProfile profile, ElementSink sink){
+	this.profile = profile;
+	this.sink = sink;
+	nodeRefs = new LongIntMap();
+	keptWays = new LongIntMap();
+	keptRelations = new LongIntMap();
+    }
+
+    /**
+     * Keep only what is in a bounding box. Must be set before the first pass.
+     * @param minlat The minimum latitude.
+     * @param minlon The minimum longitude.
+     * @param maxlat The maximum latitude.
+     * @param maxlon The maximum longitude.
+     */
+    public void setBoundingBox(double minlat, double minlon, double maxlat, double maxlon){
+	box = new double[]{ minlat, minlon, maxlat, maxlon };
+	boxNodes = new LongIntMap();
+    }
+
+    /** Check if a node is in the bounding box, or there is none */
+    private boolean inBox(RawElement e){
+	if( box == null ) return true;
+	double lat = e.getLatitude(), lon = e.getLongitude();
+	return lat >= box[0] && lon >= box[1] && lat <= box[2] && lon <= box[3];
+    }
+
+    /**
+     * Get the sink to read the file into first, that picks the ways to
+     * keep and collects the nodes they use.
+     */
+    public ElementSink firstPass(){
+	return new ElementSink(){
+	    @Override
+	    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	    }
+
+	    @Override
+	    public void element(RawElement e){
+		if( e.getType() == RawElement.NODE ){
+		    if( box != null && inBox(e) ){ boxNodes.put(e.getID(), profile.keepsNode(e) ? 1 : 0); }
+		    return;
+		}
+		if( e.getType() != RawElement.WAY || !profile.keepsWay(e) ) return;
+		if( box != null ){
+		    boolean touches = false;
+		    for( int i = 0; i < e.getRefCount() && !touches; i++ ){
+			touches = boxNodes.containsKey(e.getRef(i));
+		    }
+		    if( !touches ) return;
+		}
+		keptWays.put(e.getID(), 0);
+		for( int i = 0; i < e.getRefCount(); i++ ){ nodeRefs.put(e.getRef(i), 0); }
+	    }
+	};
+    }
+
+    /** Pass the bounds on; with a bounding box, the part of them in the box */
+    @Override
+    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	if( box != null ){
+	    minlat = Math.max(minlat, box[0]);
+	    minlon = Math.max(minlon, box[1]);
+	    maxlat = Math.min(maxlat, box[2]);
+	    maxlon = Math.min(maxlon, box[3]);
+	}
+	sink.bounds(minlat, minlon, maxlat, maxlon);
+    }
+
+    /** Pass the element on if it is kept */
+    @Override
+    public void element(RawElement e){
+	boolean keep;
+	switch( e.getType() ){
+	    case RawElement.NODE:
+		keep = nodeRefs.containsKey(e.getID()) || (profile.keepsNode(e) && inBox(e));
+		break;
+	    case RawElement.WAY:
+		keep = keptWays.containsKey(e.getID());
+		break;
+	    case RawElement.RELATION:
+		keep = profile.keepsRelation(e) && (box == null || hasKeptMember(e));
+		if( keep ){ keptRelations.put(e.getID(), 0); }
+		break;
+	    default:
+		keep = false;
+		break;
+	}
+	if( keep ) sink.element(e);
+    }
+
+    /** Check if a relation has a member that is kept */
+    private boolean hasKeptMember(RawElement e){
+	for( int i = 0; i < e.getRefCount(); i++ ){
+	    long ref = e.getRef(i);
+	    switch( e.getMemberType(i) ){
+		case RawElement.NODE:
+		    if( nodeRefs.containsKey(ref) || boxNodes.get(ref) == 1 ) return true;
+		    break;
+		case RawElement.WAY:
+		    if( keptWays.containsKey(ref) ) return true;
+		    break;
+		case RawElement.RELATION:
+		    if( keptRelations.containsKey(ref) ) return true;
+		    break;
+		default:
+		    break;
+	    }
+	}
+	return false;
+    }
+
+}
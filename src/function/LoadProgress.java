@@ -0,0 +1,261 @@
+package function;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import elements.MapData;
+import elements.NodeManager;
+import elements.Way;
+import elements.WayManager;
+
+/**
+ * The progress of a load by OSMParser, for another thread to watch and
+ * to cancel: the bytes of the file read, the elements loaded and how
+ * fast, and, for a PreviewListener, the ways loaded so far, to be drawn
+ * before the load is done. Give one to OSMParser.setProgress().
+ *
+ * The counts are updated by the threads that parse, and can be read by
+ * any thread. After cancel(), the parse throws a CancellationException
+ * the next time it reads bytes or loads an element.
+ */
+public class LoadProgress {
+
+    /**
+     * Receiver of the ways loaded so far; see setPreviewListener(). It is
+     * called on the thread that loads the map data.
+     */
+    public interface PreviewListener {
+
+	/** The bounds of the map, when the file gives them. */
+	void boundsLoaded(double minlat, double minlon, double maxlat, double maxlon);
+
+	/**
+	 * The ways loaded since the last call, each as the latitudes and
+	 * longitudes of its nodes, alternating. The arrays are not used
+	 * again by the load.
+	 */
+	void waysLoaded(ArrayList<float[]> ways);
+    }
+
+    /** Time between two calls of the preview listener, in ms */
+    private static final long PREVIEW_INTERVAL = 200;
+
+    /** Number of coordinates after which the preview stops; enough for a first look */
+    private static final long PREVIEW_LIMIT = 4 << 20;
+
+    /** Number of bytes the load reads in all, counting each pass over the file */
+    private volatile long totalBytes;
+
+    /** Number of bytes read so far */
+    private AtomicLong bytesRead;
+
+    /** Number of elements loaded into the map data so far */
+    private volatile long elements;
+
+    /** When the load started, in ns */
+    private long startTime;
+
+    /** If the load was cancelled */
+    private volatile boolean cancelled;
+
+    /** Receiver of the ways loaded; null for no preview */
+    private PreviewListener previewListener;
+
+    /** The ways loaded since the last call of the listener */
+    private ArrayList<float[]> previewWays;
+
+    /** Number of coordinates given to the listener so far */
+    private long previewed;
+
+    /** When the listener was last called, in ns */
+    private long lastPreview;
+
+
+    // --- end of fields --- //
+
+    /** The constructor. */
+    public LoadProgress(){
+	bytesRead = new AtomicLong();
+	previewWays = new ArrayList<float[]>();
+	startTime = System.nanoTime();
+	lastPreview = startTime;
+    }
+
+    /** Set the receiver of the ways loaded so far; null for none. */
+    public void setPreviewListener(PreviewListener listener){
+	previewListener = listener;
+    }
+
+    /** Get the number of bytes the load reads in all; 0 if not known yet. */
+    public long getTotalBytes(){ return totalBytes; }
+
+    /** Get the number of bytes read so far. */
+    public long getBytesRead(){ return bytesRead.get(); }
+
+    /** Get the part of the bytes read so far, from 0 to 1. */
+    public double getFraction(){
+	long total = totalBytes;
+	return total <= 0 ? 0 : Math.min(1.0, (double) bytesRead.get() / total);
+    }
+
+    /** Get the number of elements loaded so far. */
+    public long getElements(){ return elements; }
+
+    /** Get the number of elements loaded per second, since the start. */
+    public double getElementsPerSecond(){
+	double seconds = (System.nanoTime() - startTime) / 1e9;
+	return seconds <= 0 ? 0 : elements / seconds;
+    }
+
+    /** Cancel the load. */
+    public void cancel(){ cancelled = true; }
+
+    /** Check if the load was cancelled. */
+    public boolean isCancelled(){ return cancelled; }
+
+    /** Set the number of bytes the load reads in all. */
+    void setTotalBytes(long bytes){ totalBytes = bytes; }
+
+    /** Count bytes read, and stop if cancelled. */
+    void addBytes(long bytes){
+	bytesRead.addAndGet(bytes);
+	checkCancelled();
+    }
+
+    /** Throw a CancellationException if the load was cancelled. */
+    void checkCancelled(){
+	if( cancelled ) throw new CancellationException("Load cancelled");
+    }
+
+    /** Get a stream that counts the bytes read from another. */
+    InputStream count(InputStream in){
+	return new FilterInputStream(in){
+	    @Override
+	    public int read() throws IOException {
+		int b = super.read();
+		if( b >= 0 ) addBytes(1);
+		return b;
+	    }
+
+	    @Override
+	    public int read(byte[] b, int off, int len) throws IOException {
+		int k = super.read(b, off, len);
+		if( k > 0 ) addBytes(k);
+		return k;
+	    }
+
+	    @Override
+	    public long skip(long n) throws IOException {
+		long k = super.skip(n);
+		if( k > 0 ) addBytes(k);
+		return k;
+	    }
+	};
+    }
+
+    /**
+     * Sink that counts the bytes tokenized from a region of the file by
+     * the offsets of the elements, for the reads that do not go through
+     * a stream. The bytes after the last element are counted by
+     * finishRegion().
+     */
+    class OffsetCounter implements ElementSink {
+
+	private ElementSink sink;
+
+	/** The offset up to which the bytes are counted */
+	private long counted;
+
+	/**
+	 * @param sink The sink to give the elements to.
+	 * @param start The offset of the start of the region.
+	 */
+	OffsetCounter(ElementSink sink, long start){
+	    this.sink = sink;
+	    counted = start;
+	}
+
+	@Override
+	public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	    sink.bounds(minlat, minlon, maxlat, maxlon);
+	}
+
+	@Override
+	public void element(RawElement e){
+	    countTo(e.getSourceOffset());
+	    sink.element(e);
+	}
+
+	/** Count the rest of the region, up to its end. */
+	void finishRegion(long end){
+	    countTo(end);
+	}
+
+	private void countTo(long offset){
+	    if( offset <= counted ) return;
+	    addBytes(offset - counted);
+	    counted = offset;
+	}
+    }
+
+    /**
+     * Get a sink that counts the elements loaded into map data, and
+     * collects the ways for the preview listener.
+     * @param sink The sink that loads the elements into the map data.
+     * @param data The map data.
+     */
+    ElementSink watch(final ElementSink sink, MapData data){
+	final NodeManager nodeManager = data.getNodeManager();
+	final WayManager wayManager = data.getWayManager();
+	return new ElementSink(){
+	    @Override
+	    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+		sink.bounds(minlat, minlon, maxlat, maxlon);
+		if( previewListener != null ) previewListener.boundsLoaded(minlat, minlon, maxlat, maxlon);
+	    }
+
+	    @Override
+	    public void element(RawElement e){
+		checkCancelled();
+		sink.element(e);
+		elements++;
+		if( previewListener == null || previewed >= PREVIEW_LIMIT ) return;
+		if( e.getType() == RawElement.WAY ){
+		    Way w = wayManager.getWay(e.getID());
+		    if( w != null && w.getNodeCount() > 1 ) addPreview(w, nodeManager);
+		}
+		if( (elements & 1023) == 0 ) flushPreview(false);
+	    }
+	};
+    }
+
+    /** Add the coordinates of a way to the preview */
+    private void addPreview(Way w, NodeManager nodeManager){
+	float[] coords = new float[2 * w.getNodeCount()];
+	for( int i = 0; i < w.getNodeCount(); i++ ){
+	    coords[2*i] = (float) nodeManager.getLatitude(w.getNodeIndex(i));
+	    coords[2*i+1] = (float) nodeManager.getLongitude(w.getNodeIndex(i));
+	}
+	previewWays.add(coords);
+	previewed += w.getNodeCount();
+    }
+
+    /**
+     * Give the ways collected to the preview listener, if any were, and
+     * if PREVIEW_INTERVAL has passed since the last time or all is true.
+     */
+    void flushPreview(boolean all){
+	if( previewListener == null || previewWays.isEmpty() ) return;
+	long now = System.nanoTime();
+	if( !all && now - lastPreview < PREVIEW_INTERVAL * 1000000L ) return;
+	lastPreview = now;
+	ArrayList<float[]> ways = previewWays;
+	previewWays = new ArrayList<float[]>();
+	previewListener.waysLoaded(ways);
+    }
+
+}
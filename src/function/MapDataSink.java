@@ -0,0 +1,166 @@
+package function;
+
+import elements.Element;
+import elements.LongIntMap;
+import elements.MapData;
+import elements.Node;
+import elements.NodeManager;
+import elements.Relation;
+import elements.TagSource;
+import elements.Way;
+import elements.WayManager;
+
+/**
+ * ElementSink that builds Node, Way and Relation objects into a MapData.
+ * Way nd refs and relation members are looked up by id when the way or
+ * relation arrives, so nodes must be given before the ways that use them;
+ * refs to nodes that have not been seen are dropped.
+ *
+ * With a TagSource, only the tags it keeps are added to the elements
+ * that have an offset in the source; an element that had other tags is
+ * given the source to read them from when they are needed.
+ */
+public class MapDataSink implements ElementSink {
+
+    /** The map data being built */
+    private MapData mapData;
+
+    /** The node manager of mapData */
+    private NodeManager nodeManager;
+
+    /** The way manager of mapData */
+    private WayManager wayManager;
+
+    /** Where tags that are not kept are read from; null to keep all tags */
+    private TagSource tagSource;
+
+    /** If elements with an id that is in the map data already are dropped */
+    private boolean skipDuplicates;
+
+    /** If the time spent on tags is measured, into tagTime */
+    private boolean timeTags;
+    private long tagTime;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param data The MapData to add the elements to.
+     */
+    public MapDataSink(MapData data){
+	this(data, data.getTagSource());
+    }
+
+    /**
+     * The constructor, for elements with their own TagSource, such as
+     * one of several files loaded into the same map data.
+     * @param data The MapData to add the elements to.
+     * @param tagSource Where the tags that are not kept are read from;
+     * null to keep all tags.
+     */
+    public MapDataSink(MapData data, TagSource tagSource){
+	mapData = data;
+	nodeManager = data.getNodeManager();
+	wayManager = data.getWayManager();
+	this.tagSource = tagSource;
+    }
+
+    /**
+     * Set whether to drop the elements with an id that is in the map
+     * data already, as when files that overlap are loaded together.
+     * Otherwise the later element replaces the earlier one in the lookup
+     * by id, and both are kept.
+     */
+    public void setSkipDuplicates(boolean skip){
+	skipDuplicates = skip;
+    }
+
+    /** Add the bounds to the map data */
+    @Override
+    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	mapData.addBounds(minlat, minlon, maxlat, maxlon);
+    }
+
+    /** Create the Node, Way or Relation object of the element */
+    @Override
+    public void element(RawElement e){
+	if( skipDuplicates && isLoaded(e) ) return;
+	switch( e.getType() ){
+	    case RawElement.NODE:
+		Node n = mapData.newNode(e.getID(), e.getLatitude(), e.getLongitude());
+		addTags(n, e);
+		break;
+
+	    case RawElement.WAY:
+		Way w = mapData.newWay(e.getID());
+		for( int i = 0; i < e.getRefCount(); i++ ){
+		    int node = nodeManager.indexOf(e.getRef(i));
+		    if( node != LongIntMap.MISSING ){ w.addNode(node); }
+		}
+		addTags(w, e);
+		break;
+
+	    case RawElement.RELATION:
+		Relation r = mapData.newRelation(e.getID());
+		for( int i = 0; i < e.getRefCount(); i++ ){
+		    if( e.getMemberType(i) != RawElement.WAY ) continue;
+		    Way member = wayManager.getWay(e.getRef(i));
+		    if( member != null ){ r.addMember(member); }
+		}
+		addTags(r, e);
+		break;
+
+	    default:
+		break;
+	}
+    }
+
+    /** Set whether to measure the time spent adding tags; see getTagTime(). */
+    public void setTimeTags(boolean time){
+	timeTags = time;
+    }
+
+    /** Get the time spent adding tags, in ns, if it is measured. */
+    public long getTagTime(){ return tagTime; }
+
+    /** Check if an element with the id of e is in the map data already */
+    private boolean isLoaded(RawElement e){
+	switch( e.getType() ){
+	    case RawElement.NODE:
+		return nodeManager.indexOf(e.getID()) != LongIntMap.MISSING;
+	    case RawElement.WAY:
+		return wayManager.getWay(e.getID()) != null;
+	    case RawElement.RELATION:
+		return mapData.getRelationManager().getRelation(e.getID()) != null;
+	    default:
+		return false;
+	}
+    }
+
+    /** Add the tags of the element, or the kept ones, see TagSource */
+    private void addTags(Element x, RawElement e){
+	if( timeTags ){
+	    long start = System.nanoTime();
+	    addTagsNow(x, e);
+	    tagTime += System.nanoTime() - start;
+	} else {
+	    addTagsNow(x, e);
+	}
+    }
+
+    /** Add the tags of the element, or the kept ones */
+    private void addTagsNow(Element x, RawElement e){
+	boolean lazy = tagSource != null && e.getSourceOffset() >= 0;
+	boolean dropped = false;
+	for( int i = 0; i < e.getTagCount(); i++ ){
+	    if( lazy && !tagSource.isKept(e.getTagKey(i)) ){
+		dropped = true;
+		continue;
+	    }
+	    x.addTag(e.getTagKey(i), e.getTagValue(i));
+	}
+	if( dropped ){ x.setTagSource(tagSource, e.getSourceOffset()); }
+    }
+
+}
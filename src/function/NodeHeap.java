@@ -1,251 +1,206 @@
 package function;
 
-import java.util.ArrayList;
-import java.util.Random;
-
-import elements.Node;
-
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of nodes, by their indexes, each with a double key:
+ * the priority queue of DirectionsGenerator. The heap is in primitive
+ * arrays, and the slot of every node in it is kept by node index, so
+ * that contains() is a lookup, and add(), decreaseKey() and removeMin()
+ * take O(log n), allocating nothing.
+ *
+ * A node is in the heap at most once.
+ */
 public class NodeHeap {
 
-    /** The array heap. */
-    private ArrayList<DistNode> heap; // I SHOULD'VE USED A HASHMAP.
+    /** The nodes, in heap order, in heap[0, size) */
+    private int[] heap;
 
-    /** "sentinel" index. If node doesn't exist. */
-    private int sentinel = -1;
+    /** The key of the node in each slot of the heap */
+    private double[] keys;
 
+    /** The slot of each node in the heap, by node index; -1 if it is not in it */
+    private int[] slot;
 
-    //----- end of fields -----//
+    /** Number of nodes in the heap */
+    private int size;
 
-    // --- private inner class DistNode --- //
+    /** "sentinel" slot. If node isn't in the heap. */
+    private static final int SENTINEL = -1;
 
-    public class DistNode{
 
-	double dist = 0;
-	Node node;
+    //----- end of fields -----//
 
-	public DistNode(Node n, double dist){
-	    this.dist = dist;
-	    node = n;
-	}
+    /**
+     * The Constructor
+     * @param nodes The number of nodes; node indexes are below it.
+     */
+    public NodeHeap(int nodes){
+	heap = new int[16];
+	keys = new double[16];
+	slot = new int[0];
+	ensureCapacity(nodes);
+    }
 
-	public double dist(){
-	    return dist;
-	}
-	
-	public Node node(){
-	    return node;
-	}
+    /** Make room for the node indexes below nodes. */
+    public void ensureCapacity(int nodes){
+	if( slot.length >= nodes ) return;
+	int old = slot.length;
+	slot = Arrays.copyOf(slot, nodes);
+	Arrays.fill(slot, old, nodes, SENTINEL);
     }
 
-    // --- Node Heap class --- //
+    /** Check if heap isEmpty() */
+    public boolean isEmpty(){
+	return size == 0;
+    }
 
-    /** The Constructor */
-    public NodeHeap(){
-	heap = new ArrayList<DistNode>();
-	buildHeap();
+    /** Get the size of the heap */
+    public int size(){
+	return size;
     }
 
-    /** The Constructor
-     * @param a specified array list */
-    public NodeHeap(ArrayList<DistNode> aHeap){
-	heap = aHeap;
-	buildHeap();
+    /** Check if a node is in the heap */
+    public boolean contains(int node){
+	return slot[node] != SENTINEL;
     }
 
-    /** Configure the heap */
-    private void buildHeap(){
-	for(int i = heap.size()/2 - 1; i >= 0; i--){
-	    downwardReheapify(i);
-	}
+    /**
+     * Get a node's key
+     * @return the key, or NaN if the node is not in the heap.
+     */
+    public double get(int node){
+	int i = slot[node];
+	return i == SENTINEL ? Double.NaN : keys[i];
     }
 
-    /** Add to the heap */
-    public void add(Node n){
-	heap.add(new DistNode(n, -1));
-	upwardReheapify(heap.size()-1);
+    /**
+     * Add a node to the heap
+     * @throws IllegalArgumentException if it is in it already.
+     */
+    public void add(int node, double key){
+	if( slot[node] != SENTINEL ) throw new IllegalArgumentException("Node " + node + " is in the heap already");
+	if( size == heap.length ){
+	    heap = Arrays.copyOf(heap, size * 2);
+	    keys = Arrays.copyOf(keys, size * 2);
+	}
+	heap[size] = node;
+	keys[size] = key;
+	slot[node] = size;
+	size++;
+	upwardReheapify(size - 1);
     }
 
-    /** 
-     * Remove from the heap. 
-     * @return the double value at index 0.
+    /**
+     * Lower the key of a node in the heap; a key that is not lower is
+     * ignored.
+     * @throws IllegalArgumentException if the node is not in the heap.
      */
-    public Node removeMin(){
-	if( heap.isEmpty() ){ return null; }
-	Node toReturn = heap.get(0).node;
-	DistNode lastV = heap.get(heap.size()-1);
-	heap.set(0, lastV);
-	heap.remove(heap.size()-1);
-	downwardReheapify(0);
-	return toReturn;
+    public void decreaseKey(int node, double key){
+	int i = slot[node];
+	if( i == SENTINEL ) throw new IllegalArgumentException("Node " + node + " is not in the heap");
+	if( !(key < keys[i]) ) return;
+	keys[i] = key;
+	upwardReheapify(i);
     }
 
-    /** Check if heap isEmpty() */
-    public boolean isEmpty(){
-	return heap.isEmpty();
+    /**
+     * Add a node to the heap, or lower its key if it is in it already.
+     * @return false if the node was in the heap with a key that is not
+     * higher, and nothing changed.
+     */
+    public boolean addOrDecrease(int node, double key){
+	int i = slot[node];
+	if( i == SENTINEL ){
+	    add(node, key);
+	    return true;
+	}
+	if( !(key < keys[i]) ) return false;
+	keys[i] = key;
+	upwardReheapify(i);
+	return true;
     }
 
-    /** Get the size of the heap */
-    public int size(){
-	return heap.size();
+    /** Get the lowest key; NaN if the heap is empty. */
+    public double minKey(){
+	return size == 0 ? Double.NaN : keys[0];
     }
 
-    /** Check for contains */
-    public boolean contains(Node n){
-	for(DistNode distN: heap){
-	    if(distN.node.equals(n)) return true;
+    /**
+     * Remove the node with the lowest key from the heap.
+     * @return the node, or -1 if the heap is empty.
+     */
+    public int removeMin(){
+	if( size == 0 ){ return -1; }
+	int toReturn = heap[0];
+	slot[toReturn] = SENTINEL;
+	size--;
+	if( size > 0 ){
+	    heap[0] = heap[size];
+	    keys[0] = keys[size];
+	    slot[heap[0]] = 0;
+	    downwardReheapify(0);
 	}
-	return false;
+	return toReturn;
     }
-    
-    /** get a Node's distance */
-    public double get(Node n){
-	for(DistNode distN: heap){
-	    if(distN.node.equals(n)) return distN.dist;
-	}
-	return -1;
+
+    /** Remove all the nodes from the heap. */
+    public void clear(){
+	for( int i = 0; i < size; i++ ){ slot[heap[i]] = SENTINEL; }
+	size = 0;
     }
 
     /**
-     * Re establish the heap property after adding a new
-     * value to the heap by performing upwardReheapify at
-     * the newly added index ( size() - 1 )
+     * Re establish the heap property after a key became lower at
+     * slot i, by moving the node up past the heavier parents.
      */
     private void upwardReheapify(int i){
-	int index1 = parent(i);
-	while( heap.get(i).dist < heap.get(index1).dist ){
-	    swap( index1, i );
-	    i = index1;
-	    index1 = parent(i);
+	int node = heap[i];
+	double key = keys[i];
+	while( i > 0 ){
+	    int p = parent(i);
+	    if( !(key < keys[p]) ) break;
+	    set(i, heap[p], keys[p]);
+	    i = p;
 	}
+	set(i, node, key);
     }
 
-    /** 
+    /**
      * Re heap by exchanging "heavier" values with
      * lighter values; until the lighter values are
      * on top of heavier ones.
      */
     private void downwardReheapify(int i){
-	while( i < heap.size() ){
-	    int leftIndex = leftChild(i);
-	    int rightIndex = rightChild(i);
-	    int minIndex = leftIndex;
-
-	    if( leftIndex == sentinel ){ // no left child
-		break;
-	    }
-	    if( rightIndex == sentinel ){ // no right child,
-		minIndex = leftIndex;
-		rightIndex = leftIndex;
-
-	    } else { // there is both right and left child
-
-		double leftChild = heap.get(leftIndex).dist;
-		double rightChild = heap.get(rightIndex).dist;
-
-		if( leftChild < rightChild ){ 
-		    minIndex = leftIndex; 
-		} else if( rightChild <= leftChild ){
-		    minIndex = rightIndex;
-		}
-	    }
-
-	    // if index (i) is greater than it's children, 
-	    // let the lighter children be on top.
-	    DistNode child = heap.get(minIndex);
-	    DistNode parent = heap.get(i);
-
-	    if( Double.compare(parent.dist, child.dist) >= 0){
-		swap( i, minIndex );
-		i = minIndex; 
-		// the value at min now was the previous i after the swap,
-		// we want to reassign i to i, essentially.
-	    } else {
-		break; // heap property holds; compare(parent, child) < 0
-	    }
+	int node = heap[i];
+	double key = keys[i];
+	while( true ){
+	    int minIndex = leftChild(i);
+	    if( minIndex >= size ) break; // no left child
+	    int rightIndex = minIndex + 1;
+	    if( rightIndex < size && keys[rightIndex] < keys[minIndex] ){ minIndex = rightIndex; }
+	    if( !(keys[minIndex] < key) ) break; // heap property holds
+	    set(i, heap[minIndex], keys[minIndex]);
+	    i = minIndex;
 	}
+	set(i, node, key);
     }
 
-    /**
-     * Index1 precedes index2, but index1 holds the larger value;
-     * and large value should proceed the smaller value, which is 
-     * held at index2. Swap these two values.
-     * @param index1 Index that holds the larger value.
-     * @param index2 Index that holds the smaller value.
-     */
-    private void swap(int index1, int index2){
-	DistNode light = heap.get(index2); // smaller value needs to be earlier
-	DistNode heavy = heap.get(index1);
-	heap.set(index1, light); // set the light value at smaller index
-	heap.set(index2, heavy);
+    /** Put a node in a slot */
+    private void set(int i, int node, double key){
+	heap[i] = node;
+	keys[i] = key;
+	slot[node] = i;
     }
 
-    /** 
-     * @return the left child of this node.
-     * Otherwise, returns sentinel if no left child.
-     */
-    private int leftChild(int index){
-	int leftIndex = index*2 + 1;
-	if(leftIndex >= heap.size()) return sentinel;
-	return leftIndex;
+    /** Returns the left child slot of this slot */
+    private static int leftChild(int index){
+	return index*2 + 1;
     }
 
-    /** 
-     * @return the right child of this node.
-     * Otherwise, returns sentinel if no right child.
-     */
-    private int rightChild(int index){
-	int rightIndex = index*2 + 2;
-	if(rightIndex >= heap.size()) return sentinel;
-	return rightIndex; 
-    }
-
-    /** Returns the parent node of this node */
-    private int parent(int index){
-	int parentIndex = (index-1)/2;
-	return parentIndex;
-	// idk if it's ever possible for parent to be null/sentinel.
-    }
-
-    /** Print the heap */
-    public void printHeap(){
-
-	for(int i = 0; i < heap.size(); i++ ){
-	    System.out.print("node:" + heap.get(i).dist);
-
-	    if( leftChild(i) != sentinel){
-		System.out.print("; left: " + heap.get(leftChild(i)).dist);
-	    }
-
-	    if( rightChild(i) != sentinel){
-		System.out.print("; right: " + heap.get(rightChild(i)).dist);
-	    }
-
-	    System.out.println();
-	}
+    /** Returns the parent slot of this slot */
+    private static int parent(int index){
+	return (index-1)/2;
     }
 
-
-//
-//    public static void main(String[] args){
-//
-//	NodeHeap nHeap = new NodeHeap();
-//	Random rand = new Random();
-//	DistNode n;
-//
-//	for(int i = 0; i < 10 ; i++){
-//	    int d = rand.nextInt(10) + 1;
-//	    n = new DistNode(d);
-//	    nHeap.add(n);
-//	}
-//
-//	for(int i = 0; i < 5; i++){
-//	    nHeap.printHeap();
-//	    System.out.println("---removeMin()-------------");
-//	    nHeap.removeMin();
-//	}
-//
-//	nHeap.add(new DistNode(7.7));
-//	nHeap.printHeap();
-//    }
-
 }
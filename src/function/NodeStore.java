@@ -0,0 +1,303 @@
+package function;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * The coordinates of nodes, by id, in a file sorted by id instead of
+ * on the heap. Nodes are added in any order and written out as they
+ * come; finish() sorts the file if they were not in id order (OSM files
+ * usually are, and then nothing is sorted) and maps it, and find() does
+ * a binary search on the mapped records. The heap used does not depend
+ * on the number of nodes.
+ *
+ * A record is the id, latitude and longitude: a long and two doubles.
+ * The file is a temporary one, deleted by close().
+ */
+public class NodeStore {
+
+    /** Size of a record, in bytes */
+    private static final int RECORD_SIZE = 24;
+
+    /** Number of records sorted in memory at a time, when the nodes are not in order */
+    private static final int RUN_RECORDS = 1 << 20;
+
+    /**
+     * Number of records per mapped segment. A MappedByteBuffer is indexed
+     * by int, so the file is mapped in segments of 2^SEGMENT_BITS records.
+     */
+    private static final int SEGMENT_BITS = 22;
+
+    /** The file of the records */
+    private File file;
+
+    /** The stream the records are written to; null once finished */
+    private DataOutputStream out;
+
+    /** Number of records */
+    private long count;
+
+    /** The id of the last record added */
+    private long lastID = Long.MIN_VALUE;
+
+    /** If the records were added in increasing id order */
+    private boolean sorted = true;
+
+    /** The mapped segments of the file, after finish() */
+    private MappedByteBuffer[] segments;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor. Creates the temporary file.
+     * @param dir The directory for the file; null for the default
+     * temporary directory.
+     */
+    public NodeStore(File dir) throws IOException {
+	file = File.createTempFile("nodes", ".store", dir);
+	file.deleteOnExit();
+	out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    /** Add the coordinates of a node. */
+    public void add(long id, double lat, double lon) throws IOException {
+	if( id <= lastID ) sorted = false;
+	lastID = id;
+	out.writeLong(id);
+	out.writeDouble(lat);
+	out.writeDouble(lon);
+	count++;
+    }
+
+    /** Get the number of nodes. */
+    public long size(){ return count; }
+
+    /**
+     * Finish adding: sort the file if needed, and map it for find().
+     */
+    public void finish() throws IOException {
+	out.close();
+	out = null;
+	if( !sorted ) sortFile();
+
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    long perSegment = 1L << SEGMENT_BITS;
+	    segments = new MappedByteBuffer[(int) ((count + perSegment - 1) / perSegment)];
+	    for( int s = 0; s < segments.length; s++ ){
+		long first = s * perSegment;
+		long records = Math.min(perSegment, count - first);
+		segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+			first * RECORD_SIZE, records * RECORD_SIZE);
+	    }
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Find a node by its id.
+     * @return the number of its record, or -1 if there is none.
+     */
+    public long find(long id){
+	long lo = 0, hi = count - 1;
+	while( lo <= hi ){
+	    long mid = (lo + hi) >>> 1;
+	    long midID = segment(mid).getLong(position(mid));
+	    if( midID < id ) lo = mid + 1;
+	    else if( midID > id ) hi = mid - 1;
+	    else return mid;
+	}
+	return -1;
+    }
+
+    /** Get the latitude of the node of a record. */
+    public double getLatitude(long record){
+	return segment(record).getDouble(position(record) + 8);
+    }
+
+    /** Get the longitude of the node of a record. */
+    public double getLongitude(long record){
+	return segment(record).getDouble(position(record) + 16);
+    }
+
+    /** Get the mapped segment of a record */
+    private MappedByteBuffer segment(long record){
+	return segments[(int) (record >>> SEGMENT_BITS)];
+    }
+
+    /** Get the position of a record in its segment */
+    private int position(long record){
+	return (int) (record & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+    }
+
+    /** Unmap and delete the file. */
+    public void close() throws IOException {
+	if( out != null ){ out.close(); }
+	segments = null;
+	file.delete();
+    }
+
+    /**
+     * Sort the file by id: sort runs of RUN_RECORDS records in memory
+     * into files of their own, then merge the runs back into the file.
+     */
+    private void sortFile() throws IOException {
+	ArrayList<File> runs = new ArrayList<File>();
+	long[] ids = new long[(int) Math.min(RUN_RECORDS, count)];
+	double[] lats = new double[ids.length];
+	double[] lons = new double[ids.length];
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+	try {
+	    for( long done = 0; done < count; ){
+		int n = (int) Math.min(ids.length, count - done);
+		for( int i = 0; i < n; i++ ){
+		    ids[i] = in.readLong();
+		    lats[i] = in.readDouble();
+		    lons[i] = in.readDouble();
+		}
+		sort(ids, lats, lons, 0, n - 1);
+		File run = File.createTempFile("nodes", ".run", file.getParentFile());
+		run.deleteOnExit();
+		DataOutputStream runOut = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+		    for( int i = 0; i < n; i++ ){
+			runOut.writeLong(ids[i]);
+			runOut.writeDouble(lats[i]);
+			runOut.writeDouble(lons[i]);
+		    }
+		} finally {
+		    runOut.close();
+		}
+		runs.add(run);
+		done += n;
+	    }
+	} finally {
+	    in.close();
+	}
+	ids = null;
+	lats = null;
+	lons = null;
+	mergeRuns(runs);
+    }
+
+    /** Merge sorted run files into the file, and delete them */
+    private void mergeRuns(ArrayList<File> runs) throws IOException {
+	int k = runs.size();
+	DataInputStream[] ins = new DataInputStream[k];
+	long[] heads = new long[k];
+	double[] headLats = new double[k];
+	double[] headLons = new double[k];
+	// the runs that have records left, as a binary min-heap on their head ids
+	int[] heap = new int[k];
+	int heapSize = 0;
+	DataOutputStream merged = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	try {
+	    for( int r = 0; r < k; r++ ){
+		ins[r] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(r)), 1 << 16));
+		if( readHead(ins[r], r, heads, headLats, headLons) ){
+		    heapSize = siftUp(heap, heapSize, r, heads);
+		}
+	    }
+	    while( heapSize > 0 ){
+		int r = heap[0];
+		merged.writeLong(heads[r]);
+		merged.writeDouble(headLats[r]);
+		merged.writeDouble(headLons[r]);
+		if( !readHead(ins[r], r, heads, headLats, headLons) ){ heap[0] = heap[--heapSize]; }
+		siftDown(heap, heapSize, heads);
+	    }
+	} finally {
+	    merged.close();
+	    for( int r = 0; r < k; r++ ){
+		if( ins[r] != null ) ins[r].close();
+		runs.get(r).delete();
+	    }
+	}
+    }
+
+    /** Read the next record of run r into the heads; false at the end of the run */
+    private static boolean readHead(DataInputStream in, int r, long[] heads, double[] lats, double[] lons)
+	    throws IOException {
+	try {
+	    heads[r] = in.readLong();
+	} catch (EOFException x) {
+	    return false;
+	}
+	lats[r] = in.readDouble();
+	lons[r] = in.readDouble();
+	return true;
+    }
+
+    /** Add run r to the heap; returns the new heap size */
+    private static int siftUp(int[] heap, int size, int r, long[] heads){
+	int i = size;
+	while( i > 0 && heads[heap[(i - 1) / 2]] > heads[r] ){
+	    heap[i] = heap[(i - 1) / 2];
+	    i = (i - 1) / 2;
+	}
+	heap[i] = r;
+	return size + 1;
+    }
+
+    /** Move the run at the top of the heap down to its place */
+    private static void siftDown(int[] heap, int size, long[] heads){
+	if( size == 0 ) return;
+	int r = heap[0];
+	int i = 0;
+	while( 2 * i + 1 < size ){
+	    int c = 2 * i + 1;
+	    if( c + 1 < size && heads[heap[c + 1]] < heads[heap[c]] ) c++;
+	    if( heads[heap[c]] >= heads[r] ) break;
+	    heap[i] = heap[c];
+	    i = c;
+	}
+	heap[i] = r;
+    }
+
+    /** Sort the records [lo, hi] of the parallel arrays by id; a quicksort */
+    private static void sort(long[] ids, double[] lats, double[] lons, int lo, int hi){
+	while( hi - lo > 16 ){
+	    long pivot = ids[(lo + hi) >>> 1];
+	    int i = lo, j = hi;
+	    while( i <= j ){
+		while( ids[i] < pivot ) i++;
+		while( ids[j] > pivot ) j--;
+		if( i <= j ) swap(ids, lats, lons, i++, j--);
+	    }
+	    // recurse into the smaller part, loop on the larger
+	    if( j - lo < hi - i ){
+		sort(ids, lats, lons, lo, j);
+		lo = i;
+	    } else {
+		sort(ids, lats, lons, i, hi);
+		hi = j;
+	    }
+	}
+	for( int i = lo + 1; i <= hi; i++ ){
+	    for( int j = i; j > lo && ids[j - 1] > ids[j]; j-- ){ swap(ids, lats, lons, j - 1, j); }
+	}
+    }
+
+    /** Swap two records of the parallel arrays */
+    private static void swap(long[] ids, double[] lats, double[] lons, int i, int j){
+	long id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+	double lat = lats[i]; lats[i] = lats[j]; lats[j] = lat;
+	double lon = lons[i]; lons[i] = lons[j]; lons[j] = lon;
+    }
+
+}
@@ -0,0 +1,112 @@
+package function;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import elements.LongIntMap;
+
+/**
+ * ElementSink that loads a file without keeping all its nodes on the
+ * heap while the ways are resolved. The file is read twice: the first
+ * pass, into firstPass(), writes the coordinates of the nodes without
+ * tags to a NodeStore on disk, and gives the nodes with tags to the
+ * other sink right away. The second pass, into this sink, looks the nd
+ * refs of every way up in the store, and gives the nodes it finds to
+ * the other sink just before the way, the first time one is used.
+ *
+ * So only the nodes that are used end up on the heap, and every nd ref
+ * is resolved, whether the node comes before the way in the file or
+ * not. Nodes without tags that no way uses are not loaded.
+ */
+public class NodeStoreSink implements ElementSink {
+
+    /** The store of the nodes without tags */
+    private NodeStore store;
+
+    /** The sink the elements are given to */
+    private ElementSink sink;
+
+    /** The ids of the nodes given to the sink by the second pass, as keys */
+    private LongIntMap given;
+
+    /** The element the nodes from the store are given in */
+    private RawElement node;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param store The store to write the nodes to; empty.
+     * @param sink The sink the elements are given to.
+     */
+    public NodeStoreSink(NodeStore store, ElementSink sink){
+	this.store = store;
+	this.sink = sink;
+	given = new LongIntMap();
+	node = new RawElement();
+    }
+
+    /**
+     * Get the sink to read the file into first, that writes the nodes to
+     * the store. The store is finished when the first pass is.
+     * @throws UncheckedIOException if the store cannot be written.
+     */
+    public ElementSink firstPass(){
+	return new ElementSink(){
+	    @Override
+	    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	    }
+
+	    @Override
+	    public void element(RawElement e){
+		if( e.getType() != RawElement.NODE ) return;
+		if( e.getTagCount() > 0 ){
+		    sink.element(e);
+		    return;
+		}
+		try {
+		    store.add(e.getID(), e.getLatitude(), e.getLongitude());
+		} catch (IOException x) {
+		    throw new UncheckedIOException(x);
+		}
+	    }
+	};
+    }
+
+    /** Finish the store, between the passes. */
+    public void finishFirstPass() throws IOException {
+	store.finish();
+    }
+
+    @Override
+    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	sink.bounds(minlat, minlon, maxlat, maxlon);
+    }
+
+    /** Give the nodes of a way from the store, then the way; and the relations */
+    @Override
+    public void element(RawElement e){
+	switch( e.getType() ){
+	    case RawElement.NODE:
+		break; // given by the first pass, or with the ways
+	    case RawElement.WAY:
+		for( int i = 0; i < e.getRefCount(); i++ ){
+		    long ref = e.getRef(i);
+		    if( given.containsKey(ref) ) continue;
+		    long record = store.find(ref);
+		    if( record < 0 ) continue; // a node with tags, or missing
+		    node.reset(RawElement.NODE, ref);
+		    node.setLocation(store.getLatitude(record), store.getLongitude(record));
+		    sink.element(node);
+		    given.put(ref, 0);
+		}
+		sink.element(e);
+		break;
+	    default:
+		sink.element(e);
+		break;
+	}
+    }
+
+}
@@ -0,0 +1,193 @@
+package function;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import elements.LongIntMap;
+import elements.MapData;
+import elements.MapUpdate;
+import elements.Node;
+import elements.NodeManager;
+import elements.Relation;
+import elements.Way;
+import elements.WayManager;
+
+/**
+ * Reader of osmChange files (.osc, or .osc.gz compressed), that applies
+ * the changes in them to loaded map data in place, instead of parsing
+ * the whole map again. The elements in the create, modify and delete
+ * sections are applied in file order through a MapUpdate, which then
+ * repairs what was derived from the elements that changed.
+ *
+ * As when loading, nd refs to nodes that do not exist are dropped, and
+ * relations keep only their way members.
+ */
+public class OSMChangeReader {
+
+    /** The actions of the sections of an osmChange file */
+    private static final int CREATE = 0, MODIFY = 1, DELETE = 2;
+
+    /** The file to read */
+    private File file;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param file The osmChange file.
+     */
+    public OSMChangeReader(File file){
+	this.file = file;
+    }
+
+    /** Check if a file name is one of an osmChange file: .osc or .osc.gz. */
+    public static boolean isChangeFile(String name){
+	return name.endsWith(".osc") || name.endsWith(".osc.gz");
+    }
+
+    /**
+     * Apply the changes of the file to finalized map data.
+     * @param data The map data.
+     * @return the number of elements created, modified or deleted.
+     */
+    public int apply(MapData data)
+	    throws IOException, ParserConfigurationException, SAXException {
+	MapUpdate update = data.update();
+	ChangeHandler handler = new ChangeHandler(data, update);
+	InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+	try {
+	    if( file.getName().endsWith(".gz") ){ stream = new GZIPInputStream(stream, 1 << 16); }
+	    SAXParserFactory spf = SAXParserFactory.newInstance();
+	    spf.setValidating(false);
+	    XMLReader xmlReader = spf.newSAXParser().getXMLReader();
+	    xmlReader.setContentHandler(handler);
+	    xmlReader.parse(new InputSource(stream));
+	} finally {
+	    stream.close();
+	    update.finish();
+	}
+	return handler.count;
+    }
+
+    /**
+     * SAX handler that collects each element of the file into a
+     * RawElement, and applies it when it ends.
+     */
+    private static class ChangeHandler extends DefaultHandler {
+
+	private MapUpdate update;
+	private NodeManager nodeManager;
+	private WayManager wayManager;
+
+	/** The action of the current section */
+	private int action = MODIFY;
+
+	/** The element being collected */
+	private RawElement current = new RawElement();
+
+	/** Number of elements applied */
+	private int count;
+
+	ChangeHandler(MapData data, MapUpdate update){
+	    this.update = update;
+	    nodeManager = data.getNodeManager();
+	    wayManager = data.getWayManager();
+	}
+
+	@Override
+	public void startElement(String namespaceURI, String localName, String qName, Attributes atts){
+	    if( qName.equals("create") ){
+		action = CREATE;
+	    } else if( qName.equals("modify") ){
+		action = MODIFY;
+	    } else if( qName.equals("delete") ){
+		action = DELETE;
+	    } else if( qName.equals("node") ){
+		current.reset(RawElement.NODE, Long.parseLong(atts.getValue("id")));
+		// a deleted node may come without its location
+		String lat = atts.getValue("lat"), lon = atts.getValue("lon");
+		if( lat != null && lon != null ){
+		    current.setLocation(Double.parseDouble(lat), Double.parseDouble(lon));
+		}
+	    } else if( qName.equals("way") ){
+		current.reset(RawElement.WAY, Long.parseLong(atts.getValue("id")));
+	    } else if( qName.equals("relation") ){
+		current.reset(RawElement.RELATION, Long.parseLong(atts.getValue("id")));
+	    } else if( qName.equals("nd") ){
+		current.addRef(Long.parseLong(atts.getValue("ref")));
+	    } else if( qName.equals("member") ){
+		current.addMember(RawElement.typeCode(atts.getValue("type")),
+			Long.parseLong(atts.getValue("ref")), atts.getValue("role"));
+	    } else if( qName.equals("tag") ){
+		current.addTag(atts.getValue("k"), atts.getValue("v"));
+	    }
+	}
+
+	@Override
+	public void endElement(String namespaceURI, String localName, String qName){
+	    if( qName.equals("node") || qName.equals("way") || qName.equals("relation") ){
+		apply(current);
+		count++;
+	    }
+	}
+
+	/** Apply a complete element */
+	private void apply(RawElement e){
+	    long id = e.getID();
+	    switch( e.getType() ){
+		case RawElement.NODE:
+		    if( action == DELETE ){
+			update.deleteNode(id);
+			return;
+		    }
+		    Node n = action == CREATE ? update.createNode(id, e.getLatitude(), e.getLongitude())
+			    : update.modifyNode(id, e.getLatitude(), e.getLongitude());
+		    for( int i = 0; i < e.getTagCount(); i++ ){ n.addTag(e.getTagKey(i), e.getTagValue(i)); }
+		    break;
+
+		case RawElement.WAY:
+		    if( action == DELETE ){
+			update.deleteWay(id);
+			return;
+		    }
+		    Way w = action == CREATE ? update.createWay(id) : update.modifyWay(id);
+		    for( int i = 0; i < e.getRefCount(); i++ ){
+			int node = nodeManager.indexOf(e.getRef(i));
+			if( node != LongIntMap.MISSING ){ w.addNode(node); }
+		    }
+		    for( int i = 0; i < e.getTagCount(); i++ ){ w.addTag(e.getTagKey(i), e.getTagValue(i)); }
+		    break;
+
+		case RawElement.RELATION:
+		    if( action == DELETE ){
+			update.deleteRelation(id);
+			return;
+		    }
+		    Relation r = action == CREATE ? update.createRelation(id) : update.modifyRelation(id);
+		    for( int i = 0; i < e.getRefCount(); i++ ){
+			if( e.getMemberType(i) != RawElement.WAY ) continue;
+			Way member = wayManager.getWay(e.getRef(i));
+			if( member != null ){ r.addMember(member); }
+		    }
+		    for( int i = 0; i < e.getTagCount(); i++ ){ r.addTag(e.getTagKey(i), e.getTagValue(i)); }
+		    break;
+
+		default:
+		    break;
+	    }
+	}
+    }
+
+}
@@ -1,5 +1,15 @@
 package function;
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -10,13 +20,13 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import elements.Element;
+import elements.ContractionHierarchy;
+import elements.LoadReport;
 import elements.MapData;
-import elements.Node;
-import elements.NodeManager;
-import elements.Relation;
-import elements.Way;
-import elements.WayManager;
+import elements.MapSnapshot;
+import elements.RoadGraph;
+import elements.TagSource;
+import gui.LoadingFrame;
 import gui.MainFrame;
 
 /**
@@ -31,9 +41,94 @@ public class OSMParser {
     /** OSM file from which the input is being taken. */
     private File file;
 
+    /** 
+     * The files to load into one map data, such as the tiles of an area;
+     * null for file alone. See parseFiles().
+     */
+    private File[] files;
+
     /** A mapData object that hands data over to respective Classes to be managed */
     private MapData mapData;
 
+    /** 
+     * Number of threads to parse with. With more than one, the file is
+     * split into chunks at element boundaries and the chunks are parsed
+     * on a fork-join pool; see parseParallel().
+     */
+    private int threads = 1;
+
+    /** Files are not split into chunks smaller than this many bytes. */
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    /** Number of chunks per thread, so that threads finishing early get more work. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** The ways an OSM XML file can be read. */
+    public enum Engine {
+	/** The SAX parser of the JDK, with OSMHandler */
+	SAX,
+	/** OSMTokenizer, reading the bytes directly */
+	BYTES
+    }
+
+    /** How to read the file */
+    private Engine engine = Engine.SAX;
+
+    /** If the file is read through memory-mapped buffers instead of streams */
+    private boolean mapped;
+
+    /**
+     * Size of the windows a file is mapped in. A MappedByteBuffer is
+     * indexed by int, so larger files are mapped a window at a time.
+     */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    /** 
+     * If a snapshot of the map data is kept next to the file: loaded
+     * instead of parsing when it is up to date, and written otherwise.
+     */
+    private boolean snapshot;
+
+    /**
+     * If the map data gets a contraction hierarchy for routing, kept in
+     * a file next to the map file: loaded when it is of the same road
+     * graph, and built and written otherwise.
+     */
+    private boolean hierarchy;
+
+    /** 
+     * The keys of the tags kept when loading with lazy tags, or null to
+     * keep all tags. See OSMTagSource.
+     */
+    private String[] lazyKeys;
+
+    /** Which elements to load */
+    private FilterProfile profile = FilterProfile.ALL;
+
+    /** The box to load: minlat, minlon, maxlat, maxlon; null to load all */
+    private double[] boundingBox;
+
+    /** 
+     * If the nodes are kept in a NodeStore on disk while the ways are
+     * resolved, instead of on the heap; see NodeStoreSink.
+     */
+    private boolean externalNodes;
+
+    /** The directory of the NodeStore file; null for the default temporary directory */
+    private File storeDir;
+
+    /** The progress of the load, for another thread; null for none */
+    private LoadProgress progress;
+
+    /** The report of where the load time goes; null for none */
+    private LoadReport report;
+
+    /** The sinks that loaded the map data, for the time spent on tags */
+    private ArrayList<MapDataSink> dataSinks = new ArrayList<MapDataSink>();
+
+    /** If mapData has been finalized */
+    private boolean finalized;
+
 
     /**
      * Initialize an OSMParser that takes data from a specified file.
@@ -46,22 +141,418 @@ public class OSMParser {
 	mapData = new MapData();
     }
 
+    /**
+     * Initialize an OSMParser that loads several files, such as the tiles
+     * of an area, into one map data. See parseFiles().
+     *
+     * @param fs The files to read; getFile() gives the first.
+     */
+    public OSMParser(File[] fs) {
+	this(fs[0]);
+	if( fs.length > 1 ) files = fs.clone();
+    }
+
+    /**
+     * Set whether to parse on all available cores.
+     * @param parallel true to parse in parallel chunks.
+     */
+    public void setParallel(boolean parallel){
+	threads = parallel ? Runtime.getRuntime().availableProcessors() : 1;
+    }
+
+    /**
+     * Set the number of threads to parse with.
+     * @param n The number of threads; 1 parses on the calling thread.
+     */
+    public void setThreads(int n){
+	threads = Math.max(1, n);
+    }
+
+    /**
+     * Set how to read the file.
+     * @param engine Engine.SAX or Engine.BYTES.
+     */
+    public void setEngine(Engine engine){
+	this.engine = engine;
+    }
+
+    /**
+     * Set whether to memory-map the file instead of reading it through
+     * streams. With Engine.BYTES the tokenizer works on the mapped
+     * buffers directly, without copying.
+     * @param mapped true to map the file.
+     */
+    public void setMapped(boolean mapped){
+	this.mapped = mapped;
+    }
+
+    /**
+     * Set whether to keep a snapshot of the map data next to the file.
+     * When the snapshot is up to date, parse() loads it instead of
+     * parsing, and otherwise getData() writes it. See MapSnapshot.
+     * @param snapshot true to use a snapshot.
+     */
+    public void setSnapshot(boolean snapshot){
+	this.snapshot = snapshot;
+    }
+
+    /**
+     * Set whether to give the map data a contraction hierarchy, for
+     * DirectionsGenerator.Search.HIERARCHY. getData() loads it from the
+     * file next to the map file if it is of the same road graph, and
+     * otherwise builds it, with the threads of the parse, and writes
+     * it. See ContractionHierarchy.
+     * @param hierarchy true to have a hierarchy.
+     */
+    public void setHierarchy(boolean hierarchy){
+	this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Set whether to load with lazy tags: only the tags with the given
+     * keys are kept, and the others are read again from the file when
+     * they are asked for. This needs offsets into the file, so it only
+     * works for .osm files read with Engine.BYTES; other files are loaded
+     * with all their tags.
+     * @param keptKeys The keys of the tags to keep, such as
+     * OSMTagSource.DEFAULT_KEYS; null to keep all tags.
+     */
+    public void setLazyTags(String[] keptKeys){
+	lazyKeys = keptKeys;
+    }
+
+    /**
+     * Set which elements to load. A profile other than FilterProfile.ALL
+     * reads the file twice, see FilterSink, and keeps its snapshot apart.
+     * @param profile The profile.
+     */
+    public void setFilterProfile(FilterProfile profile){
+	this.profile = profile;
+    }
+
+    /**
+     * Load only what is in a bounding box: the nodes in it, the ways with
+     * a node in it (whole, with their nodes outside it), and the relations
+     * with a member that is loaded. Like a filter profile, this reads the
+     * file twice, see FilterSink.
+     * @param minlat The minimum latitude.
+     * @param minlon The minimum longitude.
+     * @param maxlat The maximum latitude.
+     * @param maxlon The maximum longitude.
+     */
+    public void setBoundingBox(double minlat, double minlon, double maxlat, double maxlon){
+	boundingBox = new double[]{ minlat, minlon, maxlat, maxlon };
+    }
+
+    /**
+     * Set the progress of the loads of parse(), for another thread to
+     * watch, preview and cancel; see LoadProgress. A cancelled load
+     * throws a CancellationException.
+     * @param progress The progress; null for none.
+     */
+    public void setProgress(LoadProgress progress){
+	this.progress = progress;
+    }
+
+    /**
+     * Set the report to time the phases of the load in, and to count
+     * what was loaded; see LoadReport. It is finished by getData(), and
+     * kept by the map data.
+     * @param report The report; null for none.
+     */
+    public void setReport(LoadReport report){
+	this.report = report;
+    }
+
+    /** Get the report of the load; null if none was set. */
+    public LoadReport getReport(){ return report; }
+
+    /**
+     * Set whether to load with the nodes on disk: the nodes without tags
+     * are first written to a NodeStore, sorted by id, and a second read
+     * of the file gives the ways only the nodes they use, looked up in
+     * the store. The heap then holds the nodes that are used, and not
+     * every node of the file at once; nodes without tags that no way
+     * uses are not loaded, and the nodes are numbered in the order they
+     * are first used. Like a filter profile, this reads the file twice
+     * more, and keeps its snapshot apart.
+     * @param external true to keep the nodes on disk.
+     * @param dir The directory for the store; null for the default
+     * temporary directory.
+     */
+    public void setExternalNodes(boolean external, File dir){
+	externalNodes = external;
+	storeDir = dir;
+    }
+
+    /**
+     * Check if a file name is one of an OSM file this parser can read:
+     * .osm, .osm.gz or .osm.bz2 compressed, or .osm.pbf.
+     */
+    public static boolean isOSMFile(String name){
+	return name.endsWith(".osm") || isCompressed(name) || name.endsWith(".osm.pbf");
+    }
+
+    /** Check if a file name is one of a compressed OSM file. */
+    private static boolean isCompressed(String name){
+	return name.endsWith(".osm.gz") || name.endsWith(".osm.bz2");
+    }
+
     /**
      * Parse the OSM file underlying this OSMParser.
      */
     public void parse()
 	    throws IOException, ParserConfigurationException, SAXException {
-	SAXParserFactory spf = SAXParserFactory.newInstance();
-	spf.setValidating(false);
-	SAXParser saxParser = spf.newSAXParser();
-	XMLReader xmlReader = saxParser.getXMLReader();
-	OSMHandler handler = new OSMHandler(); // handler does all real work
-	xmlReader.setContentHandler(handler);
+	if( report != null ) report.begin("parse");
+	if( files != null ){
+	    parseFiles();
+	} else {
+	    parseFile();
+	}
+	if( progress != null ) progress.flushPreview(true);
+	if( report != null ){
+	    long tags = 0;
+	    for( MapDataSink sink : dataSinks ){ tags += sink.getTagTime(); }
+	    if( !dataSinks.isEmpty() ) report.addTime("tags", tags);
+	    report.end();
+	}
+    }
+
+    /** Begin a phase of the report, if there is one */
+    private void begin(String phase){
+	if( report != null ) report.begin(phase);
+    }
+
+    /** End the phase of the report begun last, if there is one */
+    private void end(){
+	if( report != null ) report.end();
+    }
+
+    /** Make a sink that loads into the map data, with its tag time in the report */
+    private MapDataSink newDataSink(TagSource tagSource){
+	MapDataSink sink = new MapDataSink(mapData, tagSource);
+	sink.setTimeTags(report != null);
+	dataSinks.add(sink);
+	return sink;
+    }
+
+    /** Parse the one file, or load its snapshot */
+    private void parseFile()
+	    throws IOException, ParserConfigurationException, SAXException {
+	TagSource tagSource = null;
+	if( lazyKeys != null && engine == Engine.BYTES && file.getName().endsWith(".osm") ){
+	    tagSource = new OSMTagSource(file, lazyKeys);
+	}
+	File snapshotFile = snapshotFile();
+	if( snapshot && MapSnapshot.isFresh(file, snapshotFile) ){
+	    begin("snapshot load");
+	    try {
+		mapData = MapSnapshot.load(snapshotFile, tagSource);
+		finalized = true;
+		if( report != null ) report.setCount("bytes", snapshotFile.length());
+		return;
+	    } catch (IOException x) {
+		System.err.println("Parsing " + file + " again: " + x.getMessage());
+	    } finally {
+		end();
+	    }
+	}
+	mapData.setTagSource(tagSource);
+	if( report != null ) report.setCount("bytes", file.length() * passes());
+	ElementSink sink = newDataSink(tagSource);
+	if( progress != null ){
+	    progress.setTotalBytes(file.length() * passes());
+	    sink = progress.watch(sink, mapData);
+	}
+	if( !profile.keepsAll() || boundingBox != null ){
+	    FilterSink filter = new FilterSink(profile, sink);
+	    if( boundingBox != null ){
+		filter.setBoundingBox(boundingBox[0], boundingBox[1], boundingBox[2], boundingBox[3]);
+	    }
+	    begin("filter pass");
+	    read(file, filter.firstPass(), threads);
+	    end();
+	    sink = filter;
+	}
+	if( !externalNodes ){
+	    begin("read");
+	    read(file, sink, threads);
+	    end();
+	    return;
+	}
+	NodeStore store = new NodeStore(storeDir);
+	try {
+	    NodeStoreSink external = new NodeStoreSink(store, sink);
+	    begin("node store");
+	    read(file, external.firstPass(), threads);
+	    external.finishFirstPass();
+	    end();
+	    begin("read");
+	    read(file, external, threads);
+	    end();
+	} catch (UncheckedIOException x) {
+	    throw x.getCause();
+	} finally {
+	    store.close();
+	}
+    }
+
+    /** Get the number of times a file is read: more with a filter, or the nodes on disk */
+    private int passes(){
+	int passes = 1;
+	if( !profile.keepsAll() || boundingBox != null ) passes++;
+	if( externalNodes && files == null ) passes++;
+	return passes;
+    }
+
+    /**
+     * Parse several files into one map data. The files are read at the
+     * same time on a pool, one file per thread, each into its own
+     * ElementBuffer (through a FilterSink, if a profile or a bounding box
+     * is set). The buffers are then merged like the chunks of
+     * parseParallel(): the bounds, as one box around them all, then all
+     * the nodes, the ways, and the relations.
+     *
+     * Tiles overlap at their edges, where they both have the nodes and
+     * ways that cross over. An element with an id that is loaded already
+     * is dropped, so the ways of both tiles use the same nodes, and the
+     * road graph is joined across the edge. When the two copies of a way
+     * differ, the one in the earlier file is kept.
+     *
+     * Snapshots and keeping the nodes on disk are for single files, and
+     * are not used here; lazy tags are, each file being its own TagSource.
+     */
+    private void parseFiles()
+	    throws IOException, ParserConfigurationException, SAXException {
+	ArrayList<FileTask> tasks = new ArrayList<FileTask>();
+	long length = 0;
+	for( File f : files ){ 
+	    tasks.add(new FileTask(f)); 
+	    length += f.length();
+	}
+	if( progress != null ) progress.setTotalBytes(length * passes());
+	if( report != null ) report.setCount("bytes", length * passes());
+	begin("read files");
+	ForkJoinPool pool = new ForkJoinPool(Math.min(threads, files.length));
+	try {
+	    for( FileTask task : tasks ){ pool.execute(task); }
+	    for( FileTask task : tasks ){ task.join(); }
+	} finally {
+	    pool.shutdown();
+	}
+	end();
+	for( FileTask task : tasks ){ task.rethrow(); }
+
+	// the box around the bounds of all the files
+	final double[] box = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+	ElementSink union = new ElementSink(){
+	    @Override
+	    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+		box[0] = Math.min(box[0], minlat);
+		box[1] = Math.min(box[1], minlon);
+		box[2] = Math.max(box[2], maxlat);
+		box[3] = Math.max(box[3], maxlon);
+	    }
+
+	    @Override
+	    public void element(RawElement e){
+	    }
+	};
+	for( FileTask task : tasks ){ task.getRawResult().replayBounds(union); }
+
+	ArrayList<ElementSink> sinks = new ArrayList<ElementSink>();
+	for( FileTask task : tasks ){
+	    TagSource tagSource = null;
+	    if( lazyKeys != null && engine == Engine.BYTES && task.file.getName().endsWith(".osm") ){
+		tagSource = new OSMTagSource(task.file, lazyKeys);
+		if( mapData.getTagSource() == null ) mapData.setTagSource(tagSource);
+	    }
+	    MapDataSink sink = newDataSink(tagSource);
+	    sink.setSkipDuplicates(true);
+	    sinks.add(progress == null ? sink : progress.watch(sink, mapData));
+	}
+	begin("merge");
+	if( box[0] <= box[2] ){ sinks.get(0).bounds(box[0], box[1], box[2], box[3]); }
+	for( int i = 0; i < tasks.size(); i++ ){ tasks.get(i).getRawResult().replay(sinks.get(i), RawElement.NODE); }
+	for( int i = 0; i < tasks.size(); i++ ){ tasks.get(i).getRawResult().replay(sinks.get(i), RawElement.WAY); }
+	for( int i = 0; i < tasks.size(); i++ ){ tasks.get(i).getRawResult().replay(sinks.get(i), RawElement.RELATION); }
+	end();
+    }
+
+    /** Task that reads one of the files of parseFiles() into an ElementBuffer. */
+    class FileTask extends RecursiveTask<ElementBuffer> {
+
+	private File file;
+
+	/** The exception the parse failed with, if any. */
+	private Exception error;
+
+	FileTask(File file){
+	    this.file = file;
+	}
+
+	@Override
+	protected ElementBuffer compute(){
+	    ElementBuffer buffer = new ElementBuffer();
+	    try {
+		if( !profile.keepsAll() || boundingBox != null ){
+		    FilterSink filter = new FilterSink(profile, buffer);
+		    if( boundingBox != null ){
+			filter.setBoundingBox(boundingBox[0], boundingBox[1], boundingBox[2], boundingBox[3]);
+		    }
+		    read(file, filter.firstPass(), 1);
+		    read(file, filter, 1);
+		} else {
+		    read(file, buffer, 1);
+		}
+	    } catch (Exception x) {
+		error = x;
+	    }
+	    return buffer;
+	}
+
+	/** Throw the exception the file failed with, if any. */
+	void rethrow() throws IOException, ParserConfigurationException, SAXException {
+	    if( error instanceof IOException ) throw (IOException) error;
+	    if( error instanceof SAXException ) throw (SAXException) error;
+	    if( error instanceof ParserConfigurationException ) throw (ParserConfigurationException) error;
+	    if( error instanceof RuntimeException ) throw (RuntimeException) error;
+	    if( error != null ) throw new IOException(error);
+	}
+    }
+
+    /**
+     * Read a whole file once, the way that suits its kind and the
+     * settings, giving the elements to a sink.
+     * @param file The file to read.
+     * @param sink The sink that receives the elements.
+     * @param threads The number of threads to read with.
+     */
+    private void read(File file, ElementSink sink, int threads)
+	    throws IOException, ParserConfigurationException, SAXException {
+	if( file.getName().endsWith(".pbf") ){
+	    PBFReader reader = new PBFReader(file, threads);
+	    reader.setProgress(progress);
+	    reader.read(sink);
+	    return;
+	}
+	if( isCompressed(file.getName()) ){
+	    parseCompressed(file, sink);
+	    return;
+	}
+	if( threads > 1 && file.length() >= 2 * MIN_CHUNK_SIZE ){
+	    parseParallel(file, sink);
+	    return;
+	}
+	if( mapped ){
+	    parseRegion(file, 0, file.length(), true, true, sink, engine, true, progress);
+	    return;
+	}
 	InputStream stream = null;
 	try {
 	    stream = new FileInputStream(file);
-	    InputSource source = new InputSource(stream);
-	    xmlReader.parse(source); // call backs to handler
+	    if( progress != null ) stream = progress.count(stream);
+	    parse(stream, sink, engine, 0);
 	} catch (IOException x) {
 	    throw x;
 	} finally {
@@ -70,11 +561,379 @@ public class OSMParser {
 	}
     }
 
+    /**
+     * Parse an OSM XML stream, giving the elements to a sink.
+     * @param stream The stream to read.
+     * @param sink The sink that receives the elements.
+     * @param engine How to read the stream.
+     */
+    static void parse(InputStream stream, ElementSink sink, Engine engine)
+	    throws IOException, ParserConfigurationException, SAXException {
+	parse(stream, sink, engine, -1);
+    }
+
+    /**
+     * Parse an OSM XML stream, giving the elements to a sink.
+     * @param stream The stream to read.
+     * @param sink The sink that receives the elements.
+     * @param engine How to read the stream.
+     * @param sourceOffset The file offset of the start of the stream, to
+     * give the elements their offsets; -1 if the stream is not a file.
+     * Only Engine.BYTES gives elements offsets.
+     */
+    static void parse(InputStream stream, ElementSink sink, Engine engine, long sourceOffset)
+	    throws IOException, ParserConfigurationException, SAXException {
+	if( engine == Engine.BYTES ){
+	    OSMTokenizer tokenizer = new OSMTokenizer(sink);
+	    tokenizer.setSourceOffset(sourceOffset);
+	    tokenizer.parse(stream);
+	    return;
+	}
+	SAXParserFactory spf = SAXParserFactory.newInstance();
+	spf.setValidating(false);
+	SAXParser saxParser = spf.newSAXParser();
+	XMLReader xmlReader = saxParser.getXMLReader();
+	OSMHandler handler = new OSMHandler(sink); // handler does all real work
+	xmlReader.setContentHandler(handler);
+	InputSource source = new InputSource(stream);
+	xmlReader.parse(source); // call backs to handler
+    }
+
+    /**
+     * Parse a compressed file. A compressed file cannot be split or
+     * mapped, so instead decompressing, tokenizing and building the map
+     * data each run on their own thread, in a ParsePipeline.
+     */
+    private void parseCompressed(File file, ElementSink sink)
+	    throws IOException, ParserConfigurationException, SAXException {
+	InputStream stream = new FileInputStream(file);
+	if( progress != null ) stream = progress.count(stream);
+	stream = new BufferedInputStream(stream, 1 << 16);
+	try {
+	    if( file.getName().endsWith(".gz") ){
+		stream = new GZIPInputStream(stream, 1 << 16);
+	    } else {
+		stream = new BZip2InputStream(stream);
+	    }
+	    new ParsePipeline(stream, engine).run(sink);
+	} finally {
+	    stream.close();
+	}
+    }
+
+    /**
+     * Parse the file in chunks on a fork-join pool. The file is split at
+     * the start of node, way and relation elements; each chunk is parsed
+     * into its own ElementBuffer, and the buffers are then merged into
+     * the sink: all nodes of all chunks first, then the ways, then the
+     * relations, so that every nd ref is resolved after all nodes landed.
+     */
+    private void parseParallel(File file, ElementSink sink)
+	    throws IOException, ParserConfigurationException, SAXException {
+	long length = file.length();
+	int parts = (int) Math.min(threads * CHUNKS_PER_THREAD, length / MIN_CHUNK_SIZE);
+	long[] cuts = splitChunks(file, Math.max(parts, 1));
+
+	ArrayList<ChunkTask> tasks = new ArrayList<ChunkTask>();
+	for( int i = 0; i + 1 < cuts.length; i++ ){
+	    tasks.add(new ChunkTask(file, cuts[i], cuts[i+1], i == 0, i + 2 == cuts.length, engine, mapped, progress));
+	}
+
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    for( ChunkTask task : tasks ){ pool.execute(task); }
+	    for( ChunkTask task : tasks ){ task.join(); }
+	} finally {
+	    pool.shutdown();
+	}
+	for( ChunkTask task : tasks ){ task.rethrow(); }
+
+	// merge, resolving refs only after all the nodes are in
+	for( ChunkTask task : tasks ){ task.getRawResult().replayBounds(sink); }
+	for( ChunkTask task : tasks ){ task.getRawResult().replay(sink, RawElement.NODE); }
+	for( ChunkTask task : tasks ){ task.getRawResult().replay(sink, RawElement.WAY); }
+	for( ChunkTask task : tasks ){ task.getRawResult().replay(sink, RawElement.RELATION); }
+    }
+
+    /**
+     * Find where to split a file into about the given number of chunks.
+     * Every cut is at the '<' of a node, way or relation element.
+     * @return the offsets of the chunks; chunk i is [cuts[i], cuts[i+1]).
+     */
+    static long[] splitChunks(File file, int parts) throws IOException {
+	long length = file.length();
+	long[] cuts = new long[parts + 1];
+	int n = 0;
+	cuts[n++] = 0;
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    byte[] window = new byte[1 << 16];
+	    for( int i = 1; i < parts; i++ ){
+		long from = Math.max(length * i / parts, cuts[n-1] + 1);
+		long cut = findElementStart(raf, from, window);
+		if( cut < 0 ) break; // no more elements
+		if( cut > cuts[n-1] ){ cuts[n++] = cut; }
+	    }
+	} finally {
+	    raf.close();
+	}
+	cuts[n++] = length;
+	return Arrays.copyOf(cuts, n);
+    }
+
+    /**
+     * Find the first node, way or relation start tag at or after an offset.
+     * @return the offset of its '<', or -1 if there is none.
+     */
+    private static long findElementStart(RandomAccessFile raf, long from, byte[] window)
+	    throws IOException {
+	long pos = from;
+	while( true ){
+	    raf.seek(pos);
+	    int read = raf.read(window);
+	    if( read <= 0 ) return -1;
+	    int k = 0;
+	    // the longest tag we look for, "<relation ", is 10 bytes.
+	    for( ; k + 10 <= read; k++ ){
+		if( window[k] == '<' && isElementStart(window, k + 1) ) return pos + k;
+	    }
+	    if( read < window.length ){ // the end of file; check the last few bytes
+		for( ; k < read; k++ ){
+		    if( window[k] == '<' && k + 10 <= read && isElementStart(window, k + 1) ) return pos + k;
+		}
+		return -1;
+	    }
+	    pos += k;
+	}
+    }
+
+    /** Check if the bytes at i name a node, way or relation, followed by a space. */
+    private static boolean isElementStart(byte[] b, int i){
+	return startsWith(b, i, "node ") || startsWith(b, i, "way ") 
+		|| startsWith(b, i, "relation ");
+    }
+
+    /** Check if the bytes at i are the (ASCII) string s. */
+    private static boolean startsWith(byte[] b, int i, String s){
+	for( int k = 0; k < s.length(); k++ ){
+	    if( b[i + k] != s.charAt(k) ) return false;
+	}
+	return true;
+    }
+
+    /**
+     * Parse the bytes [start, end) of a file, giving the elements to a
+     * sink. A region that does not start or end the file is wrapped in
+     * an osm element of its own, so that it is a document by itself.
+     * @param first true if the region starts the file.
+     * @param last true if the region ends the file.
+     * @param mapped true to read the region through mapped buffers.
+     */
+    private static void parseRegion(File file, long start, long end, boolean first, boolean last,
+	    ElementSink sink, Engine engine, boolean mapped, LoadProgress progress)
+	    throws IOException, ParserConfigurationException, SAXException {
+	if( mapped && engine == Engine.BYTES ){ // no need for the wrapping
+	    if( progress == null ){
+		parseMapped(file, start, end, sink);
+		return;
+	    }
+	    LoadProgress.OffsetCounter counter = progress.new OffsetCounter(sink, start);
+	    parseMapped(file, start, end, counter);
+	    counter.finishRegion(end);
+	    return;
+	}
+	ArrayList<InputStream> parts = new ArrayList<InputStream>();
+	long offset = start;
+	if( !first ){ 
+	    parts.add(new ByteArrayInputStream("<osm>".getBytes())); 
+	    offset -= "<osm>".length();
+	}
+	InputStream region = mapped ? new MappedInputStream(file, start, end) : new RegionInputStream(file, start, end);
+	parts.add(progress == null ? region : progress.count(region));
+	if( !last ){ parts.add(new ByteArrayInputStream("</osm>".getBytes())); }
+	InputStream stream = new SequenceInputStream(Collections.enumeration(parts));
+	try {
+	    parse(stream, sink, engine, offset);
+	} finally {
+	    stream.close();
+	}
+    }
+
+    /**
+     * Tokenize the bytes [start, end) of a file straight from mapped
+     * buffers. The region is mapped in windows of MAP_WINDOW bytes; an
+     * element cut off at the end of a window is parsed again from the
+     * start of the next window, which begins where that element does.
+     */
+    private static void parseMapped(File file, long start, long end, ElementSink sink)
+	    throws IOException {
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    OSMTokenizer tokenizer = new OSMTokenizer(sink);
+	    long pos = start;
+	    while( pos < end ){
+		int size = (int) Math.min(MAP_WINDOW, end - pos);
+		boolean last = pos + size == end;
+		MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		tokenizer.setSourceOffset(pos);
+		int stop = tokenizer.tokenize(window, 0, size, last);
+		if( last ) break;
+		if( stop == 0 ) throw new IOException("OSM element larger than the map window at " + pos);
+		pos += stop;
+	    }
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Task that parses one chunk of the file into an ElementBuffer.
+     */
+    static class ChunkTask extends RecursiveTask<ElementBuffer> {
+
+	private File file;
+	private long start;
+	private long end;
+	private boolean first;
+	private boolean last;
+	private Engine engine;
+	private boolean mapped;
+	private LoadProgress progress;
+
+	/** The exception the parse failed with, if any. */
+	private Exception error;
+
+	ChunkTask(File file, long start, long end, boolean first, boolean last, 
+		Engine engine, boolean mapped, LoadProgress progress){
+	    this.file = file;
+	    this.start = start;
+	    this.end = end;
+	    this.first = first;
+	    this.last = last;
+	    this.engine = engine;
+	    this.mapped = mapped;
+	    this.progress = progress;
+	}
+
+	@Override
+	protected ElementBuffer compute(){
+	    ElementBuffer buffer = new ElementBuffer();
+	    try {
+		parseRegion(file, start, end, first, last, buffer, engine, mapped, progress);
+	    } catch (Exception x) {
+		error = x;
+	    }
+	    return buffer;
+	}
+
+	/** Throw the exception the chunk failed with, if any. */
+	void rethrow() throws IOException, ParserConfigurationException, SAXException {
+	    if( error instanceof IOException ) throw (IOException) error;
+	    if( error instanceof SAXException ) throw (SAXException) error;
+	    if( error instanceof ParserConfigurationException ) throw (ParserConfigurationException) error;
+	    if( error instanceof RuntimeException ) throw (RuntimeException) error;
+	    if( error != null ) throw new IOException(error);
+	}
+    }
+
+    /** Stream of the bytes [start, end) of a file. */
+    static class RegionInputStream extends FilterInputStream {
+
+	/** Bytes left to read. */
+	private long remaining;
+
+	RegionInputStream(File file, long start, long end) throws IOException {
+	    super(new FileInputStream(file));
+	    long skipped = 0;
+	    while( skipped < start ){ 
+		long k = in.skip(start - skipped); 
+		if( k <= 0 ) throw new EOFException();
+		skipped += k;
+	    }
+	    remaining = end - start;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    if( remaining <= 0 ) return -1;
+	    int b = in.read();
+	    if( b >= 0 ) remaining--;
+	    return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if( remaining <= 0 ) return -1;
+	    int k = in.read(b, off, (int) Math.min(len, remaining));
+	    if( k > 0 ) remaining -= k;
+	    return k;
+	}
+    }
+
+    /**
+     * Stream of the bytes [start, end) of a file, read from mapped
+     * windows of the file instead of through read calls.
+     */
+    static class MappedInputStream extends InputStream {
+
+	private FileChannel channel;
+
+	/** File offset where the next window starts */
+	private long next;
+
+	/** End of the region */
+	private long end;
+
+	/** The current window, or null before the first */
+	private MappedByteBuffer window;
+
+	MappedInputStream(File file, long start, long end) throws IOException {
+	    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	    next = start;
+	    this.end = end;
+	}
+
+	/** Map the next window when the current one is used up; false at the end */
+	private boolean fill() throws IOException {
+	    if( window != null && window.hasRemaining() ) return true;
+	    if( next >= end ) return false;
+	    long size = Math.min(MAP_WINDOW, end - next);
+	    window = channel.map(FileChannel.MapMode.READ_ONLY, next, size);
+	    next += size;
+	    return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    if( !fill() ) return -1;
+	    return window.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if( len == 0 ) return 0;
+	    if( !fill() ) return -1;
+	    int k = Math.min(len, window.remaining());
+	    window.get(b, off, k);
+	    return k;
+	}
+
+	@Override
+	public void close() throws IOException {
+	    channel.close();
+	}
+    }
+
     /**
      * Handler class used by the SAX XML parser. The methods of this class are
      * called back by the parser when XML elements are encountered.
+     * Each node, way and relation is collected into a RawElement and
+     * given to the sink when its end tag is encountered.
      */
-    class OSMHandler extends DefaultHandler {
+    static class OSMHandler extends DefaultHandler {
+
+	/** The sink that receives the complete elements. */
+	private ElementSink sink;
 
 	/** Current character data. */
 	private String cdata;
@@ -89,9 +948,17 @@ public class OSMParser {
 	private String idTemp;
 
 	/**
-	 * The most recently encountered Element object
+	 * The most recently encountered Element, being collected
+	 */
+	private RawElement currentElement = new RawElement();
+
+	/**
+	 * The constructor.
+	 * @param sink The sink that receives the elements.
 	 */
-	private Element currentElement;
+	OSMHandler(ElementSink sink) {
+	    this.sink = sink;
+	}
 
 	/**
 	 * Get the most recently encountered CDATA.
@@ -149,59 +1016,54 @@ public class OSMParser {
 	    //-------Making Node objects-----------------------------//
 
 	    if(qName.equals("node")){
-		Node n = mapData.newNode(atts);
-		currentElement = n;
+		idTemp = atts.getValue("id");
+		currentElement.reset(RawElement.NODE, Long.parseLong(idTemp));
+		currentElement.setLocation(Double.parseDouble(atts.getValue("lat")), 
+			Double.parseDouble(atts.getValue("lon")));
 	    }
 
 	    //-------Making Way objects------------------------------//
 
 	    if(qName.equals("way")){
-		Way way = mapData.newWay(atts);
-		currentElement = way;
+		idTemp = atts.getValue("id");
+		currentElement.reset(RawElement.WAY, Long.parseLong(idTemp));
 	    }
 
 	    if(qName.equals("nd")){
-		NodeManager tempManager = mapData.getNodeManager();
-		Node node = tempManager.getNode(atts.getValue("ref"));
-
-		if(node != null){  // node is the node we are currently grasped. 
-		    Way w = (Way) currentElement;
-		    w.addNode(node);}
+		currentElement.addRef(Long.parseLong(atts.getValue("ref")));
 	    }
 
 
 	    //-------Making Relation objects--------------------------//
 	    if(qName.equals("relation")){
-		currentElement = mapData.newRelation(atts);
+		idTemp = atts.getValue("id");
+		currentElement.reset(RawElement.RELATION, Long.parseLong(idTemp));
 	    }
 
 	    if(qName.equals("member")){
-		Relation r = (Relation) currentElement;
-		Way member = null;
-
-		if(atts.getValue("type").equals("way")){
-		    String memberID = atts.getValue("ref");
-		    WayManager tempManager = mapData.getWayManager();
-		    member = tempManager.getWay(memberID);
-		    if(member != null){
-			r.addMember(member);
-		    }
-		}
-
+		int type = RawElement.typeCode(atts.getValue("type"));
+		long memberID = Long.parseLong(atts.getValue("ref"));
+		currentElement.addMember(type, memberID, atts.getValue("role"));
 	    }
 
 	    //------General Tag adding----------------------------//
 	    if(qName.equals("tag")){ 
-		currentElement.addTagValues(atts);
+		currentElement.addTag(atts.getValue("k"), atts.getValue("v"));
 	    }
 
 	    //------------------- Bounds -------------------//
 	    if(qName.equals("bounds")){
-		mapData.addBounds(atts);
+		sink.bounds(Double.parseDouble(atts.getValue("minlat")), 
+			Double.parseDouble(atts.getValue("minlon")),
+			Double.parseDouble(atts.getValue("maxlat")), 
+			Double.parseDouble(atts.getValue("maxlon")));
 	    }
 
+	    // Example of tag: bound box="41.14964,-71.89513,42.02115,-71.12079";
 	    if(qName.endsWith("bound")){
-		mapData.addBoundBox(atts);
+		String[] box = atts.getValue("box").split(",");
+		sink.bounds(Double.parseDouble(box[0]), Double.parseDouble(box[1]),
+			Double.parseDouble(box[2]), Double.parseDouble(box[3]));
 	    }
 
 	    //-------------------------------------//
@@ -218,6 +1080,9 @@ public class OSMParser {
 		String qName) throws SAXParseException {
 	    //System.out.println("endElement: " + namespaceURI + ","
 	    // + localName + "," + qName);
+	    if(qName.equals("node") || qName.equals("way") || qName.equals("relation")){
+		sink.element(currentElement);
+	    }
 	}
 
 	/**
@@ -248,10 +1113,110 @@ public class OSMParser {
 
     /** Get map data */
     public MapData getData(){
-	mapData.finalizeData();
+	if( !finalized ){
+	    mapData.finalizeData(threads, report);
+	    finalized = true;
+	    if( snapshot && files == null ){
+		begin("snapshot write");
+		saveSnapshot();
+		end();
+	    }
+	}
+	if( hierarchy && mapData.getNodeManager().getHierarchy() == null ){
+	    begin("hierarchy");
+	    loadHierarchy();
+	    end();
+	}
+	if( report != null && mapData.getLoadReport() == null ){
+	    countData();
+	    mapData.setLoadReport(report);
+	    report.finish();
+	}
 	return mapData;
     }
 
+    /** Count what was loaded, in the report */
+    private void countData(){
+	long nodes = mapData.getNodeManager().getNodeCount();
+	long ways = mapData.getWayManager().getAllWays().size();
+	long relations = mapData.getRelationManager().getAllRelations().size();
+	report.setCount("nodes", nodes);
+	report.setCount("ways", ways);
+	report.setCount("relations", relations);
+	report.setCount("elements", nodes + ways + relations);
+	report.setCount("edges", mapData.getRoadGraph().getEdgeCount());
+	ContractionHierarchy ch = mapData.getNodeManager().getHierarchy();
+	if( ch != null ) report.setCount("shortcuts", ch.getShortcutCount());
+    }
+
+    /**
+     * Give the map data its contraction hierarchy: load the one next to
+     * the file if it is of the same road graph, or build it and write it
+     * there; a failure to write is only reported. It is done again if
+     * the hierarchy was dropped, after changes to the graph. The
+     * hierarchy of tiles loaded together is built and not kept, like
+     * their snapshot.
+     */
+    private void loadHierarchy(){
+	RoadGraph graph = mapData.getRoadGraph();
+	File chFile = files == null ? hierarchyFile() : null;
+	if( chFile != null && ContractionHierarchy.isFresh(chFile, graph) ){
+	    try {
+		mapData.getNodeManager().setHierarchy(ContractionHierarchy.load(chFile));
+		return;
+	    } catch (IOException x) {
+		System.err.println("Could not load the contraction hierarchy: " + x.getMessage());
+	    }
+	}
+	ContractionHierarchy ch = ContractionHierarchy.build(graph, threads);
+	mapData.getNodeManager().setHierarchy(ch);
+	if( chFile == null ) return;
+	try {
+	    ch.write(graph, chFile);
+	} catch (IOException x) {
+	    System.err.println("Could not write the contraction hierarchy: " + x.getMessage());
+	}
+    }
+
+    /** Write the snapshot of the finalized map data; a failure is only reported. */
+    private void saveSnapshot(){
+	try {
+	    MapSnapshot.write(mapData, file, snapshotFile());
+	} catch (IOException x) {
+	    System.err.println("Could not write a map snapshot: " + x.getMessage());
+	}
+    }
+
+    /** 
+     * Get the snapshot file of the file: one per filter profile and 
+     * bounding box, and apart for a load with the nodes on disk.
+     */
+    private File snapshotFile(){
+	String variant = variant();
+	return variant == null ? MapSnapshot.snapshotFile(file) : MapSnapshot.snapshotFile(file, variant);
+    }
+
+    /** Get the hierarchy file of the file: one per variant, like the snapshot. */
+    private File hierarchyFile(){
+	String variant = variant();
+	return variant == null ? ContractionHierarchy.hierarchyFile(file) : ContractionHierarchy.hierarchyFile(file, variant);
+    }
+
+    /** 
+     * Get the name of the variant of the map data loaded: of the filter
+     * profile and bounding box, and of a load with the nodes on disk;
+     * null for all of the file, loaded on the heap.
+     */
+    private String variant(){
+	if( profile.keepsAll() && boundingBox == null && !externalNodes ) return null;
+	String variant = profile.getName();
+	if( boundingBox != null ){
+	    variant += "." + boundingBox[0] + "," + boundingBox[1] + "," + boundingBox[2] + "," + boundingBox[3];
+	}
+	if( externalNodes ) variant += ".external";
+	return variant;
+    }
+
     public void setFile(File file){
 	this.file = file;
     }
@@ -260,17 +1225,131 @@ public class OSMParser {
 	return file;
     }
 
+    /** Make a load report that prints itself, for main() */
+    private static LoadReport newReport(){
+	LoadReport report = new LoadReport();
+	report.setPrintStream(System.out);
+	return report;
+    }
+
     /**
-     * Test driver. Takes filenames to be parsed as command-line arguments.
+     * Test driver. Takes filenames to be parsed as command-line arguments:
+     * .osm files, compressed .osm.gz and .osm.bz2 files, or .osm.pbf files.
+     * The option -parallel parses the files that follow it on all cores,
+     * -sax reads them with the SAX parser instead of OSMTokenizer,
+     * -mmap memory-maps them, -snapshot keeps a snapshot of the map
+     * data next to them, and -lazytags keeps only the tags that are
+     * used all the time, reading the others from the file when needed.
+     * -profile followed by all, routing or rendering loads only the
+     * elements of that FilterProfile, and -bbox followed by
+     * minlat,minlon,maxlat,maxlon only what is in that box. -external
+     * keeps the nodes on disk while the ways are resolved, for files
+     * too big to hold every node on the heap. -hierarchy gives the map
+     * data a contraction hierarchy for routing, kept next to the file.
+     * -report prints a LoadReport of each load: the time and memory of
+     * its phases. -tiles followed by a.osm,b.osm loads those files at
+     * once, in parallel, and merges them into one map.
+     * osmChange files (.osc and .osc.gz) are applied to the map data of
+     * the file before them.
      * Main method.
      */
     public static void main(String[] args) throws Exception {
 	OSMParser prsr = null;
+	boolean parsed = false;
+	boolean parallel = false;
+	Engine engine = Engine.BYTES;
+	boolean mapped = false;
+	boolean snapshot = false;
+	boolean hierarchy = false;
+	boolean lazyTags = false;
+	FilterProfile profile = FilterProfile.ALL;
+	double[] box = null;
+	boolean external = false;
+	boolean report = false;
 	for (int i = 0; i < args.length; i++) {
+	    if (args[i].equals("-parallel")) {
+		parallel = true;
+		continue;
+	    }
+	    if (args[i].equals("-sax")) {
+		engine = Engine.SAX;
+		continue;
+	    }
+	    if (args[i].equals("-mmap")) {
+		mapped = true;
+		continue;
+	    }
+	    if (args[i].equals("-snapshot")) {
+		snapshot = true;
+		continue;
+	    }
+	    if (args[i].equals("-hierarchy")) {
+		hierarchy = true;
+		continue;
+	    }
+	    if (args[i].equals("-lazytags")) {
+		lazyTags = true;
+		continue;
+	    }
+	    if (args[i].equals("-external")) {
+		external = true;
+		continue;
+	    }
+	    if (args[i].equals("-report")) {
+		report = true;
+		continue;
+	    }
+	    if (prsr != null && OSMChangeReader.isChangeFile(args[i])) {
+		if (!parsed) prsr.parse();
+		parsed = true;
+		new OSMChangeReader(new File(args[i])).apply(prsr.getData());
+		continue;
+	    }
+	    if (args[i].equals("-profile") && i + 1 < args.length) {
+		profile = FilterProfile.forName(args[++i]);
+		continue;
+	    }
+	    if (args[i].equals("-tiles") && i + 1 < args.length) {
+		String[] names = args[++i].split(",");
+		File[] tiles = new File[names.length];
+		for (int t = 0; t < names.length; t++) tiles[t] = new File(names[t]);
+		prsr = new OSMParser(tiles);
+		prsr.setParallel(parallel);
+		prsr.setEngine(engine);
+		prsr.setMapped(mapped);
+		prsr.setLazyTags(lazyTags ? OSMTagSource.DEFAULT_KEYS : null);
+		prsr.setFilterProfile(profile);
+		if (box != null) prsr.setBoundingBox(box[0], box[1], box[2], box[3]);
+		if (report) prsr.setReport(newReport());
+		prsr.setHierarchy(hierarchy);
+		parsed = false;
+		continue;
+	    }
+	    if (args[i].equals("-bbox") && i + 1 < args.length) {
+		String[] b = args[++i].split(",");
+		box = new double[]{ Double.parseDouble(b[0]), Double.parseDouble(b[1]),
+			Double.parseDouble(b[2]), Double.parseDouble(b[3]) };
+		continue;
+	    }
 	    prsr = new OSMParser(new File(args[i]));
-	    prsr.parse();
+	    prsr.setParallel(parallel);
+	    prsr.setEngine(engine);
+	    prsr.setMapped(mapped);
+	    prsr.setSnapshot(snapshot);
+	    prsr.setHierarchy(hierarchy);
+	    prsr.setLazyTags(lazyTags ? OSMTagSource.DEFAULT_KEYS : null);
+	    prsr.setFilterProfile(profile);
+	    if (box != null) prsr.setBoundingBox(box[0], box[1], box[2], box[3]);
+	    prsr.setExternalNodes(external, null);
+	    if (report) prsr.setReport(newReport());
+	    parsed = false;
+	}
+	// load in the background, unless changes were applied already
+	if (parsed) {
+	    MainFrame frame = new MainFrame( prsr.getData(), prsr.getFile() );
+	} else {
+	    LoadingFrame.load(prsr, prsr.getFile(), null, null);
 	}
-	MainFrame frame = new MainFrame( prsr.getData(), prsr.getFile() );
 
     }
 }
@@ -0,0 +1,136 @@
+package function;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import elements.Element;
+import elements.TagSource;
+
+/**
+ * TagSource that reads the tags of an element again from the OSM XML
+ * file it was loaded from, by its offset in the file. The file is
+ * mapped in windows that are kept between reads, and the element is
+ * parsed by an OSMTokenizer of its own.
+ *
+ * If the file has changed since it was loaded, the offsets mean nothing
+ * anymore: the tags that were not kept are then reported missing.
+ */
+public class OSMTagSource implements TagSource {
+
+    /** The keys kept by default: the ones the map drawing and the directions use */
+    public static final String[] DEFAULT_KEYS = {
+	"name", "highway", "building", "natural", "waterway", "type"
+    };
+
+    /** Size of the windows the file is mapped in */
+    private static final int WINDOW = 1 << 24;
+
+    /** Elements are not read across more than this many bytes */
+    private static final int MAX_WINDOW = 1 << 30;
+
+    /** The OSM file */
+    private File file;
+
+    /** Length and modification time of the file when it was loaded */
+    private long length;
+    private long modified;
+
+    /** The keys kept at load time */
+    private String[] keptKeys;
+    private HashSet<String> kept;
+
+    /** The open file, or null before the first read */
+    private FileChannel channel;
+
+    /** The mapped window, and its file offset */
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /** The tokenizer that reads the elements */
+    private OSMTokenizer tokenizer;
+
+    /** The element read by the tokenizer */
+    private RawElement found;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param file The OSM XML file, as it is being loaded.
+     * @param keptKeys The keys of the tags that are kept at load time.
+     */
+    public OSMTagSource(File file, String[] keptKeys){
+	this.file = file;
+	length = file.length();
+	modified = file.lastModified();
+	this.keptKeys = keptKeys.clone();
+	kept = new HashSet<String>(Arrays.asList(keptKeys));
+	tokenizer = new OSMTokenizer(new ElementSink(){
+	    @Override
+	    public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	    }
+
+	    @Override
+	    public void element(RawElement e){
+		found = e;
+	    }
+	});
+    }
+
+    @Override
+    public boolean isKept(String key){
+	return kept.contains(key);
+    }
+
+    @Override
+    public String[] getKeptKeys(){
+	return keptKeys.clone();
+    }
+
+    /** Read the tags of the element at offset; a failure is only reported. */
+    @Override
+    public synchronized void readTags(long offset, Element e){
+	try {
+	    RawElement raw = read(offset);
+	    for( int i = 0; i < raw.getTagCount(); i++ ){
+		e.addTag(raw.getTagKey(i), raw.getTagValue(i));
+	    }
+	} catch (IOException x) {
+	    System.err.println("Could not read the tags at " + offset + " of " + file + ": " + x.getMessage());
+	}
+    }
+
+    /** Read the element at an offset. */
+    private RawElement read(long offset) throws IOException {
+	if( file.length() != length || file.lastModified() != modified ){
+	    throw new IOException("the file has changed since it was loaded");
+	}
+	if( channel == null ){ channel = FileChannel.open(file.toPath(), StandardOpenOption.READ); }
+	if( window == null || offset < windowStart || offset >= windowStart + window.limit() ){
+	    map(offset, WINDOW);
+	}
+	while( true ){
+	    found = null;
+	    int start = (int) (offset - windowStart);
+	    if( tokenizer.readElement(window, start, window.limit()) ) return found;
+	    // cut off at the end of the window: map more, from the element on
+	    if( windowStart + window.limit() == length ) throw new IOException("no element there");
+	    if( window.limit() - start >= MAX_WINDOW ) throw new IOException("element too large");
+	    map(offset, (int) Math.min(MAX_WINDOW, Math.max(WINDOW, 2L * (window.limit() - start))));
+	}
+    }
+
+    /** Map the window of up to size bytes at an offset. */
+    private void map(long offset, int size) throws IOException {
+	if( offset < 0 || offset >= length ) throw new IOException("offset out of the file");
+	window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size, length - offset));
+	windowStart = offset;
+    }
+
+}
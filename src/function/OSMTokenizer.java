@@ -0,0 +1,574 @@
+package function;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A parser for OSM XML that works on the UTF-8 bytes directly, instead of
+ * going through SAX. It only knows the handful of element and attribute
+ * names that OSM uses; names are recognized by comparing bytes, ids and
+ * coordinates are parsed from the bytes into primitives, and tag strings
+ * are looked up in a pool so that repeated keys and values such as
+ * "highway" and "residential" are not allocated again for every element.
+ *
+ * Elements are given to an ElementSink just like the SAX handler does.
+ * This is not a general XML parser: DTDs are not read, and only the
+ * predefined and numeric character entities are decoded.
+ */
+public class OSMTokenizer {
+
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] RELATION = bytes("relation");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] MEMBER = bytes("member");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] BOUNDS = bytes("bounds");
+    private static final byte[] BOUND = bytes("bound");
+
+    private static final byte[] ID = bytes("id");
+    private static final byte[] LAT = bytes("lat");
+    private static final byte[] LON = bytes("lon");
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] ROLE = bytes("role");
+    private static final byte[] K = bytes("k");
+    private static final byte[] V = bytes("v");
+    private static final byte[] BOX = bytes("box");
+    private static final byte[] MINLAT = bytes("minlat");
+    private static final byte[] MINLON = bytes("minlon");
+    private static final byte[] MAXLAT = bytes("maxlat");
+    private static final byte[] MAXLON = bytes("maxlon");
+
+    /** Most digits parseDouble() computes itself; below 2^53, so exact as a double */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    /** Exact powers of ten, for parsing decimals */
+    private static final double[] POW10 = new double[MAX_EXACT_DIGITS + 1];
+    static {
+	POW10[0] = 1;
+	for( int i = 1; i < POW10.length; i++ ){ POW10[i] = POW10[i-1] * 10; }
+    }
+
+    /** Kinds of start tag the tokenizer knows, or OTHER */
+    private static final int OTHER = -1, T_NODE = 0, T_WAY = 1, T_RELATION = 2,
+	    T_ND = 3, T_MEMBER = 4, T_TAG = 5, T_BOUNDS = 6, T_BOUND = 7;
+
+    /** The sink that receives the elements */
+    private ElementSink sink;
+
+    /** The element being collected */
+    private RawElement element;
+
+    /** If an element is being collected (its end tag has not been seen) */
+    private boolean inElement;
+
+    /** Position where the element being collected started */
+    private int elementStart;
+
+    /** 
+     * File offset of position 0 of the bytes being parsed, to give the
+     * elements their source offsets; -1 if the input is not a file.
+     */
+    private long base = -1;
+
+    /** If an element has been given to the sink, for readElement() */
+    private boolean delivered;
+
+    /** Pool of tag keys */
+    private StringPool keys;
+
+    /** Pool of tag values and member roles */
+    private StringPool values;
+
+    /** Scratch space for decoding strings */
+    private byte[] scratch;
+
+    /** Bounds being collected from a bounds tag */
+    private double[] bounds;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param sink The sink that receives the elements.
+     */
+    public OSMTokenizer(ElementSink sink){
+	this.sink = sink;
+	element = new RawElement();
+	keys = new StringPool(1 << 12);
+	values = new StringPool(1 << 16);
+	scratch = new byte[256];
+	bounds = new double[4];
+    }
+
+    /**
+     * Set the file offset of the first byte given to parse(), or of
+     * position 0 of the buffers given to tokenize(), so that elements
+     * get their offsets in the file; see RawElement.getSourceOffset().
+     * @param offset The offset, or -1 if the input is not a file.
+     */
+    public void setSourceOffset(long offset){
+	base = offset;
+    }
+
+    /** Get the ASCII bytes of a string */
+    private static byte[] bytes(String s){
+	return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parse a whole stream.
+     * @param in The stream of OSM XML.
+     */
+    public void parse(InputStream in) throws IOException {
+	byte[] buf = new byte[1 << 20];
+	int filled = 0;
+	while( true ){
+	    if( filled == buf.length ){ buf = Arrays.copyOf(buf, buf.length * 2); }
+	    int read = in.read(buf, filled, buf.length - filled);
+	    boolean last = read < 0;
+	    if( read > 0 ) filled += read;
+
+	    int stop = tokenize(ByteBuffer.wrap(buf), 0, filled, last);
+	    if( last ) return;
+	    // keep the unfinished part for the next round
+	    System.arraycopy(buf, stop, buf, 0, filled - stop);
+	    filled -= stop;
+	    if( base >= 0 ) base += stop;
+	}
+    }
+
+    /**
+     * Parse the bytes [start, end) of a buffer. Elements are given to the
+     * sink as they end. When the bytes end in the middle of an element,
+     * parsing stops, and the position where that element starts is
+     * returned so the caller can give it again with more bytes after it.
+     *
+     * @param buf The buffer.
+     * @param start The position to start at.
+     * @param end The position to stop at.
+     * @param last true if no more bytes follow end.
+     * @return the position up to which the bytes have been used.
+     */
+    public int tokenize(ByteBuffer buf, int start, int end, boolean last) throws IOException {
+	int pos = start;
+	inElement = false;
+	while( true ){
+	    int lt = indexOf(buf, (byte) '<', pos, end);
+	    if( lt < 0 ){
+		if( !inElement ) return end;
+		if( last ) throw new IOException("Unexpected end of OSM input");
+		return elementStart;
+	    }
+	    int next = tag(buf, lt, end);
+	    if( next < 0 ){ // the tag is cut off at end
+		if( last ) throw new IOException("Unexpected end of OSM input");
+		return inElement ? elementStart : lt;
+	    }
+	    pos = next;
+	}
+    }
+
+    /**
+     * Parse the one element that starts at a position, giving it to the
+     * sink, and stop there. Used to read an element again by its offset.
+     * @param buf The buffer.
+     * @param start The position of the '<' of the element.
+     * @param end The end of the bytes that may be read.
+     * @return false if the element is cut off at end.
+     */
+    public boolean readElement(ByteBuffer buf, int start, int end) throws IOException {
+	int pos = start;
+	inElement = false;
+	delivered = false;
+	while( !delivered ){
+	    int lt = indexOf(buf, (byte) '<', pos, end);
+	    if( lt < 0 ) return false;
+	    int next = tag(buf, lt, end);
+	    if( next < 0 ) return false;
+	    pos = next;
+	}
+	return true;
+    }
+
+    /** Give the element that has been collected to the sink */
+    private void deliver(){
+	inElement = false;
+	delivered = true;
+	sink.element(element);
+    }
+
+    /**
+     * Parse the tag starting at the '<' at position lt.
+     * @return the position after the tag, or -1 if the tag is cut off.
+     */
+    private int tag(ByteBuffer buf, int lt, int end) throws IOException {
+	int p = lt + 1;
+	if( p >= end ) return -1;
+	byte c = buf.get(p);
+
+	if( c == '?' ){ // processing instruction
+	    int gt = indexOf(buf, (byte) '>', p, end);
+	    return gt < 0 ? -1 : gt + 1;
+	}
+	if( c == '!' ){ // comment, or declaration
+	    if( p + 2 < end && buf.get(p+1) == '-' && buf.get(p+2) == '-' ){
+		for( int i = p + 3; i + 2 < end; i++ ){
+		    if( buf.get(i) == '-' && buf.get(i+1) == '-' && buf.get(i+2) == '>' ) return i + 3;
+		}
+		return -1;
+	    }
+	    int gt = indexOf(buf, (byte) '>', p, end);
+	    return gt < 0 ? -1 : gt + 1;
+	}
+	if( c == '/' ){ // end tag
+	    int nameEnd = nameEnd(buf, p + 1, end);
+	    if( nameEnd < 0 ) return -1;
+	    int gt = indexOf(buf, (byte) '>', nameEnd, end);
+	    if( gt < 0 ) return -1;
+	    int kind = kind(buf, p + 1, nameEnd);
+	    if( inElement && kind == element.getType() ){ deliver(); }
+	    return gt + 1;
+	}
+
+	// start tag
+	int nameEnd = nameEnd(buf, p, end);
+	if( nameEnd < 0 ) return -1;
+	int kind = kind(buf, p, nameEnd);
+	if( kind == T_NODE || kind == T_WAY || kind == T_RELATION ){
+	    inElement = false;
+	    elementStart = lt;
+	}
+	if( kind == T_BOUNDS || kind == T_BOUND ){ Arrays.fill(bounds, Double.NaN); }
+
+	// attributes
+	int i = nameEnd;
+	long id = 0, ref = 0;
+	double lat = 0, lon = 0;
+	int memberType = -1;
+	String role = null, key = null, value = null;
+	while( true ){
+	    while( i < end && isSpace(buf.get(i)) ) i++;
+	    if( i >= end ) return -1;
+	    c = buf.get(i);
+	    if( c == '>' || c == '/' ){
+		boolean empty = c == '/';
+		int gt = indexOf(buf, (byte) '>', i, end);
+		if( gt < 0 ) return -1;
+		endStartTag(kind, empty, id, lat, lon, ref, memberType, role, key, value);
+		return gt + 1;
+	    }
+	    int an = i;
+	    int eq = indexOf(buf, (byte) '=', an, end);
+	    if( eq < 0 ) return -1;
+	    int ae = eq;
+	    while( ae > an && isSpace(buf.get(ae - 1)) ) ae--;
+	    int q = eq + 1;
+	    while( q < end && isSpace(buf.get(q)) ) q++;
+	    if( q >= end ) return -1;
+	    byte quote = buf.get(q);
+	    int vs = q + 1;
+	    int ve = indexOf(buf, quote, vs, end);
+	    if( ve < 0 ) return -1;
+	    i = ve + 1;
+
+	    switch( kind ){
+		case T_NODE:
+		    if( is(buf, an, ae, ID) ) id = parseLong(buf, vs, ve);
+		    else if( is(buf, an, ae, LAT) ) lat = parseDouble(buf, vs, ve);
+		    else if( is(buf, an, ae, LON) ) lon = parseDouble(buf, vs, ve);
+		    break;
+		case T_WAY:
+		case T_RELATION:
+		    if( is(buf, an, ae, ID) ) id = parseLong(buf, vs, ve);
+		    break;
+		case T_ND:
+		    if( is(buf, an, ae, REF) ) ref = parseLong(buf, vs, ve);
+		    break;
+		case T_MEMBER:
+		    if( is(buf, an, ae, REF) ) ref = parseLong(buf, vs, ve);
+		    else if( is(buf, an, ae, TYPE) ) memberType = memberType(buf, vs, ve);
+		    else if( is(buf, an, ae, ROLE) ) role = string(values, buf, vs, ve);
+		    break;
+		case T_TAG:
+		    if( is(buf, an, ae, K) ) key = string(keys, buf, vs, ve);
+		    else if( is(buf, an, ae, V) ) value = string(values, buf, vs, ve);
+		    break;
+		case T_BOUNDS:
+		    if( is(buf, an, ae, MINLAT) ) bounds[0] = parseDouble(buf, vs, ve);
+		    else if( is(buf, an, ae, MINLON) ) bounds[1] = parseDouble(buf, vs, ve);
+		    else if( is(buf, an, ae, MAXLAT) ) bounds[2] = parseDouble(buf, vs, ve);
+		    else if( is(buf, an, ae, MAXLON) ) bounds[3] = parseDouble(buf, vs, ve);
+		    break;
+		case T_BOUND:
+		    if( is(buf, an, ae, BOX) ) parseBox(buf, vs, ve);
+		    break;
+		default:
+		    break;
+	    }
+	}
+    }
+
+    /** Act on the end of a start tag, once all its attributes are read */
+    private void endStartTag(int kind, boolean empty, long id, double lat, double lon,
+	    long ref, int memberType, String role, String key, String value){
+	switch( kind ){
+	    case T_NODE:
+	    case T_WAY:
+	    case T_RELATION:
+		element.reset(kind, id);
+		element.setLocation(lat, lon);
+		if( base >= 0 ){ element.setSourceOffset(base + elementStart); }
+		inElement = true;
+		if( empty ){ deliver(); } // no children, e.g. <node .../>
+		break;
+	    case T_ND:
+		if( inElement ) element.addRef(ref);
+		break;
+	    case T_MEMBER:
+		if( inElement ) element.addMember(memberType, ref, role);
+		break;
+	    case T_TAG:
+		if( inElement && key != null ) element.addTag(key, value);
+		break;
+	    case T_BOUNDS:
+	    case T_BOUND:
+		if( !Double.isNaN(bounds[0]) && !Double.isNaN(bounds[3]) ){
+		    sink.bounds(bounds[0], bounds[1], bounds[2], bounds[3]);
+		}
+		break;
+	    default:
+		break;
+	}
+    }
+
+    /** Which known element the name [s, e) is; OTHER if none */
+    private static int kind(ByteBuffer buf, int s, int e){
+	switch( e - s ){
+	    case 2: return is(buf, s, e, ND) ? T_ND : OTHER;
+	    case 3:
+		if( is(buf, s, e, TAG) ) return T_TAG;
+		return is(buf, s, e, WAY) ? T_WAY : OTHER;
+	    case 4: return is(buf, s, e, NODE) ? T_NODE : OTHER;
+	    case 5: return is(buf, s, e, BOUND) ? T_BOUND : OTHER;
+	    case 6:
+		if( is(buf, s, e, MEMBER) ) return T_MEMBER;
+		return is(buf, s, e, BOUNDS) ? T_BOUNDS : OTHER;
+	    case 8: return is(buf, s, e, RELATION) ? T_RELATION : OTHER;
+	    default: return OTHER;
+	}
+    }
+
+    /** Member type of the value [s, e): "node", "way" or "relation" */
+    private static int memberType(ByteBuffer buf, int s, int e){
+	if( is(buf, s, e, WAY) ) return RawElement.WAY;
+	if( is(buf, s, e, NODE) ) return RawElement.NODE;
+	if( is(buf, s, e, RELATION) ) return RawElement.RELATION;
+	return -1;
+    }
+
+    /** Check if the bytes [s, e) are the name */
+    private static boolean is(ByteBuffer buf, int s, int e, byte[] name){
+	if( e - s != name.length ) return false;
+	for( int i = 0; i < name.length; i++ ){
+	    if( buf.get(s + i) != name[i] ) return false;
+	}
+	return true;
+    }
+
+    /** Check for XML white space */
+    private static boolean isSpace(byte c){
+	return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    /** Find the end of the name starting at s, or -1 if cut off at end */
+    private static int nameEnd(ByteBuffer buf, int s, int end){
+	for( int i = s; i < end; i++ ){
+	    byte c = buf.get(i);
+	    if( isSpace(c) || c == '>' || c == '/' ) return i;
+	}
+	return -1;
+    }
+
+    /** Find the byte b in [s, end), or -1 */
+    private static int indexOf(ByteBuffer buf, byte b, int s, int end){
+	for( int i = s; i < end; i++ ){
+	    if( buf.get(i) == b ) return i;
+	}
+	return -1;
+    }
+
+    /** Parse a decimal integer from the bytes [s, e) */
+    static long parseLong(ByteBuffer buf, int s, int e){
+	boolean negative = false;
+	int i = s;
+	if( i < e && buf.get(i) == '-' ){ negative = true; i++; }
+	long v = 0;
+	for( ; i < e; i++ ){
+	    int d = buf.get(i) - '0';
+	    if( d < 0 || d > 9 ) throw new NumberFormatException(ascii(buf, s, e));
+	    v = v * 10 + d;
+	}
+	return negative ? -v : v;
+    }
+
+    /**
+     * Parse a decimal number from the bytes [s, e). Plain decimals of up
+     * to 15 digits, which covers the 7 decimals OSM writes coordinates
+     * with, are computed from the digits, correctly rounded; anything
+     * else goes through Double.parseDouble.
+     */
+    static double parseDouble(ByteBuffer buf, int s, int e){
+	boolean negative = false;
+	int i = s;
+	if( i < e && buf.get(i) == '-' ){ negative = true; i++; }
+	long mantissa = 0;
+	int digits = 0;
+	int fraction = -1; // digits after the point, -1 before the point
+	for( ; i < e; i++ ){
+	    byte c = buf.get(i);
+	    if( c == '.' && fraction < 0 ){
+		fraction = 0;
+		continue;
+	    }
+	    int d = c - '0';
+	    if( d < 0 || d > 9 || digits == MAX_EXACT_DIGITS ){
+		return Double.parseDouble(ascii(buf, s, e));
+	    }
+	    mantissa = mantissa * 10 + d;
+	    digits++;
+	    if( fraction >= 0 ) fraction++;
+	}
+	if( digits == 0 ) throw new NumberFormatException(ascii(buf, s, e));
+	// the mantissa is below 10^15 < 2^53 and the power of ten at most
+	// 10^15, so both are exact doubles, and the quotient is correctly rounded
+	double v = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+	return negative ? -v : v;
+    }
+
+    /** Parse the box of a bound tag: min lat, min lon, max lat, max lon */
+    private void parseBox(ByteBuffer buf, int s, int e){
+	int k = 0;
+	int from = s;
+	for( int i = s; i <= e && k < 4; i++ ){
+	    if( i == e || buf.get(i) == ',' ){
+		bounds[k++] = parseDouble(buf, from, i);
+		from = i + 1;
+	    }
+	}
+    }
+
+    /** The bytes [s, e) as an ASCII string, for error messages */
+    private static String ascii(ByteBuffer buf, int s, int e){
+	StringBuilder sb = new StringBuilder();
+	for( int i = s; i < e; i++ ){ sb.append((char) buf.get(i)); }
+	return sb.toString();
+    }
+
+    /**
+     * Get the attribute value [s, e) as a string. Values without
+     * entities are looked up in the pool, and only allocated when
+     * they are not in it.
+     */
+    private String string(StringPool pool, ByteBuffer buf, int s, int e){
+	if( indexOf(buf, (byte) '&', s, e) >= 0 ) return decodeEntities(buf, s, e);
+	return pool.get(buf, s, e);
+    }
+
+    /** Decode a value containing character entities. */
+    private String decodeEntities(ByteBuffer buf, int s, int e){
+	if( scratch.length < e - s ){ scratch = new byte[Math.max(e - s, scratch.length * 2)]; }
+	int n = 0;
+	for( int i = s; i < e; i++ ){
+	    byte c = buf.get(i);
+	    if( c != '&' ){
+		scratch[n++] = c;
+		continue;
+	    }
+	    int semi = indexOf(buf, (byte) ';', i, e);
+	    if( semi < 0 ){
+		scratch[n++] = c;
+		continue;
+	    }
+	    String entity = ascii(buf, i + 1, semi);
+	    int code;
+	    if( entity.equals("amp") ) code = '&';
+	    else if( entity.equals("lt") ) code = '<';
+	    else if( entity.equals("gt") ) code = '>';
+	    else if( entity.equals("quot") ) code = '"';
+	    else if( entity.equals("apos") ) code = '\'';
+	    else if( entity.startsWith("#x") ) code = Integer.parseInt(entity.substring(2), 16);
+	    else if( entity.startsWith("#") ) code = Integer.parseInt(entity.substring(1));
+	    else {
+		scratch[n++] = c;
+		continue;
+	    }
+	    byte[] utf8 = new String(Character.toChars(code)).getBytes(StandardCharsets.UTF_8);
+	    for( byte b : utf8 ){ scratch[n++] = b; }
+	    i = semi;
+	}
+	return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A bounded cache from UTF-8 byte sequences to Strings. Looking up
+     * bytes that were seen before returns the same String object without
+     * allocating. Once full, new strings are still returned but no
+     * longer remembered.
+     */
+    static class StringPool {
+
+	/** The cached bytes, by slot */
+	private byte[][] bytes;
+
+	/** The cached strings, by slot */
+	private String[] strings;
+
+	/** Number of cached strings */
+	private int size;
+
+	/** Hash table mask */
+	private int mask;
+
+	StringPool(int capacity){
+	    bytes = new byte[capacity][];
+	    strings = new String[capacity];
+	    mask = capacity - 1;
+	}
+
+	/** Get the string of the UTF-8 bytes [s, e) */
+	String get(ByteBuffer buf, int s, int e){
+	    int h = 0;
+	    for( int i = s; i < e; i++ ){ h = 31 * h + buf.get(i); }
+	    h ^= h >>> 16;
+	    int slot = h & mask;
+	    while( strings[slot] != null ){
+		if( same(bytes[slot], buf, s, e) ) return strings[slot];
+		slot = (slot + 1) & mask;
+	    }
+	    byte[] b = new byte[e - s];
+	    for( int i = s; i < e; i++ ){ b[i - s] = buf.get(i); }
+	    String str = new String(b, StandardCharsets.UTF_8);
+	    if( size * 2 < bytes.length ){ // keep the table at most half full
+		bytes[slot] = b;
+		strings[slot] = str;
+		size++;
+	    }
+	    return str;
+	}
+
+	private static boolean same(byte[] b, ByteBuffer buf, int s, int e){
+	    if( b.length != e - s ) return false;
+	    for( int i = 0; i < b.length; i++ ){
+		if( b[i] != buf.get(s + i) ) return false;
+	    }
+	    return true;
+	}
+    }
+
+}
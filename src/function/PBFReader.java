@@ -0,0 +1,492 @@
+package function;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of OSM PBF files (.osm.pbf), the protocol buffer format of OSM.
+ * The protocol buffers are decoded by hand with ProtoReader.
+ *
+ * A PBF file is a sequence of blobs, each holding one zlib compressed
+ * block of up to 8000 elements with its own string table. The blobs are
+ * read from the file in order, and each is decompressed and decoded into
+ * an ElementBuffer by a BlobTask on a fork-join pool; the buffers are
+ * then replayed into the sink in file order, so the sink sees the
+ * elements in the same order as with an XML file.
+ */
+public class PBFReader {
+
+    /** Largest BlobHeader allowed by the format */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    /** Largest Blob allowed by the format */
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    /** Blobs being decoded at a time, per thread */
+    private static final int BLOBS_PER_THREAD = 4;
+
+    /** The PBF file */
+    private File file;
+
+    /** Number of threads to decode with */
+    private int threads;
+
+    /** The progress to count the bytes read in; null for none */
+    private LoadProgress progress;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param file The PBF file.
+     * @param threads The number of threads to decode blobs with.
+     */
+    public PBFReader(File file, int threads){
+	this.file = file;
+	this.threads = Math.max(1, threads);
+    }
+
+    /** Set the progress to count the bytes read in; null for none. */
+    public void setProgress(LoadProgress progress){
+	this.progress = progress;
+    }
+
+    /**
+     * Read the file, giving the bounds and all the elements to a sink.
+     * @param sink The sink; it is called on this thread.
+     */
+    public void read(ElementSink sink) throws IOException {
+	InputStream stream = new FileInputStream(file);
+	if( progress != null ) stream = progress.count(stream);
+	DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	ArrayDeque<BlobTask> pending = new ArrayDeque<BlobTask>();
+	try {
+	    while( true ){
+		int headerSize;
+		try {
+		    headerSize = in.readInt();
+		} catch (EOFException x) {
+		    break;
+		}
+		if( headerSize < 0 || headerSize > MAX_HEADER_SIZE ){
+		    throw new IOException("PBF data corrupt: bad blob header size");
+		}
+		byte[] header = new byte[headerSize];
+		in.readFully(header);
+
+		// BlobHeader: 1 type, 2 indexdata, 3 datasize
+		ProtoReader h = new ProtoReader(header, 0, headerSize);
+		String type = null;
+		long dataSize = -1;
+		while( h.hasMore() ){
+		    int tag = h.readTag();
+		    switch( ProtoReader.field(tag) ){
+			case 1: type = h.readString(); break;
+			case 3: dataSize = h.readVarint(); break;
+			default: h.skip(ProtoReader.wireType(tag)); break;
+		    }
+		}
+		if( type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE ){
+		    throw new IOException("PBF data corrupt: bad blob header");
+		}
+		byte[] blob = new byte[(int) dataSize];
+		in.readFully(blob);
+
+		if( type.equals("OSMHeader") ){
+		    readHeaderBlock(unpack(blob), sink);
+		} else if( type.equals("OSMData") ){
+		    BlobTask task = new BlobTask(blob);
+		    pool.execute(task);
+		    pending.add(task);
+		    if( pending.size() >= threads * BLOBS_PER_THREAD ){
+			replay(pending.poll(), sink);
+		    }
+		}
+		// other types are to be skipped, by the specification
+	    }
+	    while( !pending.isEmpty() ){ replay(pending.poll(), sink); }
+	} finally {
+	    pool.shutdownNow();
+	    in.close();
+	}
+    }
+
+    /** Wait for a task, and give its elements to the sink. */
+    private static void replay(BlobTask task, ElementSink sink) throws IOException {
+	ElementBuffer buffer = task.join();
+	task.rethrow();
+	buffer.replay(sink);
+    }
+
+    /**
+     * Get the block in a Blob, decompressing it.
+     * Blob: 1 raw, 2 raw_size, 3 zlib_data, 4 lzma_data, ...
+     */
+    static byte[] unpack(byte[] blob) throws IOException {
+	ProtoReader b = new ProtoReader(blob, 0, blob.length);
+	byte[] raw = null;
+	int rawSize = -1;
+	int zlibStart = -1, zlibLength = 0;
+	while( b.hasMore() ){
+	    int tag = b.readTag();
+	    switch( ProtoReader.field(tag) ){
+		case 1:
+		    raw = b.readBytes();
+		    break;
+		case 2:
+		    rawSize = (int) b.readVarint();
+		    break;
+		case 3:
+		    zlibLength = b.readLength();
+		    zlibStart = b.position();
+		    b.skipBytes(zlibLength);
+		    break;
+		case 4: case 5: case 6: case 7:
+		    throw new IOException("PBF blob compression not supported: field " + ProtoReader.field(tag));
+		default:
+		    b.skip(ProtoReader.wireType(tag));
+		    break;
+	    }
+	}
+	if( raw != null ) return raw;
+	if( zlibStart < 0 || rawSize < 0 || rawSize > MAX_BLOB_SIZE ){
+	    throw new IOException("PBF data corrupt: empty blob");
+	}
+	byte[] data = new byte[rawSize];
+	Inflater inflater = new Inflater();
+	try {
+	    inflater.setInput(blob, zlibStart, zlibLength);
+	    int n = 0;
+	    while( n < rawSize ){
+		int k = inflater.inflate(data, n, rawSize - n);
+		if( k == 0 && (inflater.finished() || inflater.needsInput()) ) break;
+		n += k;
+	    }
+	    if( n != rawSize ) throw new IOException("PBF data corrupt: blob shorter than its raw_size");
+	} catch (DataFormatException x) {
+	    throw new IOException("PBF data corrupt: " + x.getMessage());
+	} finally {
+	    inflater.end();
+	}
+	return data;
+    }
+
+    /**
+     * Read the HeaderBlock: check that nothing is required that this
+     * reader does not know, and give the bounding box to the sink.
+     * HeaderBlock: 1 bbox, 4 required_features, ...
+     * HeaderBBox: 1 left, 2 right, 3 top, 4 bottom, in nanodegrees.
+     */
+    private static void readHeaderBlock(byte[] data, ElementSink sink) throws IOException {
+	ProtoReader r = new ProtoReader(data, 0, data.length);
+	while( r.hasMore() ){
+	    int tag = r.readTag();
+	    switch( ProtoReader.field(tag) ){
+		case 1:
+		    long left = 0, right = 0, top = 0, bottom = 0;
+		    int old = r.start();
+		    while( r.hasMore() ){
+			int t = r.readTag();
+			switch( ProtoReader.field(t) ){
+			    case 1: left = r.readSint(); break;
+			    case 2: right = r.readSint(); break;
+			    case 3: top = r.readSint(); break;
+			    case 4: bottom = r.readSint(); break;
+			    default: r.skip(ProtoReader.wireType(t)); break;
+			}
+		    }
+		    r.end(old);
+		    sink.bounds(bottom / 1e9, left / 1e9, top / 1e9, right / 1e9);
+		    break;
+		case 4:
+		    String feature = r.readString();
+		    if( !feature.equals("OsmSchema-V0.6") && !feature.equals("DenseNodes") ){
+			throw new IOException("PBF feature not supported: " + feature);
+		    }
+		    break;
+		default:
+		    r.skip(ProtoReader.wireType(tag));
+		    break;
+	    }
+	}
+    }
+
+    /**
+     * Task that decompresses one blob and decodes its PrimitiveBlock
+     * into an ElementBuffer.
+     */
+    static class BlobTask extends RecursiveTask<ElementBuffer> {
+
+	/** The compressed blob */
+	private byte[] blob;
+
+	/** The string table of the block */
+	private String[] strings;
+
+	/** Granularity of coordinates, in nanodegrees */
+	private long granularity = 100;
+
+	/** Offsets of coordinates, in nanodegrees */
+	private long latOffset, lonOffset;
+
+	/** Element being decoded */
+	private RawElement element = new RawElement();
+
+	/** Readers of the packed fields of an element */
+	private ProtoReader keys = new ProtoReader(), values = new ProtoReader(),
+		refs = new ProtoReader(), roles = new ProtoReader(), types = new ProtoReader(),
+		ids = new ProtoReader(), lats = new ProtoReader(), lons = new ProtoReader();
+
+	/** The exception the decoding failed with, if any. */
+	private IOException error;
+
+	BlobTask(byte[] blob){
+	    this.blob = blob;
+	}
+
+	@Override
+	protected ElementBuffer compute(){
+	    ElementBuffer buffer = new ElementBuffer();
+	    try {
+		byte[] data = unpack(blob);
+		blob = null;
+		decode(data, buffer);
+	    } catch (IOException x) {
+		error = x;
+	    } catch (RuntimeException x) {
+		error = new IOException("PBF data corrupt", x);
+	    }
+	    return buffer;
+	}
+
+	/** Throw the exception the blob failed with, if any. */
+	void rethrow() throws IOException {
+	    if( error != null ) throw error;
+	}
+
+	/**
+	 * Decode a PrimitiveBlock: 1 stringtable, 2 primitivegroup,
+	 * 17 granularity, 19 lat_offset, 20 lon_offset. The groups are
+	 * decoded last, as the fields after them are needed for it.
+	 */
+	private void decode(byte[] data, ElementSink sink) throws IOException {
+	    ProtoReader r = new ProtoReader(data, 0, data.length);
+	    int[] groups = new int[8];
+	    int groupCount = 0;
+	    while( r.hasMore() ){
+		int tag = r.readTag();
+		switch( ProtoReader.field(tag) ){
+		    case 1:
+			readStringTable(r);
+			break;
+		    case 2:
+			if( groupCount == groups.length ){ groups = Arrays.copyOf(groups, groupCount * 2); }
+			groups[groupCount++] = r.position();
+			r.skip(ProtoReader.wireType(tag));
+			break;
+		    case 17: granularity = r.readVarint(); break;
+		    case 19: latOffset = r.readVarint(); break;
+		    case 20: lonOffset = r.readVarint(); break;
+		    default: r.skip(ProtoReader.wireType(tag)); break;
+		}
+	    }
+	    if( strings == null ) strings = new String[0];
+
+	    for( int g = 0; g < groupCount; g++ ){
+		ProtoReader group = new ProtoReader(data, groups[g], data.length - groups[g]);
+		int old = group.start();
+		// PrimitiveGroup: 1 nodes, 2 dense, 3 ways, 4 relations
+		while( group.hasMore() ){
+		    int tag = group.readTag();
+		    switch( ProtoReader.field(tag) ){
+			case 1: readNode(group, sink); break;
+			case 2: readDenseNodes(group, sink); break;
+			case 3: readWay(group, sink); break;
+			case 4: readRelation(group, sink); break;
+			default: group.skip(ProtoReader.wireType(tag)); break;
+		    }
+		}
+		group.end(old);
+	    }
+	}
+
+	/** StringTable: 1 s (repeated bytes) */
+	private void readStringTable(ProtoReader r) throws IOException {
+	    String[] table = new String[256];
+	    int n = 0;
+	    int old = r.start();
+	    while( r.hasMore() ){
+		int tag = r.readTag();
+		if( ProtoReader.field(tag) != 1 ){
+		    r.skip(ProtoReader.wireType(tag));
+		    continue;
+		}
+		if( n == table.length ){ table = Arrays.copyOf(table, n * 2); }
+		table[n++] = r.readString();
+	    }
+	    r.end(old);
+	    strings = Arrays.copyOf(table, n);
+	}
+
+	/** Get a string of the string table by index */
+	private String string(long index) throws IOException {
+	    if( index < 0 || index >= strings.length ) throw new IOException("PBF data corrupt: bad string index");
+	    return strings[(int) index];
+	}
+
+	/** Convert a coordinate of the block to degrees */
+	private double degrees(long offset, long value){
+	    // both are exact doubles, so the quotient is correctly rounded
+	    return (offset + granularity * value) / 1e9;
+	}
+
+	/** Add the tags given as packed key and value string indexes */
+	private void addTags() throws IOException {
+	    while( keys.hasMore() && values.hasMore() ){
+		element.addTag(string(keys.readVarint()), string(values.readVarint()));
+	    }
+	}
+
+	/** Node: 1 id, 2 keys, 3 vals, 4 info, 8 lat, 9 lon */
+	private void readNode(ProtoReader r, ElementSink sink) throws IOException {
+	    long id = 0, lat = 0, lon = 0;
+	    keys.clear();
+	    values.clear();
+	    int old = r.start();
+	    while( r.hasMore() ){
+		int tag = r.readTag();
+		switch( ProtoReader.field(tag) ){
+		    case 1: id = r.readSint(); break;
+		    case 2: r.readPacked(tag, keys); break;
+		    case 3: r.readPacked(tag, values); break;
+		    case 8: lat = r.readSint(); break;
+		    case 9: lon = r.readSint(); break;
+		    default: r.skip(ProtoReader.wireType(tag)); break;
+		}
+	    }
+	    r.end(old);
+	    element.reset(RawElement.NODE, id);
+	    element.setLocation(degrees(latOffset, lat), degrees(lonOffset, lon));
+	    addTags();
+	    sink.element(element);
+	}
+
+	/**
+	 * DenseNodes: 1 id, 5 denseinfo, 8 lat, 9 lon, 10 keys_vals.
+	 * Ids and coordinates are delta coded; keys_vals holds key and
+	 * value indexes of each node in turn, each node's ended by a 0.
+	 */
+	private void readDenseNodes(ProtoReader r, ElementSink sink) throws IOException {
+	    ids.clear();
+	    lats.clear();
+	    lons.clear();
+	    keys.clear();
+	    int old = r.start();
+	    while( r.hasMore() ){
+		int tag = r.readTag();
+		switch( ProtoReader.field(tag) ){
+		    case 1: r.readPacked(tag, ids); break;
+		    case 8: r.readPacked(tag, lats); break;
+		    case 9: r.readPacked(tag, lons); break;
+		    case 10: r.readPacked(tag, keys); break;
+		    default: r.skip(ProtoReader.wireType(tag)); break;
+		}
+	    }
+	    r.end(old);
+	    long id = 0, lat = 0, lon = 0;
+	    while( ids.hasMore() ){
+		id += ids.readSint();
+		lat += lats.readSint();
+		lon += lons.readSint();
+		element.reset(RawElement.NODE, id);
+		element.setLocation(degrees(latOffset, lat), degrees(lonOffset, lon));
+		while( keys.hasMore() ){
+		    long key = keys.readVarint();
+		    if( key == 0 ) break;
+		    element.addTag(string(key), string(keys.readVarint()));
+		}
+		sink.element(element);
+	    }
+	}
+
+	/** Way: 1 id, 2 keys, 3 vals, 4 info, 8 refs (delta coded) */
+	private void readWay(ProtoReader r, ElementSink sink) throws IOException {
+	    long id = 0;
+	    keys.clear();
+	    values.clear();
+	    refs.clear();
+	    int old = r.start();
+	    while( r.hasMore() ){
+		int tag = r.readTag();
+		switch( ProtoReader.field(tag) ){
+		    case 1: id = r.readVarint(); break;
+		    case 2: r.readPacked(tag, keys); break;
+		    case 3: r.readPacked(tag, values); break;
+		    case 8: r.readPacked(tag, refs); break;
+		    default: r.skip(ProtoReader.wireType(tag)); break;
+		}
+	    }
+	    r.end(old);
+	    element.reset(RawElement.WAY, id);
+	    long ref = 0;
+	    while( refs.hasMore() ){
+		ref += refs.readSint();
+		element.addRef(ref);
+	    }
+	    addTags();
+	    sink.element(element);
+	}
+
+	/**
+	 * Relation: 1 id, 2 keys, 3 vals, 4 info, 8 roles_sid,
+	 * 9 memids (delta coded), 10 types.
+	 */
+	private void readRelation(ProtoReader r, ElementSink sink) throws IOException {
+	    long id = 0;
+	    keys.clear();
+	    values.clear();
+	    roles.clear();
+	    refs.clear();
+	    types.clear();
+	    int old = r.start();
+	    while( r.hasMore() ){
+		int tag = r.readTag();
+		switch( ProtoReader.field(tag) ){
+		    case 1: id = r.readVarint(); break;
+		    case 2: r.readPacked(tag, keys); break;
+		    case 3: r.readPacked(tag, values); break;
+		    case 8: r.readPacked(tag, roles); break;
+		    case 9: r.readPacked(tag, refs); break;
+		    case 10: r.readPacked(tag, types); break;
+		    default: r.skip(ProtoReader.wireType(tag)); break;
+		}
+	    }
+	    r.end(old);
+	    element.reset(RawElement.RELATION, id);
+	    long ref = 0;
+	    while( refs.hasMore() ){
+		ref += refs.readSint();
+		String role = roles.hasMore() ? string(roles.readVarint()) : null;
+		// the MemberType enum has the values of RawElement's types
+		int type = types.hasMore() ? (int) types.readVarint() : -1;
+		element.addMember(type, ref, role);
+	    }
+	    addTags();
+	    sink.element(element);
+	}
+    }
+
+}
@@ -0,0 +1,249 @@
+package function;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import javax.xml.parsers.ParserConfigurationException;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses a stream in three stages running on their own threads: reading
+ * (which for compressed input is the decompression), tokenizing, and
+ * giving the elements to the sink. The stages hand their work over in
+ * fixed sets of blocks and ElementBuffers that circulate between a
+ * "full" and a "free" ArrayBlockingQueue, so memory stays bounded and a
+ * slow stage holds up the others instead of piling up work.
+ *
+ * The sink is called on the thread that calls run().
+ */
+public class ParsePipeline {
+
+    /** Size of the blocks of input bytes */
+    private static final int BLOCK_SIZE = 1 << 18;
+
+    /** Number of blocks of input bytes */
+    private static final int BLOCKS = 8;
+
+    /** Elements per batch given to the sink stage */
+    private static final int BATCH_SIZE = 1 << 12;
+
+    /** Number of element batches */
+    private static final int BATCHES = 4;
+
+    /** A block of input bytes. */
+    private static class Block {
+	byte[] data;
+	/** Number of bytes in data; -1 marks the end of the input */
+	int length;
+	Block(int size){ data = new byte[size]; }
+    }
+
+    /** The input, decompressed */
+    private InputStream input;
+
+    /** How to tokenize the input */
+    private OSMParser.Engine engine;
+
+    private ArrayBlockingQueue<Block> freeBlocks, fullBlocks;
+
+    private ArrayBlockingQueue<ElementBuffer> freeBatches, fullBatches;
+
+    /** Batch that marks the end of the elements */
+    private final ElementBuffer endOfBatches = new ElementBuffer();
+
+    /** The threads of the reading and tokenizing stages */
+    private Thread reader, tokenizer;
+
+    /** The first exception a stage failed with */
+    private volatile Exception error;
+
+
+    // --- end of fields --- //
+
+    /**
+     * The constructor.
+     * @param input The (decompressing) stream to parse.
+     * @param engine How to tokenize the stream.
+     */
+    public ParsePipeline(InputStream input, OSMParser.Engine engine){
+	this.input = input;
+	this.engine = engine;
+	freeBlocks = new ArrayBlockingQueue<Block>(BLOCKS);
+	fullBlocks = new ArrayBlockingQueue<Block>(BLOCKS + 1);
+	for( int i = 0; i < BLOCKS; i++ ){ freeBlocks.add(new Block(BLOCK_SIZE)); }
+	freeBatches = new ArrayBlockingQueue<ElementBuffer>(BATCHES);
+	fullBatches = new ArrayBlockingQueue<ElementBuffer>(BATCHES + 1);
+	for( int i = 0; i < BATCHES; i++ ){ freeBatches.add(new ElementBuffer()); }
+    }
+
+    /**
+     * Run the pipeline, giving all the elements to a sink, in order.
+     * @param sink The sink; it is called on this thread.
+     */
+    public void run(ElementSink sink)
+	    throws IOException, ParserConfigurationException, SAXException {
+	reader = new Thread(new Runnable(){
+	    public void run(){ read(); }
+	}, "osm-read");
+	tokenizer = new Thread(new Runnable(){
+	    public void run(){ tokenize(); }
+	}, "osm-tokenize");
+	reader.setDaemon(true);
+	tokenizer.setDaemon(true);
+	reader.start();
+	tokenizer.start();
+
+	try {
+	    while( true ){
+		ElementBuffer batch = fullBatches.take();
+		if( batch == endOfBatches ) break;
+		batch.replay(sink);
+		batch.clear();
+		freeBatches.put(batch);
+	    }
+	    if( error == null ){
+		reader.join();
+		tokenizer.join();
+	    }
+	} catch (InterruptedException x) {
+	    fail(x);
+	    Thread.currentThread().interrupt();
+	} catch (RuntimeException x) {
+	    fail(x);
+	}
+	rethrow();
+    }
+
+    /**
+     * Stop all the stages, because one failed. The sink stage is woken
+     * by the end mark; fullBatches has room for it beyond all the batches.
+     */
+    private void fail(Exception x){
+	synchronized( this ){
+	    if( error != null ) return;
+	    error = x;
+	}
+	reader.interrupt();
+	tokenizer.interrupt();
+	fullBatches.offer(endOfBatches);
+    }
+
+    /** Throw the exception a stage failed with, if any. */
+    private void rethrow() throws IOException, ParserConfigurationException, SAXException {
+	if( error instanceof IOException ) throw (IOException) error;
+	if( error instanceof SAXException ) throw (SAXException) error;
+	if( error instanceof ParserConfigurationException ) throw (ParserConfigurationException) error;
+	if( error instanceof RuntimeException ) throw (RuntimeException) error;
+	if( error != null ) throw new IOException(error);
+    }
+
+    /** The reading stage: fill blocks from the input. */
+    private void read(){
+	try {
+	    while( true ){
+		Block block = freeBlocks.take();
+		int n = 0;
+		while( n < BLOCK_SIZE ){
+		    int k = input.read(block.data, n, BLOCK_SIZE - n);
+		    if( k < 0 ) break;
+		    n += k;
+		}
+		block.length = n == 0 ? -1 : n;
+		fullBlocks.put(block);
+		if( n < BLOCK_SIZE ){
+		    if( n > 0 ){ // and the end mark
+			Block end = new Block(0);
+			end.length = -1;
+			fullBlocks.put(end);
+		    }
+		    return;
+		}
+	    }
+	} catch (Exception x) {
+	    fail(x);
+	}
+    }
+
+    /** The tokenizing stage: parse the blocks into batches of elements. */
+    private void tokenize(){
+	try {
+	    Batcher batcher = new Batcher();
+	    OSMParser.parse(new BlockInputStream(), batcher, engine);
+	    batcher.flush();
+	    fullBatches.put(endOfBatches);
+	} catch (Exception x) {
+	    fail(x); // does nothing if this stage was stopped by another's failure
+	}
+    }
+
+    /** Stream of the bytes of the full blocks, for the tokenizing stage. */
+    private class BlockInputStream extends InputStream {
+
+	private Block block;
+	private int pos;
+
+	/** Get the next block when this one is used up; false at the end. */
+	private boolean fill() throws IOException {
+	    if( block != null && block.length < 0 ) return false;
+	    if( block != null && pos < block.length ) return true;
+	    try {
+		if( block != null ){ freeBlocks.put(block); }
+		block = fullBlocks.take();
+	    } catch (InterruptedException x) {
+		throw new InterruptedIOException("Parsing stopped");
+	    }
+	    pos = 0;
+	    return block.length >= 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    if( !fill() ) return -1;
+	    return block.data[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if( len == 0 ) return 0;
+	    if( !fill() ) return -1;
+	    int k = Math.min(len, block.length - pos);
+	    System.arraycopy(block.data, pos, b, off, k);
+	    pos += k;
+	    return k;
+	}
+    }
+
+    /** Sink of the tokenizing stage: collects elements into batches. */
+    private class Batcher implements ElementSink {
+
+	private ElementBuffer batch;
+
+	Batcher() throws InterruptedException {
+	    batch = freeBatches.take();
+	}
+
+	@Override
+	public void bounds(double minlat, double minlon, double maxlat, double maxlon){
+	    batch.bounds(minlat, minlon, maxlat, maxlon);
+	}
+
+	@Override
+	public void element(RawElement e){
+	    batch.element(e);
+	    if( batch.size() < BATCH_SIZE ) return;
+	    try {
+		fullBatches.put(batch);
+		batch = freeBatches.take();
+	    } catch (InterruptedException x) {
+		throw new IllegalStateException(x);
+	    }
+	}
+
+	/** Hand over the last batch. */
+	void flush() throws InterruptedException {
+	    fullBatches.put(batch);
+	}
+    }
+
+}
@@ -1,7 +1,6 @@
 package function;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import javax.swing.JPanel;
 
@@ -11,6 +10,7 @@ import elements.MapData;
 import elements.Node;
 import elements.NodeManager;
 import elements.Way;
+import elements.WayManager;
 import gui.DisplayPanel;
 import gui.GPSInfoPanel;
 
@@ -22,7 +22,7 @@ import gui.GPSInfoPanel;
 public class PositionTracker implements com.starkeffect.highway.GPSListener{
 
     private NodeManager nodeManager;
-    private HashMap<String, ArrayList<Way>> nodeInWay;
+    private WayManager wayManager;
 
     /** The display panel is a listener to PositionTracker */
     private DisplayPanel display;
@@ -90,12 +90,12 @@ public class PositionTracker implements com.starkeffect.highway.GPSListener{
      */
     public PositionTracker( MapData data, GPSDevice device ){
 	nodeManager = data.getNodeManager();
-	nodeInWay = data.getWayManager().getnodeInWayMap();
+	wayManager = data.getWayManager();
 	device.addGPSListener(this);
 
 	current = new double[2];
 	directions = new ArrayList<Node>();
-	directionsGenerator = new DirectionsGenerator();
+	directionsGenerator = new DirectionsGenerator(nodeManager);
     }
 
     /**
@@ -163,12 +163,23 @@ public class PositionTracker implements com.starkeffect.highway.GPSListener{
 	}
 
 	if( !display.isListening() || directions == null || recalculate() ){
-	    return directionsGenerator.generateDirections(startNode, endNode);
+	    return findPath(startNode, endNode);
 	} else {
 	    return directions;
 	}
     }
 
+    /** 
+     * Find the shortest path from one node to another, up the
+     * contraction hierarchy of the map data if it has one, and
+     * otherwise searching from both at once; null if they are
+     * not connected.
+     */
+    private ArrayList<Node> findPath( Node from, Node to ){
+	Route route = directionsGenerator.findRoute(from, to, DirectionsGenerator.Search.HIERARCHY);
+	return route == null ? null : route.getPath();
+    }
+
     /** Reset the directions */
     public void resetDirections(){
 	directions = null;
@@ -232,7 +243,7 @@ public class PositionTracker implements com.starkeffect.highway.GPSListener{
 	if( display.isListening() && !finished ){ // if we want to receive satellite signal
 	    driving = true;
 	    if( recalculate() ){
-		directions = directionsGenerator.generateDirections(currentNode, endNode);
+		directions = findPath(currentNode, endNode);
 	    } 
 	    startNode = currentNode;
 	    display.setDriveMode(true);
@@ -253,10 +264,12 @@ public class PositionTracker implements com.starkeffect.highway.GPSListener{
     public String positionInfo(){
 	String s = "";
 
-	Way w = nodeInWay.get(currentNode.getID()).get(0);
-	String name = w.getName();
-	if( name == null ) name = w.getID();
-	s+= "\nNear route: " + name + "."; // nearest route/way
+	if( wayManager.getContainingWayCount(currentNode.getIndex()) > 0 ){
+	    Way w = wayManager.getContainingWay(currentNode.getIndex(), 0);
+	    String name = w.getName();
+	    if( name == null ) name = String.valueOf(w.getID());
+	    s+= "\nNear route: " + name + "."; // nearest route/way
+	}
 
 	// destination exists
 	if(endNode != null) s+= "\nReached Destination: " + finished + "\n";
@@ -0,0 +1,179 @@
+package function;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of protocol buffer encoded data in a byte array, for PBFReader.
+ * It only moves a position over the bytes: an embedded message is read
+ * by narrowing the limit to it with start() and restoring it with end(),
+ * and a packed repeated field can be given to another ProtoReader, so
+ * decoding allocates nothing.
+ */
+class ProtoReader {
+
+    /** Wire type of varints */
+    static final int VARINT = 0;
+
+    /** Wire type of fixed 64 bit values */
+    static final int FIXED64 = 1;
+
+    /** Wire type of length delimited values: bytes, strings, messages, packed fields */
+    static final int LENGTH_DELIMITED = 2;
+
+    /** Wire type of fixed 32 bit values */
+    static final int FIXED32 = 5;
+
+    /** The bytes */
+    private byte[] buf;
+
+    /** Position of the next byte to read */
+    private int pos;
+
+    /** Position reading stops at */
+    private int limit;
+
+
+    // --- end of fields --- //
+
+    /** The constructor, for a reader to be set with readPacked(). */
+    ProtoReader(){
+	buf = new byte[0];
+    }
+
+    /**
+     * The constructor.
+     * @param buf The bytes.
+     * @param offset Where the data starts in buf.
+     * @param length Length of the data.
+     */
+    ProtoReader(byte[] buf, int offset, int length){
+	this.buf = buf;
+	pos = offset;
+	limit = offset + length;
+    }
+
+    /** Check if there is more to read before the limit. */
+    boolean hasMore(){ return pos < limit; }
+
+    /** Get the position of the next byte to read. */
+    int position(){ return pos; }
+
+    /**
+     * Read the key of the next field.
+     * @return field number << 3 | wire type.
+     */
+    int readTag() throws IOException {
+	return (int) readVarint();
+    }
+
+    /** Get the field number of a tag. */
+    static int field(int tag){ return tag >>> 3; }
+
+    /** Get the wire type of a tag. */
+    static int wireType(int tag){ return tag & 7; }
+
+    /** Read a varint: int32, int64, uint32, uint64, bool or enum. */
+    long readVarint() throws IOException {
+	long v = 0;
+	for( int shift = 0; shift < 64; shift += 7 ){
+	    if( pos >= limit ) throw new IOException("PBF data corrupt: truncated varint");
+	    byte b = buf[pos++];
+	    v |= (long) (b & 0x7f) << shift;
+	    if( b >= 0 ) return v;
+	}
+	throw new IOException("PBF data corrupt: varint too long");
+    }
+
+    /** Read a zigzag coded varint: sint32 or sint64. */
+    long readSint() throws IOException {
+	long v = readVarint();
+	return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Read the length of a length delimited field, and check it. */
+    int readLength() throws IOException {
+	long length = readVarint();
+	if( length < 0 || length > limit - pos ) throw new IOException("PBF data corrupt: bad length");
+	return (int) length;
+    }
+
+    /** Read a string field. */
+    String readString() throws IOException {
+	int length = readLength();
+	String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+	pos += length;
+	return s;
+    }
+
+    /** Read a bytes field into a new array. */
+    byte[] readBytes() throws IOException {
+	int length = readLength();
+	byte[] b = new byte[length];
+	System.arraycopy(buf, pos, b, 0, length);
+	pos += length;
+	return b;
+    }
+
+    /**
+     * Start reading an embedded message: the limit is set to its end
+     * until end() is called.
+     * @return the limit to give back to end().
+     */
+    int start() throws IOException {
+	int length = readLength();
+	int old = limit;
+	limit = pos + length;
+	return old;
+    }
+
+    /**
+     * Stop reading an embedded message, skipping what is left of it.
+     * @param oldLimit What start() returned.
+     */
+    void end(int oldLimit){
+	pos = limit;
+	limit = oldLimit;
+    }
+
+    /** Make this reader empty. */
+    void clear(){
+	pos = 0;
+	limit = 0;
+    }
+
+    /**
+     * Set another reader to the values of the packed field that follows,
+     * and skip the field in this reader.
+     * @param tag The tag of the field.
+     * @param into The reader to set.
+     */
+    void readPacked(int tag, ProtoReader into) throws IOException {
+	if( wireType(tag) != LENGTH_DELIMITED ){
+	    throw new IOException("PBF repeated field " + field(tag) + " is not packed");
+	}
+	int length = readLength();
+	into.buf = buf;
+	into.pos = pos;
+	into.limit = pos + length;
+	pos += length;
+    }
+
+    /** Skip a field of the given wire type. */
+    void skip(int wireType) throws IOException {
+	switch( wireType ){
+	    case VARINT: readVarint(); break;
+	    case FIXED64: skipBytes(8); break;
+	    case LENGTH_DELIMITED: skipBytes(readLength()); break;
+	    case FIXED32: skipBytes(4); break;
+	    default: throw new IOException("PBF data corrupt: bad wire type " + wireType);
+	}
+    }
+
+    /** Skip n bytes. */
+    void skipBytes(int n) throws IOException {
+	if( n > limit - pos ) throw new IOException("PBF data corrupt: truncated field");
+	pos += n;
+    }
+
+}
@@ -0,0 +1,190 @@
+package function;
+
+import java.util.Arrays;
+
+/**
+ * One complete OSM element (node, way or relation) as it was read from
+ * the input, before it is turned into Node, Way and Relation objects.
+ * The readers fill one RawElement and hand it to an ElementSink when the
+ * element ends, then reuse the same object for the next element; so a
+ * sink must copy out anything it wants to keep.
+ */
+public class RawElement {
+
+    /** Type of a node element; also the member type of a node member. */
+    public static final int NODE = 0;
+
+    /** Type of a way element; also the member type of a way member. */
+    public static final int WAY = 1;
+
+    /** Type of a relation element; also the member type of a relation member. */
+    public static final int RELATION = 2;
+
+    /** The type of this element: NODE, WAY or RELATION */
+    private int type;
+
+    /** The id of this element */
+    private long id;
+
+    /** Latitude, if this element is a node */
+    private double lat;
+
+    /** Longitude, if this element is a node */
+    private double lon;
+
+    /** The nd refs of a way, or the member refs of a relation */
+    private long[] refs;
+
+    /** The member types of a relation, parallel to refs */
+    private int[] memberTypes;
+
+    /** The member roles of a relation, parallel to refs */
+    private String[] memberRoles;
+
+    /** Number of refs */
+    private int refCount;
+
+    /** The tag keys of this element */
+    private String[] tagKeys;
+
+    /** The tag values of this element, parallel to tagKeys */
+    private String[] tagValues;
+
+    /** Number of tags */
+    private int tagCount;
+
+    /** Offset of the element in the file it was read from; -1 if not known */
+    private long sourceOffset;
+
+
+    // --- end of fields --- //
+
+    /** The constructor. */
+    public RawElement(){
+	refs = new long[16];
+	memberTypes = new int[16];
+	memberRoles = new String[16];
+	tagKeys = new String[8];
+	tagValues = new String[8];
+    }
+
+    /**
+     * Start a new element, forgetting the previous one.
+     * @param type NODE, WAY or RELATION.
+     * @param id The id of the element.
+     */
+    public void reset(int type, long id){
+	this.type = type;
+	this.id = id;
+	lat = 0;
+	lon = 0;
+	refCount = 0;
+	tagCount = 0;
+	sourceOffset = -1;
+    }
+
+    /** Set the offset of the element in the file it was read from. */
+    public void setSourceOffset(long offset){
+	sourceOffset = offset;
+    }
+
+    /** Set the location of a node. */
+    public void setLocation(double lat, double lon){
+	this.lat = lat;
+	this.lon = lon;
+    }
+
+    /** Add an nd ref to a way. */
+    public void addRef(long ref){
+	addMember(NODE, ref, null);
+    }
+
+    /**
+     * Add a member to a relation.
+     * @param memberType NODE, WAY or RELATION.
+     * @param ref The id of the member.
+     * @param role The role of the member, may be null.
+     */
+    public void addMember(int memberType, long ref, String role){
+	if( refCount == refs.length ){
+	    refs = Arrays.copyOf(refs, refCount * 2);
+	    memberTypes = Arrays.copyOf(memberTypes, refCount * 2);
+	    memberRoles = Arrays.copyOf(memberRoles, refCount * 2);
+	}
+	refs[refCount] = ref;
+	memberTypes[refCount] = memberType;
+	memberRoles[refCount] = role;
+	refCount++;
+    }
+
+    /** Add a tag (k, v) to this element. */
+    public void addTag(String key, String value){
+	if( tagCount == tagKeys.length ){
+	    tagKeys = Arrays.copyOf(tagKeys, tagCount * 2);
+	    tagValues = Arrays.copyOf(tagValues, tagCount * 2);
+	}
+	tagKeys[tagCount] = key;
+	tagValues[tagCount] = value;
+	tagCount++;
+    }
+
+    /** Get the type: NODE, WAY or RELATION. */
+    public int getType(){ return type; }
+
+    /** Get the id of this element. */
+    public long getID(){ return id; }
+
+    /** Get the latitude of a node. */
+    public double getLatitude(){ return lat; }
+
+    /** Get the longitude of a node. */
+    public double getLongitude(){ return lon; }
+
+    /** Get the offset of the element in the file it was read from; -1 if not known. */
+    public long getSourceOffset(){ return sourceOffset; }
+
+    /** Get the number of nd refs, or relation members. */
+    public int getRefCount(){ return refCount; }
+
+    /** Get the i-th nd ref, or relation member id. */
+    public long getRef(int i){ return refs[i]; }
+
+    /** Get the type of the i-th relation member. */
+    public int getMemberType(int i){ return memberTypes[i]; }
+
+    /** Get the role of the i-th relation member, may be null. */
+    public String getMemberRole(int i){ return memberRoles[i]; }
+
+    /** Get the number of tags. */
+    public int getTagCount(){ return tagCount; }
+
+    /** Get the key of the i-th tag. */
+    public String getTagKey(int i){ return tagKeys[i]; }
+
+    /** Get the value of the i-th tag. */
+    public String getTagValue(int i){ return tagValues[i]; }
+
+    /**
+     * Get a tag value of this element by its key.
+     * @return the value, or null if there is no such tag.
+     */
+    public String getTag(String key){
+	for( int i = 0; i < tagCount; i++ ){
+	    if( tagKeys[i].equals(key) ) return tagValues[i];
+	}
+	return null;
+    }
+
+    /**
+     * Convert a member type as written in the file ("node",
+     * "way" or "relation") to NODE, WAY or RELATION.
+     * @return the type, or -1 if it is not known.
+     */
+    public static int typeCode(String type){
+	if( type.equals("way") ) return WAY;
+	if( type.equals("node") ) return NODE;
+	if( type.equals("relation") ) return RELATION;
+	return -1;
+    }
+
+}
@@ -0,0 +1,42 @@
+package function;
+
+import java.util.ArrayList;
+
+import elements.Node;
+
+/**
+ * A path found by DirectionsGenerator: its nodes, its length, and the
+ * number of nodes the search settled to find it, which is what the
+ * search cost.
+ */
+public class Route {
+
+    /** The nodes of the path, from the end back to the start */
+    private ArrayList<Node> path;
+
+    /** The length of the path, in miles, as the road graph has it */
+    private double cost;
+
+    /** Number of nodes the search settled */
+    private int settled;
+
+
+    // --- end of fields --- //
+
+    /** The constructor. */
+    Route(ArrayList<Node> path, double cost, int settled){
+	this.path = path;
+	this.cost = cost;
+	this.settled = settled;
+    }
+
+    /** Get the nodes of the path, from the end back to the start. */
+    public ArrayList<Node> getPath(){ return path; }
+
+    /** Get the length of the path, in miles. */
+    public double getCost(){ return cost; }
+
+    /** Get the number of nodes the search settled to find the path. */
+    public int getSettled(){ return settled; }
+
+}
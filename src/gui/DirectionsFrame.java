@@ -67,14 +67,14 @@ public class DirectionsFrame extends JFrame{
 
 	    Way w = data.connectedBy(n, n2);
 	    String wName = w.getName();
-	    if(wName == null){ wName = w.getID(); }
+	    if(wName == null){ wName = String.valueOf(w.getID()); }
 
 	    dir += DOUBLE_LINE + "Segment " + seg + ":\n[ " + nStr + " ] to \n[ " + nStr2 + " ]\n"
 		    + DISTANCE + dist + MILES + "\n" + VIA + wName;
 	}
 
-	String n1ID = directions.get(directions.size()-1).getID();
-	String n2ID = directions.get(0).getID();
+	long n1ID = directions.get(directions.size()-1).getID();
+	long n2ID = directions.get(0).getID();
 	
 	String heading = "Directions:\n"
 		+ "Total Distance: " + distance + MILES+ "; Segments: " + seg;
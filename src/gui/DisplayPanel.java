@@ -20,7 +20,6 @@ import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -28,8 +27,10 @@ import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JToolTip;
 
+import elements.LoadReport;
 import elements.MapData;
 import elements.Node;
+import elements.NodeManager;
 import elements.Relation;
 import elements.RelationManager;
 import elements.Way;
@@ -64,6 +65,7 @@ public class DisplayPanel extends JPanel{
     private final Stroke DASHED = new BasicStroke(4.3f, BasicStroke.CAP_SQUARE,
 	    BasicStroke.JOIN_BEVEL, 5.0f, new float[]{5 ,20}, 0.03f); 
 
+    private NodeManager nodeManager;
     private WayManager wayManager;
     private RelationManager relationManager;
 
@@ -91,9 +93,6 @@ public class DisplayPanel extends JPanel{
     /** specific object Ways to highlight */
     private ArrayList<Way> waysToDraw = null;
 
-    /** Node in Way map */
-    private HashMap<String, ArrayList<Way>> nodeInWayMap;
-
     /** 
      * Path to draw. The set directions directionsPath. 
      * DirectionsPath should change depending:
@@ -167,6 +166,9 @@ public class DisplayPanel extends JPanel{
     /** The set dimension height */
     private double height;
 
+    /** The report of the load of the map, told of the first paint; null if none */
+    private LoadReport loadReport;
+
 
     // ----- end of fields ----- //
 
@@ -188,9 +190,10 @@ public class DisplayPanel extends JPanel{
 	pixToNode = new PixNodeMap();
 	slugTrail = new ArrayList<String>();
 
+	nodeManager = data.getNodeManager();
 	wayManager = data.getWayManager();
-	nodeInWayMap = wayManager.getnodeInWayMap();
 	relationManager = data.getRelationManager();
+	loadReport = data.getLoadReport();
 	origin = new Point();
 
 	configureMouseListeners();
@@ -260,11 +263,12 @@ public class DisplayPanel extends JPanel{
 		if( pixToNode.containsPoint(pt) ){
 		    Node n = pixToNode.getPoint(pt);
 		    nodeToMark = n;
-		    ArrayList<Way> ways = wayManager.getnodeInWayMap().get(n.getID());
-		    for( Way w: ways ){
+		    int ways = wayManager.getContainingWayCount(n.getIndex());
+		    for( int k = 0; k < ways; k++ ){
+			Way w = wayManager.getContainingWay(n.getIndex(), k);
 			name = w.getName();
 			DisplayPanel.this.setToolTipText(name);
-			if( name == null ) name = w.getID();
+			if( name == null ) name = String.valueOf(w.getID());
 		    }
 		    repaint();
 		}
@@ -375,8 +379,8 @@ public class DisplayPanel extends JPanel{
      * @param g2 Graphics2D object
      */
     private void drawWay( Graphics2D g2 , Way w ){ 
-	ArrayList<Node> nodes = w.getNodeSeq();
-	Node prevNode = nodes.get(0); // first node to start
+	if( w.getNodeCount() == 0 ) return;
+	int prevNode = w.getNodeIndex(0); // first node to start
 
 	Point2D prevPt = nodeToPt(prevNode);
 	double prevX = prevPt.getX();
@@ -385,11 +389,10 @@ public class DisplayPanel extends JPanel{
 	savePointNode(prevX, prevY, prevNode); // for dot.
 
 	// loop through the way's nodes
-	for (int i = 1; i < nodes.size(); i++) {
+	for (int i = 1; i < w.getNodeCount(); i++) {
 
 	    // get node at i
-	    Node node = nodes.get(i);
-	    if (node == null) continue;
+	    int node = w.getNodeIndex(i);
 
 	    Point2D thisPt = nodeToPt(node);
 	    double thisX = thisPt.getX();
@@ -473,18 +476,23 @@ public class DisplayPanel extends JPanel{
     /** Convert a node to pixel value. */
     private Point2D nodeToPt(Node n){
 	if(n == null) return null;
-	double lon = n.getLongitude();
-	double lat = n.getLatitude();
+	return nodeToPt(n.getIndex());
+    }
+
+    /** Convert a node, by its index, to pixel value. */
+    private Point2D nodeToPt(int index){
+	double lon = nodeManager.getLongitude(index);
+	double lat = nodeManager.getLatitude(index);
 
 	Point2D pt = coordToPt(lon, lat);
 	return pt;
     }
 
     /** Save point in order to map it to the node. */
-    private void savePointNode(double x, double y, Node n){
+    private void savePointNode(double x, double y, int index){
 	double size = 8 * zoomFactor;
 	Shape shape = new Rectangle2D.Double(x-size/2, y-size/2, size, size);
-	pixToNode.put(shape, n);
+	pixToNode.put(shape, nodeManager.getNodeByIndex(index));
     }
 
     /** Save point in order to map it to the way. */
@@ -766,6 +774,12 @@ public class DisplayPanel extends JPanel{
 	}
 
 	g2.setColor(Color.BLACK);
+
+	// the map is on screen: the end of its load
+	if( loadReport != null ){
+	    loadReport.firstPaint();
+	    loadReport = null;
+	}
     }
 
     /** Tool tip, because I've always wanted to use a tool tip somewhere. */
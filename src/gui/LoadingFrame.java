@@ -0,0 +1,236 @@
+package gui;
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import elements.MapData;
+import function.LoadProgress;
+import function.OSMParser;
+
+/**
+ * Frame shown while a map loads in the background: the ways loaded so
+ * far, how much of the file is read and how fast, and a button to
+ * cancel. The parse runs on a SwingWorker, so the rest of the
+ * application stays responsive; when it is done, a MainFrame with the
+ * map replaces the frame the load was started from.
+ */
+public class LoadingFrame extends JFrame{
+
+    /** Time between two updates of the progress, in ms */
+    private static final int UPDATE_INTERVAL = 250;
+
+    /** The parser that loads the map */
+    private OSMParser parser;
+
+    /** The file of the map, for the MainFrame */
+    private File file;
+
+    /** The title of the MainFrame; null for its own */
+    private String title;
+
+    /** The frame the load was started from, closed when the map is loaded; null if none */
+    private JFrame previous;
+
+    /** The progress of the load */
+    private LoadProgress progress;
+
+    /** The ways loaded so far */
+    private PreviewPanel preview;
+
+    private JProgressBar progressBar;
+    private JLabel statusLabel;
+
+    /** Updates the progress bar and the status */
+    private Timer timer;
+
+
+    // --- end of fields --- //
+
+    /**
+     * Constructor. Use load() to start a load.
+     * @param parser The parser, set up but not parsed yet.
+     * @param file The file of the map.
+     * @param title The title of the MainFrame; null for its own.
+     * @param previous The frame the load was started from; null if none.
+     */
+    private LoadingFrame(OSMParser parser, File file, String title, JFrame previous){
+	super("Loading " + (title != null ? title : file.getName()));
+	this.parser = parser;
+	this.file = file;
+	this.title = title;
+	this.previous = previous;
+	progress = new LoadProgress();
+	parser.setProgress(progress);
+
+	preview = new PreviewPanel();
+	progressBar = new JProgressBar(0, 1000);
+	statusLabel = new JLabel("Reading...");
+	JButton cancelButton = new JButton("Cancel");
+	cancelButton.addActionListener(new ActionListener(){
+	    @Override
+	    public void actionPerformed(ActionEvent e){
+		cancel();
+	    }
+	});
+
+	JPanel southPanel = new JPanel(new BorderLayout(5, 5));
+	southPanel.add(progressBar, BorderLayout.NORTH);
+	southPanel.add(statusLabel, BorderLayout.CENTER);
+	southPanel.add(cancelButton, BorderLayout.EAST);
+	add(preview, BorderLayout.CENTER);
+	add(southPanel, BorderLayout.SOUTH);
+
+	setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+	addWindowListener(new WindowAdapter(){
+	    @Override
+	    public void windowClosing(WindowEvent e){
+		cancel();
+	    }
+	});
+	timer = new Timer(UPDATE_INTERVAL, new ActionListener(){
+	    @Override
+	    public void actionPerformed(ActionEvent e){
+		updateStatus();
+	    }
+	});
+	setSize(700, 600);
+	setLocationRelativeTo(previous);
+    }
+
+    /**
+     * Load a map in the background, showing its progress, and then show
+     * it in a MainFrame. Call on the event dispatch thread, or on the
+     * main thread before any frame is shown.
+     * @param parser The parser, set up but not parsed yet.
+     * @param file The file of the map.
+     * @param title The title of the MainFrame; null for its own.
+     * @param previous The frame the load was started from, that is
+     * closed once the map is loaded, and kept if the load fails or is
+     * cancelled; null if none, and then the application exits instead.
+     */
+    public static void load(final OSMParser parser, final File file, final String title, final JFrame previous){
+	if( !SwingUtilities.isEventDispatchThread() ){
+	    SwingUtilities.invokeLater(new Runnable(){
+		@Override
+		public void run(){
+		    load(parser, file, title, previous);
+		}
+	    });
+	    return;
+	}
+	LoadingFrame frame = new LoadingFrame(parser, file, title, previous);
+	frame.setVisible(true);
+	frame.timer.start();
+	frame.new Loader().execute();
+    }
+
+    /** Cancel the load; the frame closes when the parse stops. */
+    private void cancel(){
+	progress.cancel();
+	statusLabel.setText("Cancelling...");
+    }
+
+    /** Show the bytes read and the elements loaded so far */
+    private void updateStatus(){
+	if( progress.isCancelled() ) return;
+	long total = progress.getTotalBytes();
+	long read = progress.getBytesRead();
+	progressBar.setValue((int) (1000 * progress.getFraction()));
+	String status = String.format("%.1f of %.1f MB, %,d elements, %,.0f elements/s",
+		read / 1e6, total / 1e6, progress.getElements(), progress.getElementsPerSecond());
+	if( total > 0 && read >= total ) status = "Finishing the map... " + status;
+	statusLabel.setText(status);
+    }
+
+    /** Close the frame when the load stopped without a map */
+    private void closeWithoutMap(){
+	dispose();
+	if( previous == null ) System.exit(0);
+    }
+
+    /**
+     * The background load: parses and finalizes the map data, and
+     * publishes the ways loaded so far to the preview.
+     */
+    private class Loader extends SwingWorker<MapData, ArrayList<float[]>>
+	    implements LoadProgress.PreviewListener {
+
+	Loader(){
+	    progress.setPreviewListener(this);
+	}
+
+	@Override
+	protected MapData doInBackground() throws Exception {
+	    parser.parse();
+	    progress.setPreviewListener(null);
+	    return parser.getData();
+	}
+
+	@Override
+	public void boundsLoaded(final double minlat, final double minlon, final double maxlat, final double maxlon){
+	    SwingUtilities.invokeLater(new Runnable(){
+		@Override
+		public void run(){
+		    preview.addBounds(minlat, minlon, maxlat, maxlon);
+		}
+	    });
+	}
+
+	@Override
+	public void waysLoaded(ArrayList<float[]> ways){
+	    publish(ways);
+	}
+
+	@Override
+	protected void process(List<ArrayList<float[]>> chunks){
+	    for( ArrayList<float[]> ways : chunks ){ preview.addWays(ways); }
+	}
+
+	@Override
+	protected void done(){
+	    timer.stop();
+	    MapData data;
+	    try {
+		data = get();
+	    } catch (InterruptedException x) {
+		closeWithoutMap();
+		return;
+	    } catch (ExecutionException x) {
+		if( !(x.getCause() instanceof CancellationException) ){
+		    x.getCause().printStackTrace();
+		    JOptionPane.showMessageDialog(LoadingFrame.this, "Failed to load.");
+		}
+		closeWithoutMap();
+		return;
+	    }
+	    if( progress.isCancelled() ){ // too late to stop the parse
+		closeWithoutMap();
+		return;
+	    }
+	    dispose();
+	    if( previous != null ) previous.dispose();
+	    MainFrame newFrame = new MainFrame( data, file );
+	    if( title != null ) newFrame.setTitle(title);
+	    newFrame.setVisible(true);
+	    System.gc();
+	}
+    }
+
+}
@@ -39,6 +39,7 @@ import org.xml.sax.SAXException;
 import elements.MapData;
 import elements.Node;
 import function.OSMParser;
+import function.OSMTagSource;
 import function.PositionTracker;
 
 import com.starkeffect.highway.GPSDevice;
@@ -252,48 +253,43 @@ public class MainFrame extends JFrame{
 
     /**
      * Open function: open a file chooser to select a file,
-     * and then display the chosen usb.osm file.
+     * and then display the chosen usb.osm file. Several files,
+     * such as the tiles of an area, can be selected to be 
+     * loaded together into one map.
      */
     private void openFile(){	
 
 	JFileChooser fileChooser = new JFileChooser();
 	fileChooser.setCurrentDirectory(new File(System.getProperty("user.dir")));
+	fileChooser.setMultiSelectionEnabled(true);
 	int result = fileChooser.showOpenDialog(this);
 
 	if(result != JFileChooser.APPROVE_OPTION){ return; } // canceled
-	File file = fileChooser.getSelectedFile();
+	File[] files = fileChooser.getSelectedFiles();
+	if(files.length == 0){ return; }
+	File file = files[0];
 	String name = file.getName();
-
-	String extension = "";
-	try {
-	    extension = name.substring(name.lastIndexOf(".") + 1);
-	} catch (Exception e) {
-	    return;
-	}
+	for(int i = 1; i < files.length; i++){ name += ", " + files[i].getName(); }
 
 	// if file not osm format
-	if(!extension.equals("osm")) {   
-	    JOptionPane.showMessageDialog(this,
-		    "This file is not osm format.", "Type Error",
-		    JOptionPane.ERROR_MESSAGE);
-	    return;
+	for(File f : files){
+	    if(!OSMParser.isOSMFile(f.getName())) {   
+		JOptionPane.showMessageDialog(this,
+			f.getName() + " is not osm format.", "Type Error",
+			JOptionPane.ERROR_MESSAGE);
+		return;
+	    }
 	}
 
-	// parse file.
-	OSMParser prsr = new OSMParser(file);
-	try {
-	    this.dispose();
-	    prsr.parse();
-	    MainFrame newFrame = new MainFrame( prsr.getData(), file );
-	    newFrame.setTitle(name);
-	    newFrame.setVisible(true);
-	    System.gc();
-
-	} catch (Exception e){
-	    e.printStackTrace();
-	    JOptionPane.showMessageDialog(this, "Failed to load.");
-	    return;
-	}
+	// parse file, in the background; this frame stays until it is loaded.
+	OSMParser prsr = new OSMParser(files);
+	prsr.setParallel(true);
+	prsr.setEngine(OSMParser.Engine.BYTES);
+	prsr.setMapped(true);
+	prsr.setSnapshot(true);
+	prsr.setHierarchy(true);
+	prsr.setLazyTags(OSMTagSource.DEFAULT_KEYS);
+	LoadingFrame.load(prsr, file, name, this);
     }
     
     /** 
@@ -331,13 +327,15 @@ public class MainFrame extends JFrame{
 	nodeFrame.setLayout(new BorderLayout());
 
 	// list of nodes by their IDs
-	Set<String> nodeIDs = data.getNodeManager().getNodeIDs();
-	JList list = new JList<Object>(nodeIDs.toArray());
+	long[] nodeIDs = data.getNodeManager().getNodeIDs();
+	Long[] listIDs = new Long[nodeIDs.length];
+	for( int i = 0; i < nodeIDs.length; i++ ){ listIDs[i] = nodeIDs[i]; }
+	JList list = new JList<Object>(listIDs);
 	list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 	list.addListSelectionListener(new ListSelectionListener() {
 	    @Override
 	    public void valueChanged(ListSelectionEvent e) {
-		String id = (String) list.getSelectedValue();
+		Long id = (Long) list.getSelectedValue();
 		Node n = data.getNodeManager().getNode(id);
 		displayPanel.markNode(n); // mark the node selected
 	    }
@@ -0,0 +1,94 @@
+package gui;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+
+import javax.swing.JPanel;
+
+/**
+ * Panel that draws the ways of a map while it is still loading, as
+ * plain lines, from the coordinates LoadProgress collects. The whole
+ * map is fit into the panel: the bounds of the file if it gave them,
+ * otherwise the extent of the ways loaded so far.
+ */
+public class PreviewPanel extends JPanel{
+
+    /** The ways loaded so far, as latitudes and longitudes alternating */
+    private ArrayList<float[]> ways;
+
+    /** The bounds given by the file; null if none yet */
+    private double[] bounds;
+
+    /** The extent of the ways: min lat, min lon, max lat, max lon */
+    private double[] extent;
+
+
+    // --- end of fields --- //
+
+    /** Constructor */
+    public PreviewPanel(){
+	ways = new ArrayList<float[]>();
+	extent = new double[]{ Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+	setPreferredSize(new Dimension(700, 600));
+	setBackground(Color.WHITE);
+    }
+
+    /** Set the bounds of the map, or grow them to hold another box. */
+    public void addBounds(double minlat, double minlon, double maxlat, double maxlon){
+	if( bounds == null ){
+	    bounds = new double[]{ minlat, minlon, maxlat, maxlon };
+	} else {
+	    bounds[0] = Math.min(bounds[0], minlat);
+	    bounds[1] = Math.min(bounds[1], minlon);
+	    bounds[2] = Math.max(bounds[2], maxlat);
+	    bounds[3] = Math.max(bounds[3], maxlon);
+	}
+	repaint();
+    }
+
+    /** Add ways to draw. */
+    public void addWays(ArrayList<float[]> more){
+	for( float[] w : more ){
+	    for( int i = 0; i < w.length; i += 2 ){
+		extent[0] = Math.min(extent[0], w[i]);
+		extent[1] = Math.min(extent[1], w[i+1]);
+		extent[2] = Math.max(extent[2], w[i]);
+		extent[3] = Math.max(extent[3], w[i+1]);
+	    }
+	}
+	ways.addAll(more);
+	repaint();
+    }
+
+    @Override
+    public void paintComponent(Graphics g){
+	super.paintComponent(g);
+	double[] box = bounds != null ? bounds : extent;
+	if( ways.isEmpty() || box[0] > box[2] ) return;
+
+	// longitude is shortened by the cosine of the latitude, as in Scale
+	double cos = Math.cos(Math.toRadians((box[0] + box[2]) / 2));
+	double latSpan = Math.max(box[2] - box[0], 1e-9);
+	double lonSpan = Math.max((box[3] - box[1]) * cos, 1e-9);
+	double factor = 0.95 * Math.min(getWidth() / lonSpan, getHeight() / latSpan);
+	double x0 = (getWidth() - lonSpan * factor) / 2;
+	double y0 = (getHeight() + latSpan * factor) / 2;
+
+	Path2D.Float path = new Path2D.Float();
+	for( float[] w : ways ){
+	    path.moveTo(x0 + (w[1] - box[1]) * cos * factor, y0 - (w[0] - box[0]) * factor);
+	    for( int i = 2; i < w.length; i += 2 ){
+		path.lineTo(x0 + (w[i+1] - box[1]) * cos * factor, y0 - (w[i] - box[0]) * factor);
+	    }
+	}
+	Graphics2D g2 = (Graphics2D) g;
+	g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+	g2.setColor(Color.DARK_GRAY);
+	g2.draw(path);
+    }
+
+}